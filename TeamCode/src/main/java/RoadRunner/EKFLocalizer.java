@@ -0,0 +1,385 @@
+package RoadRunner;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.acmerobotics.dashboard.config.Config;
+import com.acmerobotics.roadrunner.geometry.Pose2d;
+import com.acmerobotics.roadrunner.localization.Localizer;
+import com.qualcomm.hardware.bosch.BNO055IMU;
+
+import org.firstinspires.ftc.robotcore.external.navigation.AngleUnit;
+import org.firstinspires.ftc.robotcore.external.navigation.AxesOrder;
+import org.firstinspires.ftc.robotcore.external.navigation.AxesReference;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import localization.PoseEstimate;
+import localization.PoseHistory;
+import util.SmallMatrix;
+
+/**
+ * A localizer that runs an extended kalman filter over odometry, the imu heading, and pose fixes
+ * from vision.
+ *
+ * Odometry only drives the prediction step. Every update, the change in the odometry pose is
+ * turned into a move relative to the robot, and that move is applied to the filter's own pose.
+ * The odometry localizer's absolute pose is never used, so any localizer works here, whether it's
+ * the drive wheels or tracking wheels. The filter's uncertainty grows with how far the robot
+ * moved, and shrinks again when the imu heading or a vision fix comes in.
+ *
+ * Vision fixes can come from any thread through {@link #addVisionFix(PoseEstimate)}. Only the
+ * newest one is kept, and it's applied on the next update. Fixes that are too old, or too far from
+ * the filter's pose compared to how sure both of them are, are thrown out.
+ *
+ * Camera poses arrive a while after the frame was captured, and applying them as if they were
+ * current would pull the pose back to where the robot used to be. So every update is kept in a
+ * {@link PoseHistory}, and a fix is applied to the update closest to when its frame was
+ * captured, then every update since is replayed on top of it. Replaying just redoes the
+ * prediction and imu steps, so it's cheap even with a couple hundred of them.
+ *
+ * The state is x, y and heading in inches and radians like the rest of roadrunner, with a 3x3
+ * covariance. All the matrix math is done in place on fixed arrays, so the only thing an update
+ * allocates is the pose it hands back.
+ */
+@Config
+public class EKFLocalizer implements Localizer {
+    // standard deviation of odometry error, as a fraction of the distance moved along each axis
+    public static double TRANSLATION_NOISE = 0.05;
+    // standard deviation of odometry heading error, as a fraction of the angle turned
+    public static double ROTATION_NOISE = 0.05;
+    // standard deviation of heading drift per inch driven, from wheels slipping
+    public static double DRIFT_NOISE = Math.toRadians(0.1);
+    public static double IMU_DEVIATION = Math.toRadians(1);
+    // seconds between imu reads, since every read is a slow i2c call. 0 reads every update.
+    public static double IMU_PERIOD = 0;
+    // vision fixes older than this are thrown out, even if they're still in the history
+    public static double MAX_FIX_AGE = 0.5; // s
+    // uncertainty of the pose given to setPoseEstimate
+    public static double START_POSITION_DEVIATION = 1; // in
+    public static double START_HEADING_DEVIATION = Math.toRadians(2);
+
+    // squared mahalanobis distance for rejecting vision fixes, the 99% point for 3 degrees of freedom
+    private static final double fixGate = 11.34;
+    private static final double mmPerInch = 25.4;
+    // about 2 seconds of updates at 125 loops a second
+    private static final int historyLength = 256;
+
+    private final Localizer odometry;
+    @Nullable
+    private final BNO055IMU imu;
+
+    private double x;
+    private double y;
+    private double heading;
+    private final double[] covariance = new double[9];
+
+    // scratch matrices, so nothing is allocated while updating
+    private final double[] jacobian = new double[9];
+    private final double[] noise = new double[9];
+    private final double[] scratch = new double[9];
+    private final double[] innovationCovariance = new double[9];
+    private final double[] inverse = new double[9];
+    private final double[] gain = new double[9];
+    private final double[] innovation = new double[3];
+    private final double[] correction = new double[3];
+    private final double[] savedCovariance = new double[9];
+
+    private final PoseHistory history = new PoseHistory(historyLength);
+
+    private Pose2d lastOdometryPose;
+    private Pose2d poseEstimate;
+    private double imuOffset;
+    private long lastImuTime;
+
+    private final AtomicReference<PoseEstimate> pendingFix = new AtomicReference<>();
+    private int appliedFixes;
+    private int rejectedFixes;
+
+    /**
+     * Create a localizer
+     * @param odometry the localizer to get robot movement from
+     * @param imu the imu to correct the heading with. Can be null to only use odometry and vision.
+     */
+    public EKFLocalizer(@NonNull Localizer odometry, @Nullable BNO055IMU imu) {
+        this.odometry = odometry;
+        this.imu = imu;
+        setPoseEstimate(new Pose2d());
+    }
+
+    // region localizer
+
+    @NonNull
+    @Override
+    public Pose2d getPoseEstimate() {
+        return poseEstimate;
+    }
+
+    /**
+     * Sets the pose and resets the uncertainty to the start deviations. The imu is read
+     * once here so its heading lines up with the new pose.
+     * @param pose the new pose
+     */
+    @Override
+    public void setPoseEstimate(@NonNull Pose2d pose) {
+        x = pose.getX();
+        y = pose.getY();
+        heading = normalize(pose.getHeading());
+        SmallMatrix.setDiagonal(covariance,
+                START_POSITION_DEVIATION * START_POSITION_DEVIATION,
+                START_POSITION_DEVIATION * START_POSITION_DEVIATION,
+                START_HEADING_DEVIATION * START_HEADING_DEVIATION);
+
+        odometry.setPoseEstimate(pose);
+        lastOdometryPose = odometry.getPoseEstimate();
+        if (imu != null) {
+            imuOffset = readImuHeading() - heading;
+            lastImuTime = System.nanoTime();
+        }
+        pendingFix.set(null);
+        history.clear();
+        addToHistory(System.nanoTime(), 0, 0, 0, Double.NaN);
+        poseEstimate = new Pose2d(x, y, heading);
+    }
+
+    @Nullable
+    @Override
+    public Pose2d getPoseVelocity() {
+        return odometry.getPoseVelocity();
+    }
+
+    @Override
+    public void update() {
+        odometry.update();
+        Pose2d odometryPose = odometry.getPoseEstimate();
+        // turn the odometry change into a move relative to where the robot was facing
+        double lastHeading = lastOdometryPose.getHeading();
+        double cos = Math.cos(lastHeading);
+        double sin = Math.sin(lastHeading);
+        double dx = odometryPose.getX() - lastOdometryPose.getX();
+        double dy = odometryPose.getY() - lastOdometryPose.getY();
+        double forward = cos * dx + sin * dy;
+        double strafe = -sin * dx + cos * dy;
+        double turn = normalize(odometryPose.getHeading() - lastHeading);
+        lastOdometryPose = odometryPose;
+        predict(forward, strafe, turn);
+
+        long now = System.nanoTime();
+        double measuredHeading = Double.NaN;
+        if (imu != null && (now - lastImuTime) * 1e-9 >= IMU_PERIOD) {
+            lastImuTime = now;
+            measuredHeading = normalize(readImuHeading() - imuOffset);
+            correctHeading(measuredHeading, IMU_DEVIATION * IMU_DEVIATION);
+        }
+        addToHistory(now, forward, strafe, turn, measuredHeading);
+
+        PoseEstimate fix = pendingFix.getAndSet(null);
+        if (fix != null) {
+            if (fix.getAge(now) * 1e-9 <= MAX_FIX_AGE && correctDelayed(fix)) {
+                appliedFixes++;
+            } else {
+                rejectedFixes++;
+            }
+        }
+
+        poseEstimate = new Pose2d(x, y, heading);
+    }
+
+    // endregion localizer
+
+    // region filter
+
+    /**
+     * Adds a pose from vision, to be applied on the next update. Can be called from any thread.
+     * @param fix the pose, in field millimeters like vuforia's robot location
+     */
+    public void addVisionFix(@NonNull PoseEstimate fix) {
+        pendingFix.set(fix);
+    }
+
+    /**
+     * Applies a vision fix at the update closest to when its frame was captured, then replays
+     * every update since
+     * @param fix the fix, in field millimeters
+     * @return false if the fix was older than the history or too far off to use, in which
+     *         case nothing changes
+     */
+    private boolean correctDelayed(@NonNull PoseEstimate fix) {
+        int index = history.findClosest(fix.timestamp);
+        if (index == -1) {
+            return false;
+        }
+        double currentX = x;
+        double currentY = y;
+        double currentHeading = heading;
+        System.arraycopy(covariance, 0, savedCovariance, 0, 9);
+
+        // rewind to the update the fix belongs to
+        x = history.getX(index);
+        y = history.getY(index);
+        heading = history.getHeading(index);
+        history.getCovariance(index, covariance);
+        if (!correctPose(fix)) {
+            x = currentX;
+            y = currentY;
+            heading = currentHeading;
+            System.arraycopy(savedCovariance, 0, covariance, 0, 9);
+            return false;
+        }
+        history.setPose(index, x, y, heading);
+        history.setCovariance(index, covariance);
+
+        // and replay every update after it, keeping the history in line so later fixes see
+        // the corrected poses
+        for (int i = index + 1; i < history.size(); i++) {
+            predict(history.getForward(i), history.getStrafe(i), history.getTurn(i));
+            double measuredHeading = history.getMeasuredHeading(i);
+            if (!Double.isNaN(measuredHeading)) {
+                correctHeading(measuredHeading, IMU_DEVIATION * IMU_DEVIATION);
+            }
+            history.setPose(i, x, y, heading);
+            history.setCovariance(i, covariance);
+        }
+        return true;
+    }
+
+    /**
+     * Moves the pose by a move relative to the robot and grows the covariance
+     * @param forward the distance moved forward
+     * @param strafe the distance moved left
+     * @param turn the angle turned, in radians
+     */
+    private void predict(double forward, double strafe, double turn) {
+        double cos = Math.cos(heading);
+        double sin = Math.sin(heading);
+
+        // derivative of the new pose with respect to the old one. Only the heading changes how
+        // the move lands, so the only nonzero terms off the diagonal are in the heading column.
+        SmallMatrix.setIdentity(jacobian);
+        jacobian[2] = -sin * forward - cos * strafe;
+        jacobian[5] = cos * forward - sin * strafe;
+
+        // odometry noise is independent along and across the robot, so it's rotated onto the field
+        double forwardVariance = square(TRANSLATION_NOISE * forward);
+        double strafeVariance = square(TRANSLATION_NOISE * strafe);
+        double headingVariance = square(ROTATION_NOISE * turn)
+                + square(DRIFT_NOISE * Math.hypot(forward, strafe));
+        noise[0] = cos * cos * forwardVariance + sin * sin * strafeVariance;
+        noise[1] = noise[3] = cos * sin * (forwardVariance - strafeVariance);
+        noise[4] = sin * sin * forwardVariance + cos * cos * strafeVariance;
+        noise[2] = noise[5] = noise[6] = noise[7] = 0;
+        noise[8] = headingVariance;
+
+        x += cos * forward - sin * strafe;
+        y += sin * forward + cos * strafe;
+        heading = normalize(heading + turn);
+
+        // P = F P F^T + Q
+        SmallMatrix.multiply(jacobian, covariance, scratch);
+        SmallMatrix.multiplyTransposed(scratch, jacobian, covariance);
+        SmallMatrix.add(covariance, noise, covariance);
+    }
+
+    /**
+     * Corrects the heading with a measured heading
+     * @param measured the measured heading, in radians
+     * @param variance the variance of the measurement
+     */
+    private void correctHeading(double measured, double variance) {
+        double error = normalize(measured - heading);
+        double innovationVariance = covariance[8] + variance;
+        double gain0 = covariance[2] / innovationVariance;
+        double gain1 = covariance[5] / innovationVariance;
+        double gain2 = covariance[8] / innovationVariance;
+
+        x += gain0 * error;
+        y += gain1 * error;
+        heading = normalize(heading + gain2 * error);
+
+        // P = (I - K H) P, where H only picks the heading row
+        double row0 = covariance[6], row1 = covariance[7], row2 = covariance[8];
+        covariance[0] -= gain0 * row0; covariance[1] -= gain0 * row1; covariance[2] -= gain0 * row2;
+        covariance[3] -= gain1 * row0; covariance[4] -= gain1 * row1; covariance[5] -= gain1 * row2;
+        covariance[6] -= gain2 * row0; covariance[7] -= gain2 * row1; covariance[8] -= gain2 * row2;
+        SmallMatrix.symmetrize(covariance);
+    }
+
+    /**
+     * Corrects the whole pose with a vision fix
+     * @param fix the fix, in field millimeters
+     * @return false if the fix was too far off to use
+     */
+    private boolean correctPose(@NonNull PoseEstimate fix) {
+        double inchesSquared = mmPerInch * mmPerInch;
+        innovation[0] = fix.x / mmPerInch - x;
+        innovation[1] = fix.y / mmPerInch - y;
+        innovation[2] = normalize(fix.heading - heading);
+
+        // S = P + R, since the fix measures the state directly
+        System.arraycopy(covariance, 0, innovationCovariance, 0, 9);
+        innovationCovariance[0] += fix.varianceX / inchesSquared;
+        innovationCovariance[1] += fix.covarianceXY / inchesSquared;
+        innovationCovariance[3] += fix.covarianceXY / inchesSquared;
+        innovationCovariance[4] += fix.varianceY / inchesSquared;
+        innovationCovariance[8] += fix.varianceHeading;
+        if (!SmallMatrix.invert(innovationCovariance, inverse)
+                || SmallMatrix.quadraticForm(inverse, innovation) > fixGate) {
+            return false;
+        }
+
+        // K = P S^-1
+        SmallMatrix.multiply(covariance, inverse, gain);
+        SmallMatrix.multiplyVector(gain, innovation, correction);
+        x += correction[0];
+        y += correction[1];
+        heading = normalize(heading + correction[2]);
+
+        // P = (I - K) P
+        SmallMatrix.multiply(gain, covariance, scratch);
+        SmallMatrix.subtract(covariance, scratch, covariance);
+        SmallMatrix.symmetrize(covariance);
+        return true;
+    }
+
+    private void addToHistory(long time, double forward, double strafe, double turn, double measuredHeading) {
+        int index = history.add(time, x, y, heading);
+        history.setStep(index, forward, strafe, turn, measuredHeading);
+        history.setCovariance(index, covariance);
+    }
+
+    // endregion filter
+
+    private double readImuHeading() {
+        return imu.getAngularOrientation(AxesReference.INTRINSIC, AxesOrder.ZYX, AngleUnit.RADIANS).firstAngle;
+    }
+
+    private static double normalize(double angle) {
+        return Math.atan2(Math.sin(angle), Math.cos(angle));
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+    /**
+     * Gets where the filter thinks the robot was at a time, like when a camera frame was captured.
+     * Poses in the history are updated when a late vision fix comes in.
+     * @param time the System.nanoTime() to get the pose at
+     * @param poseOut the pose as {x, y, heading}, in inches and radians
+     * @return false if the time is older than the history
+     */
+    public boolean getPoseAt(long time, @NonNull double[] poseOut) {
+        return history.getPose(time, poseOut);
+    }
+
+    /**
+     * Gets the current covariance, as a row major 3x3 matrix of x, y and heading
+     * @param out the array to copy the covariance into
+     */
+    public void getCovariance(@NonNull double[] out) {
+        System.arraycopy(covariance, 0, out, 0, 9);
+    }
+
+    public int getAppliedFixes() { return appliedFixes; }
+    public int getRejectedFixes() { return rejectedFixes; }
+}
@@ -13,6 +13,8 @@ import androidx.annotation.NonNull;
 
 import org.firstinspires.ftc.robotcore.internal.system.AppUtil;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * DisplaySource is a class for projecting a stream of bitmaps onto the robot's display
  */
@@ -23,6 +25,18 @@ public class DisplaySource {
     private final static String TAG = "vuf.test.displaysource";
     private final boolean activeDisplay;
 
+    // the newest frame posted but not yet shown. older frames are dropped when a newer one is posted
+    private final AtomicReference<Bitmap> pendingBitmap = new AtomicReference<>();
+    private final Runnable showPendingBitmap = new Runnable() {
+        @Override
+        public void run() {
+            Bitmap bitmap = pendingBitmap.getAndSet(null);
+            if (bitmap != null && imageView != null) {
+                imageView.setImageBitmap(bitmap);
+            }
+        }
+    };
+
     /**
      * Initialize the display source with a display id
      * the display id, also called the monitorViewIdParent, is the id of the
@@ -81,4 +95,30 @@ public class DisplaySource {
                     });
         }
     }
+
+    /**
+     * Posts a new image to the image view without waiting for the ui thread.
+     * If a frame is already waiting to be shown, it's replaced by this one instead of both being
+     * shown, so posting faster than the ui can draw doesn't build up a backlog.
+     * The bitmap shouldn't be changed until {@link #isFramePending()} returns false.
+     * @param bitmap the image to project
+     */
+    public void postImageView(@NonNull Bitmap bitmap) {
+        if (activeDisplay) {
+            // only schedule the ui thread if it wasn't already going to show a pending frame
+            if (pendingBitmap.getAndSet(bitmap) == null) {
+                appUtil.runOnUiThread(showPendingBitmap);
+            }
+        }
+    }
+
+    /**
+     * Determines whether a posted frame is still waiting to be shown by the ui thread
+     * @return true if a frame is pending
+     */
+    public boolean isFramePending() {
+        return pendingBitmap.get() != null;
+    }
+
+    public boolean isActive() { return activeDisplay; }
 }
@@ -0,0 +1,127 @@
+package display;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.ColorInt;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import localization.SpaceMapSnapshot;
+
+/**
+ * Draws spacemap snapshots onto the robot's display without stalling the loop.
+ *
+ * Two bitmaps at the display size are kept for the whole opmode. Each frame is drawn into
+ * whichever bitmap isn't on screen, and only the spaces that changed since that bitmap was last
+ * drawn are redrawn, so a frame where the robot moved one space only redraws a few small
+ * rectangles. Finished frames are posted to the ui thread without waiting for it. If the ui
+ * thread hasn't shown the last frame yet, the new frame is skipped, and its changes are drawn
+ * with the next one.
+ *
+ * Since it draws from snapshots, a renderer can be used from any thread, but only one thread
+ * should use a renderer.
+ */
+public class SpaceMapRenderer {
+    private final DisplaySource displaySource;
+    private final int height;
+    private final int width;
+    private final int cellSize; // pixels per space
+
+    private final Bitmap[] buffers;
+    // the snapshot each buffer was last drawn from
+    private final SpaceMapSnapshot[] drawnSnapshots;
+    private int backBuffer;
+    private SpaceMapSnapshot postedSnapshot;
+
+    // scratch block of pixels for one row of spaces
+    @ColorInt
+    private final int[] rowPixels;
+
+    /**
+     * Create a renderer for a spacemap
+     * @param displaySource the display to post frames to
+     * @param height the height of the spacemap
+     * @param width the width of the spacemap
+     * @param displaySize the largest size of the displayed image, in pixels. The image is the
+     *                    largest whole multiple of the spacemap's size that fits.
+     */
+    public SpaceMapRenderer(@NonNull DisplaySource displaySource, int height, int width, int displaySize) {
+        this.displaySource = displaySource;
+        this.height = height;
+        this.width = width;
+        this.cellSize = Math.max(1, displaySize / Math.max(height, width));
+        buffers = new Bitmap[] {
+                Bitmap.createBitmap(width * cellSize, height * cellSize, Bitmap.Config.ARGB_8888),
+                Bitmap.createBitmap(width * cellSize, height * cellSize, Bitmap.Config.ARGB_8888)
+        };
+        drawnSnapshots = new SpaceMapSnapshot[2];
+        rowPixels = new int[width * cellSize * cellSize];
+    }
+
+    /**
+     * Draws a snapshot and posts it to the display, unless it's already been posted or the display
+     * is still busy with the last frame
+     * @param snapshot the snapshot to draw
+     * @return true if a frame was posted
+     */
+    public boolean render(@NonNull SpaceMapSnapshot snapshot) {
+        if (snapshot == postedSnapshot || displaySource.isFramePending()) {
+            return false;
+        }
+        Bitmap bitmap = buffers[backBuffer];
+        drawChanges(bitmap, drawnSnapshots[backBuffer], snapshot);
+        drawnSnapshots[backBuffer] = snapshot;
+        postedSnapshot = snapshot;
+
+        displaySource.postImageView(bitmap);
+        backBuffer ^= 1;
+        return true;
+    }
+
+    /**
+     * Redraws the spaces that differ between two snapshots
+     * @param bitmap the bitmap to draw on, which currently shows the old snapshot
+     * @param oldSnapshot the snapshot the bitmap was drawn from, or null if it's blank
+     * @param newSnapshot the snapshot to draw
+     */
+    private void drawChanges(@NonNull Bitmap bitmap, @Nullable SpaceMapSnapshot oldSnapshot,
+                             @NonNull SpaceMapSnapshot newSnapshot) {
+        int rowStride = width * cellSize;
+        for (int r = 0; r < height; r++) {
+            if (!newSnapshot.isRowChangedSince(oldSnapshot, r)) {
+                continue;
+            }
+            // find the span of columns that changed so only that rectangle is redrawn
+            int firstCol = 0;
+            int lastCol = width - 1;
+            if (oldSnapshot != null) {
+                while (firstCol <= lastCol && oldSnapshot.getSpace(r, firstCol) == newSnapshot.getSpace(r, firstCol)) {
+                    firstCol++;
+                }
+                while (lastCol >= firstCol && oldSnapshot.getSpace(r, lastCol) == newSnapshot.getSpace(r, lastCol)) {
+                    lastCol--;
+                }
+                if (firstCol > lastCol) {
+                    continue;
+                }
+            }
+
+            for (int c = firstCol; c <= lastCol; c++) {
+                int color = newSnapshot.getSpace(r, c).getColor();
+                int start = c * cellSize;
+                for (int y = 0; y < cellSize; y++) {
+                    int lineStart = y * rowStride + start;
+                    for (int x = 0; x < cellSize; x++) {
+                        rowPixels[lineStart + x] = color;
+                    }
+                }
+            }
+            int offset = firstCol * cellSize;
+            bitmap.setPixels(rowPixels, offset, rowStride, offset, r * cellSize,
+                    (lastCol - firstCol + 1) * cellSize, cellSize);
+        }
+    }
+
+    public int getImageWidth() { return width * cellSize; }
+    public int getImageHeight() { return height * cellSize; }
+}
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Objects;
 
@@ -145,6 +146,45 @@ public class Visuals {
         return colorsToBitmap(colors, spaceMap.length, spaceMap[0].length);
     }
 
+    /**
+     * Converts a spacemap to a mutable bitmap with one pixel per space, reading directly from
+     * the packed map. The bitmap can then be kept up to date with
+     * {@link #updateSpaceMapBitmap(SpaceMap, Bitmap, long, BitSet, int[])}
+     * @param spaceMap the spacemap to convert
+     * @return the bitmap
+     */
+    @NonNull
+    public static Bitmap spaceMapToBitmap(@NonNull SpaceMap spaceMap) {
+        Bitmap bitmap = Bitmap.createBitmap(spaceMap.width, spaceMap.height, Bitmap.Config.ARGB_8888);
+        updateSpaceMapBitmap(spaceMap, bitmap, -1, new BitSet(spaceMap.height), new int[spaceMap.width]);
+        return bitmap;
+    }
+
+    /**
+     * Redraws only the rows of a spacemap bitmap that changed since a version
+     * @param spaceMap the spacemap the bitmap was made from
+     * @param bitmap a mutable bitmap with one pixel per space
+     * @param sinceVersion the spacemap version the bitmap was last updated at, or -1 to redraw
+     *                     the whole bitmap
+     * @param changedRows scratch bitset for the changed rows, reused between calls
+     * @param rowColors scratch array at least as long as the spacemap's width, reused between calls
+     * @return true if any rows were redrawn
+     */
+    public static boolean updateSpaceMapBitmap(@NonNull SpaceMap spaceMap, @NonNull Bitmap bitmap,
+                                               long sinceVersion, @NonNull BitSet changedRows,
+                                               @ColorInt @NonNull int[] rowColors) {
+        if (!spaceMap.getChangedRows(sinceVersion, changedRows)) {
+            return false;
+        }
+        for (int r = changedRows.nextSetBit(0); r >= 0; r = changedRows.nextSetBit(r + 1)) {
+            for (int c = 0; c < spaceMap.width; c++) {
+                rowColors[c] = spaceMap.getSpace(r, c).getColor();
+            }
+            bitmap.setPixels(rowColors, 0, spaceMap.width, 0, r, spaceMap.width, 1);
+        }
+        return true;
+    }
+
     /**
      * Converts a fieldmap to an image
      * First converts the fieldmap's space array to a 1d color array
@@ -154,12 +194,7 @@ public class Visuals {
      * @param filename the images filename
      */
     public static void fieldMapToImage(@NonNull FieldMap fieldMap, @NonNull String filename) {
-        SpaceMap.Space[][] spaceMap = fieldMap.getSpaceMap().getRawMap();
-        int xHeight = spaceMap.length;
-        int yWidth = spaceMap[0].length;
-
-        int[] colorArr = spaceArrayToColors(spaceMap);
-        Bitmap bitmap = colorsToBitmap(colorArr, yWidth, xHeight);
+        Bitmap bitmap = spaceMapToBitmap(fieldMap.getSpaceMap());
         captureBitmapToFile(bitmap, filename);
     }
 
@@ -0,0 +1,265 @@
+package localization;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The distance from every space in a SpaceMap to the nearest impassable space.
+ *
+ * Distances use the same units as the pathfinders, where moving one space straight costs 10 and
+ * moving one space diagonally costs 14, and are computed with a two pass chamfer distance
+ * transform. Impassable spaces have a clearance of 0. Clearances are capped at a maximum, since
+ * nothing cares how far away the nearest wall is once it's far enough.
+ *
+ * The cap is also what makes updates cheap. A changed space can only affect clearances within
+ * the cap of it, so when the spacemap changes only the band of rows around the changed rows is
+ * recomputed. The clearance map keeps track of the spacemap version it was last synced at and
+ * checks which rows actually changed passability, so syncing an unchanged map costs nothing.
+ *
+ * Get the clearance map for a spacemap with {@link SpaceMap#getClearanceMap()}, which syncs it
+ * before returning it.
+ */
+public class ClearanceMap {
+    public static final int defaultMaxClearance = 8; // spaces
+
+    private final SpaceMap spaceMap;
+    private final int width;
+    private final int height;
+    private final int maxClearanceSpaces;
+    private final int maxClearance;
+
+    private final int[] clearance;
+    // the spacemap's passability when it was last synced, so rows that changed without changing
+    // passability can be skipped
+    private final boolean[] passable;
+    private final BitSet changedRows;
+    private long syncedVersion = -1;
+
+    /**
+     * Create a clearance map for a spacemap with the default maximum clearance
+     * @param spaceMap the spacemap to track
+     */
+    public ClearanceMap(@NonNull SpaceMap spaceMap) {
+        this(spaceMap, defaultMaxClearance);
+    }
+
+    /**
+     * Create a clearance map for a spacemap
+     * @param spaceMap the spacemap to track
+     * @param maxClearanceSpaces the maximum clearance to compute, in spaces. Larger values make
+     *                           updates more expensive.
+     */
+    public ClearanceMap(@NonNull SpaceMap spaceMap, int maxClearanceSpaces) {
+        this.spaceMap = spaceMap;
+        this.width = spaceMap.width;
+        this.height = spaceMap.height;
+        this.maxClearanceSpaces = maxClearanceSpaces;
+        this.maxClearance = maxClearanceSpaces * GridPathfinder.straightCost;
+        clearance = new int[width * height];
+        passable = new boolean[width * height];
+        changedRows = new BitSet(height);
+    }
+
+    // region syncing
+
+    /**
+     * Brings the clearances up to date with the spacemap, recomputing only the rows that could
+     * have been affected by changes since the last sync
+     */
+    public void sync() {
+        if (syncedVersion < 0) {
+            readRows(0, height - 1);
+            computeRows(0, height - 1);
+            syncedVersion = spaceMap.getVersion();
+            return;
+        }
+        if (!spaceMap.getChangedRows(syncedVersion, changedRows)) {
+            return;
+        }
+        syncedVersion = spaceMap.getVersion();
+
+        // only keep rows where passability actually changed
+        for (int r = changedRows.nextSetBit(0); r >= 0; r = changedRows.nextSetBit(r + 1)) {
+            if (!readRows(r, r)) {
+                changedRows.clear(r);
+            }
+        }
+
+        // recompute each band of rows within the cap of a change, merging overlapping bands
+        int bandStart = -1;
+        int bandEnd = -1;
+        for (int r = changedRows.nextSetBit(0); r >= 0; r = changedRows.nextSetBit(r + 1)) {
+            int start = Math.max(0, r - maxClearanceSpaces);
+            int end = Math.min(height - 1, r + maxClearanceSpaces);
+            if (bandStart >= 0 && start <= bandEnd + 1) {
+                bandEnd = end;
+            } else {
+                if (bandStart >= 0) {
+                    computeRows(bandStart, bandEnd);
+                }
+                bandStart = start;
+                bandEnd = end;
+            }
+        }
+        if (bandStart >= 0) {
+            computeRows(bandStart, bandEnd);
+        }
+    }
+
+    /**
+     * Copies the spacemap's passability for a range of rows
+     * @param startRow the first row to copy
+     * @param endRow the last row to copy, inclusive
+     * @return true if any space's passability changed
+     */
+    private boolean readRows(int startRow, int endRow) {
+        boolean changed = false;
+        for (int r = startRow; r <= endRow; r++) {
+            int rowStart = r * width;
+            for (int c = 0; c < width; c++) {
+                boolean nowPassable = spaceMap.isPassable(r, c);
+                if (passable[rowStart + c] != nowPassable) {
+                    passable[rowStart + c] = nowPassable;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Runs the chamfer transform over a band of rows.
+     * The rows directly above and below the band are used as they are, which is correct because
+     * they're more than the cap away from any change.
+     * @param startRow the first row to compute
+     * @param endRow the last row to compute, inclusive
+     */
+    private void computeRows(int startRow, int endRow) {
+        int straight = GridPathfinder.straightCost;
+        int diagonal = GridPathfinder.diagonalCost;
+
+        for (int r = startRow; r <= endRow; r++) {
+            int rowStart = r * width;
+            for (int c = 0; c < width; c++) {
+                clearance[rowStart + c] = passable[rowStart + c] ? maxClearance : 0;
+            }
+        }
+
+        // forward pass, from the top left
+        for (int r = startRow; r <= endRow; r++) {
+            int index = r * width;
+            boolean hasAbove = r > 0;
+            for (int c = 0; c < width; c++, index++) {
+                int value = clearance[index];
+                if (value == 0) {
+                    continue;
+                }
+                if (c > 0) {
+                    value = Math.min(value, clearance[index - 1] + straight);
+                }
+                if (hasAbove) {
+                    int above = index - width;
+                    value = Math.min(value, clearance[above] + straight);
+                    if (c > 0) {
+                        value = Math.min(value, clearance[above - 1] + diagonal);
+                    }
+                    if (c < width - 1) {
+                        value = Math.min(value, clearance[above + 1] + diagonal);
+                    }
+                }
+                clearance[index] = value;
+            }
+        }
+
+        // backward pass, from the bottom right
+        for (int r = endRow; r >= startRow; r--) {
+            int index = r * width + width - 1;
+            boolean hasBelow = r < height - 1;
+            for (int c = width - 1; c >= 0; c--, index--) {
+                int value = clearance[index];
+                if (value == 0) {
+                    continue;
+                }
+                if (c < width - 1) {
+                    value = Math.min(value, clearance[index + 1] + straight);
+                }
+                if (hasBelow) {
+                    int below = index + width;
+                    value = Math.min(value, clearance[below] + straight);
+                    if (c > 0) {
+                        value = Math.min(value, clearance[below - 1] + diagonal);
+                    }
+                    if (c < width - 1) {
+                        value = Math.min(value, clearance[below + 1] + diagonal);
+                    }
+                }
+                clearance[index] = value;
+            }
+        }
+    }
+
+    /**
+     * Throws away all clearances and recomputes them on the next sync
+     */
+    public void invalidate() {
+        syncedVersion = -1;
+        Arrays.fill(passable, false);
+    }
+
+    // endregion syncing
+
+    // region queries
+
+    /**
+     * Gets the distance from a space to the nearest impassable space, as of the last sync
+     * @param row the row of the space
+     * @param col the column of the space
+     * @return the clearance, where one space is {@link GridPathfinder#straightCost}. Capped at
+     * {@link #getMaxClearance()}.
+     */
+    public int getClearance(int row, int col) {
+        return clearance[row * width + col];
+    }
+
+    /**
+     * Determines whether a space is at least some distance from every impassable space
+     * @param row the row of the space
+     * @param col the column of the space
+     * @param minClearance the minimum clearance, where one space is {@link GridPathfinder#straightCost}
+     * @return true if the space has at least the minimum clearance
+     */
+    public boolean hasClearance(int row, int col, int minClearance) {
+        return clearance[row * width + col] >= minClearance;
+    }
+
+    /**
+     * Determines whether a round footprint centered on a space overlaps any impassable space.
+     * @param row the row of the center space
+     * @param col the column of the center space
+     * @param radiusSpaces the radius of the footprint, in spaces. Should be less than the maximum
+     *                     clearance, since every clearance at the cap is treated as clear.
+     * @return true if every impassable space is further than the radius from the center
+     */
+    public boolean isFootprintClear(int row, int col, int radiusSpaces) {
+        return clearance[row * width + col] > radiusSpaces * GridPathfinder.straightCost;
+    }
+
+    /**
+     * Converts a distance in millimeters to clearance units, rounding up
+     * @param millimeters the distance in millimeters
+     * @param scale the size of each space in millimeters, from {@link FieldMap#getScale()}
+     * @return the clearance
+     */
+    public static int millimetersToClearance(double millimeters, int scale) {
+        return (int) Math.ceil(millimeters * GridPathfinder.straightCost / scale);
+    }
+
+    public int getMaxClearance() { return maxClearance; }
+
+    @NonNull
+    public SpaceMap getSpaceMap() { return spaceMap; }
+
+    // endregion queries
+}
@@ -31,6 +31,11 @@ public class CoordinateUtils {
 
     private static final String TAG = "vuf.test.coordinate_utils";
     public static final long nanoToMilli = 1000000;
+    // rough time from a webcam frame being captured to it being readable, either as vuforia poses
+    // or in a pipeline. subtracted from System.nanoTime() when a frame is read, so timestamps from
+    // both are estimated capture times and can be looked up in the same pose history. measure by
+    // turning in place and checking where fixes and detections land
+    public static final long cameraLatency = 100 * nanoToMilli;
 
     // region merge coordinate forms
 
@@ -131,11 +136,12 @@ public class CoordinateUtils {
     @NonNull
     @FieldCoordinates
     protected static int[] convertGLtoInt(@NonNull @FieldCoordinates OpenGLMatrix matrix) {
-        VectorF transformation = matrix.getTranslation();
-        // x and y are 0 and 1, z is 2 but we dont need z
+        // read the translation straight out of the column major data instead of making a vector
+        // x and y are 12 and 13, z is 14 but we dont need z
+        float[] data = matrix.getData();
         int[] transformationArr = new int[2];
-        transformationArr[0] = Math.round(transformation.get(0));
-        transformationArr[1] = Math.round(transformation.get(1));
+        transformationArr[0] = Math.round(data[12]);
+        transformationArr[1] = Math.round(data[13]);
 
         return transformationArr;
     }
@@ -197,13 +203,13 @@ public class CoordinateUtils {
 //        Log.d(TAG, String.format("Transformations: straight: %s, side: %s", distances[0], distances[1]));
         // We need to get a the robot's translation and directly add our values onto it
         // why? idk, .translate() wasnt working and this was
-        VectorF startTranslation = startPosition.getTranslation();
+        float[] startData = startPosition.getData();
         // camera pos needs to be factored in here, probably instead of the robot position
 
         // minus straight -> forward
-        float newX = startTranslation.get(0) - (float) distances[0];
+        float newX = startData[12] - (float) distances[0];
         // minus side -> left
-        float newY = startTranslation.get(1) - (float) distances[1];
+        float newY = startData[13] - (float) distances[1];
         // make a new matrix with the recognitions position irrespective of the robot's angle
         OpenGLMatrix positionMatrix = OpenGLMatrix.translation(newX, newY, 0);
         return positionMatrix;
@@ -333,17 +339,39 @@ public class CoordinateUtils {
             @NonNull @FieldCoordinates OpenGLMatrix cameraPosition,
             @NonNull @FieldCoordinates @DistanceValues double[] distances) {
 
-        Log.d(FieldMap.TAG, "Robot position: " + VuforiaManager.format(cameraPosition));
-        OpenGLMatrix positionMatrix = translateMatrix(cameraPosition, distances);
-        Log.d(FieldMap.TAG, String.format("Distances {straight, side}: {%s, %s}", distances[0], distances[1]));
-        // get robot rotation
-        Log.d(FieldMap.TAG, "Translated, unrotated: " + VuforiaManager.format(positionMatrix));
-        // rotate the recognition position to correspond with the camera's angle
-        OpenGLMatrix rotationMatrix = getPointRotationMatrix(cameraPosition, false);
-        positionMatrix = rotationMatrix.multiplied(positionMatrix);
+        // translating and then rotating around the camera is the same as rotating the distances
+        // by the camera's heading, so it's done with the primitive kernel instead of 5 matrices
+        float[] cameraData = cameraPosition.getData();
+        double heading = TransformKernel.getHeading(cameraData);
+        float[] x = new float[] {(float) distances[0]};
+        float[] y = new float[] {(float) distances[1]};
+        TransformKernel.distancesToField(cameraData[12], cameraData[13], heading, x, y, 1, x, y);
+
+        // the result also has the camera's heading, like the rotated matrix used to
+        float[] positionData = new float[16];
+        TransformKernel.setPlanarPose(positionData, x[0], y[0], heading);
+        return new OpenGLMatrix(positionData);
+    }
 
-        Log.d(FieldMap.TAG, "Rotated: " + VuforiaManager.format(positionMatrix));
-        return positionMatrix;
+    /**
+     * Convert a batch of field distance values to field coordinates without making any matrices.
+     * See {@link #convertDistancesToFieldPosition(OpenGLMatrix, double[])} for how it works.
+     * The outputs can be the same arrays as the inputs.
+     *
+     * @param cameraPosition the position of the camera, in field coordinates
+     * @param straights      the straight distance to each point
+     * @param sides          the side distance to each point
+     * @param count          the number of points to convert
+     * @param xOut           the field x coordinate of each point
+     * @param yOut           the field y coordinate of each point
+     */
+    protected static void convertDistancesToFieldPositions(
+            @NonNull @FieldCoordinates OpenGLMatrix cameraPosition,
+            @NonNull @DistanceValues float[] straights, @NonNull @DistanceValues float[] sides, int count,
+            @NonNull @FieldCoordinates float[] xOut, @NonNull @FieldCoordinates float[] yOut) {
+        float[] cameraData = cameraPosition.getData();
+        TransformKernel.distancesToField(cameraData[12], cameraData[13], TransformKernel.getHeading(cameraData),
+                straights, sides, count, xOut, yOut);
     }
 
     public static String rectToString(RectF rect) {
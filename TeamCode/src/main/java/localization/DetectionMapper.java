@@ -2,15 +2,18 @@ package localization;
 
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.firstinspires.ftc.robotcore.external.Function;
 import org.firstinspires.ftc.robotcore.external.matrices.OpenGLMatrix;
 import org.firstinspires.ftc.robotcore.external.matrices.VectorF;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
@@ -18,6 +21,7 @@ import java.util.Objects;
 import annotations.FieldCoordinates;
 import annotations.MatrixCoordinates;
 import localization.SpaceMap.Space;
+import util.IntList;
 
 /**
  * A class for managing recognitions which are actually mapped onto the field.
@@ -26,48 +30,138 @@ import localization.SpaceMap.Space;
  */
 public class DetectionMapper {
     private static final String TAG = "vuf.test.det_mapper";
+    // the size of one detection in a map log
+    static final int recordedDetectionBytes = 14;
     private final List<MappedDetection> mappedList;
 
+    // mapped detections bucketed by the square of the field they're in, so proximity checks only
+    // look at the neighboring squares instead of every mapped detection
+    private final CellIndex proximityIndex;
+    // mapped detections bucketed by matrix position, for finding conflicts
+    private final CellIndex matrixIndex;
+    private final ArrayList<MappedDetection> nearbyDetections;
+    // scratch list for removed positions, reused so the update doesn't allocate
+    private final IntList underConfidentPositions;
+    // optional probabilistic layer fed by the same detections
+    private OccupancyGrid occupancyGrid;
+    // goes up every time the mapped detections might have changed
+    private int updateCount;
+
     public DetectionMapper() {
         mappedList = new ArrayList<>();
+        proximityIndex = new CellIndex();
+        matrixIndex = new CellIndex();
+        nearbyDetections = new ArrayList<>();
+        underConfidentPositions = new IntList();
     }
 
     /**
      * Updates the detection mapper with a list of potential detections.
      * Mapped detections that are close to new detections will have their position updated, and
      * detections with conflicts will be overridden.
+     *
+     * This allocates new lists every call. Use {@link #update(List, UpdateBuffers)} in loops.
      * @param potentialList the list of potential detections to update the mapper with
      * @return an arraylist and a hashmap. The arraylist is the list of coordinates to remove, while the
      * hashmap is the coordinates to add with their corresponding space
      */
     @NonNull
     public Pair<ArrayList<int[]>, HashMap<Space, ArrayList<int[]>>> update(@NonNull List<PotentialDetection> potentialList) {
-        List<int[]> underConfidentList = removeUnderConfident();
-        ArrayList<int[]> removedList = updateMappedRecognitions(potentialList);
-        removedList.addAll(underConfidentList);
-        HashMap<Space, ArrayList<int[]>> coordMap = mapMappedRecognitions();
+        UpdateBuffers buffers = new UpdateBuffers();
+        update(potentialList, buffers);
+
+        ArrayList<int[]> removedList = toCoordsList(buffers.getRemoved());
+        HashMap<Space, ArrayList<int[]>> coordMap = new HashMap<>();
+        for (Space space : Space.values()) {
+            IntList addedPositions = buffers.getAdded(space);
+            if (!addedPositions.isEmpty()) {
+                coordMap.put(space, toCoordsList(addedPositions));
+            }
+        }
         return new Pair<>(removedList, coordMap);
     }
 
+    /**
+     * Updates the detection mapper with a list of potential detections, writing the changes into
+     * reusable buffers instead of allocating new lists.
+     * Once the mapper has seen the detections once, this doesn't allocate anything, so it's safe to
+     * call every loop.
+     * @param potentialList the list of potential detections to update the mapper with. This should
+     *                      be a random access list like an ArrayList.
+     * @param buffers the buffers to write the removed and added matrix positions to. They're
+     *                cleared first.
+     */
+    public void update(@NonNull List<PotentialDetection> potentialList, @NonNull UpdateBuffers buffers) {
+        buffers.clear();
+        addOccupancyHits(potentialList);
+        underConfidentPositions.clear();
+        removeUnderConfident(underConfidentPositions);
+        updateMappedRecognitions(potentialList, buffers.removed);
+        buffers.removed.addAll(underConfidentPositions);
+        mapMappedRecognitions(buffers);
+        updateCount++;
+    }
+
+    /**
+     * Sets an occupancy grid to feed with detections as well as the confidence counters.
+     * Every potential detection with the grid's space is added as a hit, and every mapped
+     * detection found to be gone in {@link #markDisappearances(Function)} is added as a miss.
+     * The grid still needs to be integrated and applied by the caller each frame.
+     * @param occupancyGrid the grid to feed, or null to stop feeding a grid
+     */
+    public void setOccupancyGrid(@Nullable OccupancyGrid occupancyGrid) {
+        this.occupancyGrid = occupancyGrid;
+    }
+
+    /**
+     * Adds each potential detection to the occupancy grid, if there is one
+     * @param potentialList the potential detections to add
+     */
+    private void addOccupancyHits(@NonNull List<PotentialDetection> potentialList) {
+        if (occupancyGrid == null) {
+            return;
+        }
+        for (int i = 0; i < potentialList.size(); i++) {
+            PotentialDetection potentialDetection = potentialList.get(i);
+            if (potentialDetection.getSpace() == occupancyGrid.getOccupiedSpace()) {
+                int[] matrixPosition = potentialDetection.getMatrixPosition();
+                occupancyGrid.addHit(matrixPosition[0], matrixPosition[1]);
+            }
+        }
+    }
+
+    /**
+     * Converts a list of {row, column} pairs to a list of coordinate arrays
+     * @param coordPairs the pairs to convert
+     * @return the list of coordinates
+     */
+    @NonNull
+    @MatrixCoordinates
+    private static ArrayList<int[]> toCoordsList(@NonNull IntList coordPairs) {
+        ArrayList<int[]> coordsList = new ArrayList<>(coordPairs.size() / 2);
+        for (int i = 0; i < coordPairs.size(); i += 2) {
+            coordsList.add(new int[] {coordPairs.get(i), coordPairs.get(i+1)});
+        }
+        return coordsList;
+    }
+
     /**
      * Remove all mapped coordinates that are below the confidence threshold.
      * Remove mapped detections from the list that are below the confidence minimum
-     * @return the list of all removed matrix positions
+     * @param removedOut the list to add all removed matrix positions to, as {row, column} pairs
      */
-    @NonNull
-    private List<int[]> removeUnderConfident() {
-        List<int[]> removedCoords = new ArrayList<>();
+    private void removeUnderConfident(@NonNull IntList removedOut) {
         for (int i = 0; i < mappedList.size(); i++) {
             MappedDetection mappedDetection = mappedList.get(i);
             if (!mappedDetection.isConfident()) {
-                removedCoords.add(mappedDetection.getMatrixPosition());
+                int[] matrixPosition = mappedDetection.getMatrixPosition();
+                removedOut.addPair(matrixPosition[0], matrixPosition[1]);
                 if (mappedDetection.isUnderConfident()) {
-                    mappedList.remove(i);
+                    removeMapped(i);
                     i--;
                 }
             }
         }
-        return removedCoords;
     }
 
     /**
@@ -78,63 +172,114 @@ public class DetectionMapper {
      * If they're of different types and occupy the same space, there can be two separate recognitions
      * and whichever has a higher confidence will be mapped.
      * @param potentialList the list of potential recognitions to check
-     * @return the list of removed matrix positions
+     * @param removedOut the list to add removed matrix positions to, as {row, column} pairs
      */
-    @NonNull
-    private ArrayList<int[]> updateMappedRecognitions(@NonNull List<PotentialDetection> potentialList) {
-        ArrayList<int[]> removedPositions = new ArrayList<>();
-        // loop through all potentials and all mapped
-        for (PotentialDetection potentialDetection : potentialList) {
-            for (MappedDetection mappedDetection : mappedList) {
-                int[] removedPos = updateIfClose(mappedDetection, potentialDetection);
-                if (removedPos != null) {
-                    removedPositions.add(removedPos);
-                }
+    private void updateMappedRecognitions(@NonNull List<PotentialDetection> potentialList,
+                                          @NonNull IntList removedOut) {
+        // loop through all potentials and the mapped detections near them
+        for (int p = 0; p < potentialList.size(); p++) {
+            PotentialDetection potentialDetection = potentialList.get(p);
+            findNearby(potentialDetection.getFieldX(), potentialDetection.getFieldY(), nearbyDetections);
+            for (int i = 0; i < nearbyDetections.size(); i++) {
+                MappedDetection mappedDetection = nearbyDetections.get(i);
+                updateIfClose(mappedDetection, potentialDetection, removedOut);
+                reindexMapped(mappedDetection);
             }
             if (!potentialDetection.isPotentialUsed()) {
-                mappedList.add(new MappedDetection(potentialDetection));
+                addMapped(new MappedDetection(potentialDetection));
             }
         }
-        return removedPositions;
+    }
+
+    /**
+     * Finds all mapped detections that could be within proximity range of a field position.
+     * Anything within range has to be in the same square of the field or one of the 8 around it.
+     * @param fieldX the x field coordinate to check around
+     * @param fieldY the y field coordinate to check around
+     * @param nearbyOut the list to put the nearby detections in. It's cleared first.
+     */
+    private void findNearby(@FieldCoordinates float fieldX, @FieldCoordinates float fieldY,
+                            @NonNull ArrayList<MappedDetection> nearbyOut) {
+        nearbyOut.clear();
+        int row = MappedDetection.toProximityCell(fieldX);
+        int col = MappedDetection.toProximityCell(fieldY);
+        for (int dRow = -1; dRow <= 1; dRow++) {
+            for (int dCol = -1; dCol <= 1; dCol++) {
+                proximityIndex.collect(CellIndex.toKey(row + dRow, col + dCol), nearbyOut);
+            }
+        }
+    }
+
+    /**
+     * Adds a mapped detection to the mapped list and the indices
+     * @param mappedDetection the detection to add
+     */
+    private void addMapped(@NonNull MappedDetection mappedDetection) {
+        mappedList.add(mappedDetection);
+        proximityIndex.add(mappedDetection.getProximityKey(), mappedDetection);
+        matrixIndex.add(mappedDetection.getMatrixKey(), mappedDetection);
+        mappedDetection.setIndexedKeys();
+    }
+
+    /**
+     * Removes a mapped detection from the mapped list and the indices
+     * @param listIndex the detection's index in the mapped list
+     */
+    private void removeMapped(int listIndex) {
+        MappedDetection mappedDetection = mappedList.remove(listIndex);
+        proximityIndex.remove(mappedDetection.getIndexedProximityKey(), mappedDetection);
+        matrixIndex.remove(mappedDetection.getIndexedMatrixKey(), mappedDetection);
+    }
+
+    /**
+     * Moves a mapped detection to the correct buckets if its position changed
+     * @param mappedDetection the detection to reindex
+     */
+    private void reindexMapped(@NonNull MappedDetection mappedDetection) {
+        if (mappedDetection.getProximityKey() != mappedDetection.getIndexedProximityKey()) {
+            proximityIndex.remove(mappedDetection.getIndexedProximityKey(), mappedDetection);
+            proximityIndex.add(mappedDetection.getProximityKey(), mappedDetection);
+        }
+        if (mappedDetection.getMatrixKey() != mappedDetection.getIndexedMatrixKey()) {
+            matrixIndex.remove(mappedDetection.getIndexedMatrixKey(), mappedDetection);
+            matrixIndex.add(mappedDetection.getMatrixKey(), mappedDetection);
+        }
+        mappedDetection.setIndexedKeys();
     }
 
     /**
      * Updates the mapped recognition if its close to and of the same type as a potential recognition.
      * If updated, sets the potential as used.
      * @param potentialDetection the other recognition to check
-     * @return returns the old matrix position if it was updated, otherwise null
+     * @param removedOut the list to add the old matrix position to if it was changed
      */
-    private int[] updateIfClose(@NonNull MappedDetection mappedDetection, @NonNull PotentialDetection potentialDetection) {
-        if (mappedDetection.withinProximityRange(potentialDetection.getFieldPosition())) {
+    private void updateIfClose(@NonNull MappedDetection mappedDetection,
+                               @NonNull PotentialDetection potentialDetection,
+                               @NonNull IntList removedOut) {
+        if (mappedDetection.withinProximityRange(potentialDetection.getFieldX(), potentialDetection.getFieldY())) {
             // if they have the same space, update
             if (potentialDetection.getSpace() == mappedDetection.getSpace()) {
                 // if theyre the same, then the recognition is confirmed so we add confidence
                 mappedDetection.increaseConfidence();
                 potentialDetection.setPotentialUsed();
-                return mappedDetection.updateWithPotential(potentialDetection);
+                mappedDetection.updateWithPotential(potentialDetection, removedOut);
             }
         }
-        return null;
     }
 
     /**
      * Maps all the mapped recognitions to a space if they're confident enough to be mapped.
-     * @return a hashmap of a space with the coordinates mapped to it
+     * @param buffers the buffers to add the mapped positions to
      */
-    @NonNull
-    private HashMap<Space, ArrayList<int[]>> mapMappedRecognitions() {
-        HashMap<Space, ArrayList<int[]>> coordMap = new HashMap<>();
-        for (MappedDetection mappedDetection : mappedList) {
+    private void mapMappedRecognitions(@NonNull UpdateBuffers buffers) {
+        for (int i = 0; i < mappedList.size(); i++) {
+            MappedDetection mappedDetection = mappedList.get(i);
             // check if they should be mapped
             if (shouldMap(mappedDetection)) {
-                Space space = mappedDetection.getSpace();
-                coordMap.putIfAbsent(space, new ArrayList<>());
-                // add coords to list
-                Objects.requireNonNull(
-                        coordMap.get(space)).add(mappedDetection.getMatrixPosition());
+                int[] matrixPosition = mappedDetection.getMatrixPosition();
+                buffers.getAdded(mappedDetection.getSpace()).addPair(matrixPosition[0], matrixPosition[1]);
             }
         }
-        return coordMap;
     }
 
     /**
@@ -151,10 +296,13 @@ public class DetectionMapper {
         if (!mappedDetection.isConfident()) {
             return false;
         }
-        for (MappedDetection otherDetection : mappedList) {
+        // only detections in the same bucket can have the same matrix position
+        ArrayList<MappedDetection> bucket = matrixIndex.get(mappedDetection.getIndexedMatrixKey());
+        for (int i = 0; bucket != null && i < bucket.size(); i++) {
+            MappedDetection otherDetection = bucket.get(i);
             if (!mappedDetection.equals(otherDetection) && // if they're the same, skip
                     // if the matrix positions are the same, compare confidences
-                    Arrays.equals(mappedDetection.getMatrixPosition(), otherDetection.getMatrixPosition())) {
+                    mappedDetection.hasSameMatrixPosition(otherDetection)) {
                 // if this confidence is greater than the other one, map it
                 return mappedDetection.getConfidence() >= otherDetection.getConfidence();
             }
@@ -167,17 +315,75 @@ public class DetectionMapper {
      * @param isDetectionGone the function to use to check if the recognition is still present
      */
     public void markDisappearances(Function<OpenGLMatrix, Boolean> isDetectionGone) {
+        markDisappearances(isDetectionGone, null);
+    }
+
+    /**
+     * Remove mapped recognitions if they're no longer present, but only check the ones the camera
+     * could actually see. A detection that's outside the camera's view or hidden behind an
+     * obstacle wasn't detected because it couldn't be, so its confidence is left alone.
+     * @param isDetectionGone the function to use to check if the recognition is still present
+     * @param visibility a ray caster that's had the camera's frustum cast this frame, or null to
+     *                   check every detection
+     */
+    public void markDisappearances(Function<OpenGLMatrix, Boolean> isDetectionGone,
+                                   @Nullable RayCaster visibility) {
         // loop through mapped list
         for (int i = 0; i < mappedList.size(); i++) {
             MappedDetection mappedDetection = mappedList.get(i);
+            if (visibility != null && !visibility.isVisible(mappedDetection.getMatrixPosition())) {
+                continue;
+            }
             // check if the detection is gone
             if (isDetectionGone.apply(mappedDetection.getFieldPosition())) {
                 // if its gone, decrease its confidence
                 mappedDetection.decreaseConfidence();
+                if (occupancyGrid != null && mappedDetection.getSpace() == occupancyGrid.getOccupiedSpace()) {
+                    int[] matrixPosition = mappedDetection.getMatrixPosition();
+                    occupancyGrid.addMiss(matrixPosition[0], matrixPosition[1]);
+                }
             }
         }
+        updateCount++;
+    }
+
+
+    /**
+     * Gets the number of detections currently mapped
+     * @return the number of mapped detections
+     */
+    public int getMappedCount() {
+        return mappedList.size();
     }
 
+    /**
+     * Gets the number of times the mapped detections were updated. If it's the same as before,
+     * none of the detections changed since then.
+     * @return the update count
+     */
+    public int getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * Writes every mapped detection to a buffer for a {@link MapRecorder} log.
+     * Each detection is {@link #recordedDetectionBytes} long: the space's ordinal as a byte, the
+     * field x and y as floats, the matrix row and column as shorts, and the confidence as a byte.
+     * @param buffer the buffer to write to, with at least
+     *               {@link #getMappedCount()} * {@link #recordedDetectionBytes} bytes left
+     */
+    void writeMappedDetections(@NonNull ByteBuffer buffer) {
+        for (int i = 0; i < mappedList.size(); i++) {
+            MappedDetection mappedDetection = mappedList.get(i);
+            int[] matrixPosition = mappedDetection.getMatrixPosition();
+            buffer.put((byte) mappedDetection.getSpace().ordinal());
+            buffer.putFloat(mappedDetection.fieldX);
+            buffer.putFloat(mappedDetection.fieldY);
+            buffer.putShort((short) matrixPosition[0]);
+            buffer.putShort((short) matrixPosition[1]);
+            buffer.put((byte) mappedDetection.getConfidence());
+        }
+    }
 
     /**
      * A class for managing recognitions that are mapped out on the fieldmap
@@ -186,12 +392,22 @@ public class DetectionMapper {
         private static final String TAG = "vuf.test.field_rec";
         private static final int confidenceThreshold = 4;
         private static final int maxConfidence = 10;
-        private static final int proximityRange = FieldMap.getScale();
+        // in mm. Kept at the default space size even on finer maps, since detections jitter by
+        // about this much between frames no matter how small the spaces are
+        private static final int proximityRange = FieldMap.defaultScale;
         private final Space space;
         private OpenGLMatrix fieldPosition;
-        private int[] matrixPosition;
+        // cached from the field position so comparisons dont need to allocate a translation
+        private float fieldX;
+        private float fieldY;
+        // owned by this detection and updated in place
+        private final int[] matrixPosition;
         private int confidence;
 
+        // the keys this detection is currently stored under in the indices
+        private int indexedProximityKey;
+        private int indexedMatrixKey;
+
         /**
          * Initialize a mapped recognition
          * @param fieldPosition the field position of the recognition
@@ -202,7 +418,10 @@ public class DetectionMapper {
                                @MatrixCoordinates @NonNull int[] matrixPosition,
                                @NonNull Space space) {
             this.fieldPosition = fieldPosition;
-            this.matrixPosition = matrixPosition;
+            VectorF translation = fieldPosition.getTranslation();
+            this.fieldX = translation.get(0);
+            this.fieldY = translation.get(1);
+            this.matrixPosition = matrixPosition.clone();
             this.space = space;
         }
 
@@ -220,15 +439,14 @@ public class DetectionMapper {
 
         /**
          * Determine if another set of field coordinates is within the range of these coordinates
-         * @param otherFieldPos the other field coordinates to test
+         * @param otherX the other x field coordinate to test
+         * @param otherY the other y field coordinate to test
          * @return true if within range, otherwise false
          */
-        private boolean withinProximityRange(@FieldCoordinates @NonNull OpenGLMatrix otherFieldPos) {
-            VectorF currentTranslation = fieldPosition.getTranslation();
-            VectorF newTranslation = otherFieldPos.getTranslation();
-            if (Math.abs(currentTranslation.get(0) - newTranslation.get(0)) <= proximityRange) {
+        private boolean withinProximityRange(@FieldCoordinates float otherX, @FieldCoordinates float otherY) {
+            if (Math.abs(fieldX - otherX) <= proximityRange) {
                 Log.d(TAG, "X is within range");
-                if (Math.abs(currentTranslation.get(1) - newTranslation.get(1)) <= proximityRange) {
+                if (Math.abs(fieldY - otherY) <= proximityRange) {
                     Log.d(TAG, "Y is within range");
                     return true;
                 }
@@ -239,20 +457,69 @@ public class DetectionMapper {
         /**
          * Update this position with a potential detection's position
          * @param potentialDetection the potential detection to update with
-         * @return the old matrix position if it was changed or the space was changed, otherwise null
+         * @param removedOut the list to add the old matrix position to if it was changed
          */
-        private int[] updateWithPotential(PotentialDetection potentialDetection) {
+        private void updateWithPotential(@NonNull PotentialDetection potentialDetection,
+                                         @NonNull IntList removedOut) {
             this.fieldPosition = potentialDetection.getFieldPosition();
+            this.fieldX = potentialDetection.getFieldX();
+            this.fieldY = potentialDetection.getFieldY();
             int[] potentialPos = potentialDetection.getMatrixPosition();
 
-            if (!Arrays.equals(matrixPosition, potentialPos)) {
-                int[] oldPos = matrixPosition;
-                this.matrixPosition = potentialPos;
-                return oldPos;
+            if (matrixPosition[0] != potentialPos[0] || matrixPosition[1] != potentialPos[1]) {
+                removedOut.addPair(matrixPosition[0], matrixPosition[1]);
+                matrixPosition[0] = potentialPos[0];
+                matrixPosition[1] = potentialPos[1];
             }
-            return null;
         }
 
+        /**
+         * Determine if another mapped detection is at the same matrix position as this one
+         * @param other the other detection
+         * @return true if the matrix positions are the same
+         */
+        private boolean hasSameMatrixPosition(@NonNull MappedDetection other) {
+            return matrixPosition[0] == other.matrixPosition[0] && matrixPosition[1] == other.matrixPosition[1];
+        }
+
+        /**
+         * Converts a field coordinate to the square of the field it's in for the proximity index.
+         * The squares are as wide as the proximity range, so anything in range of a position
+         * is in the same square or a neighboring one.
+         * @param fieldCoordinate the x or y field coordinate
+         * @return the row or column of the square
+         */
+        private static int toProximityCell(float fieldCoordinate) {
+            return (int) Math.floor(fieldCoordinate / proximityRange);
+        }
+
+        /**
+         * Gets the key of the square of the field this detection is in
+         * @return the proximity index key
+         */
+        private int getProximityKey() {
+            return CellIndex.toKey(toProximityCell(fieldX), toProximityCell(fieldY));
+        }
+
+        /**
+         * Gets the key of this detection's matrix position
+         * @return the matrix index key
+         */
+        private int getMatrixKey() {
+            return CellIndex.toKey(matrixPosition[0], matrixPosition[1]);
+        }
+
+        /**
+         * Saves the current keys as the keys this detection is indexed under
+         */
+        private void setIndexedKeys() {
+            indexedProximityKey = getProximityKey();
+            indexedMatrixKey = getMatrixKey();
+        }
+
+        private int getIndexedProximityKey() { return indexedProximityKey; }
+        private int getIndexedMatrixKey() { return indexedMatrixKey; }
+
         public Space getSpace() { return space; }
         public int[] getMatrixPosition() { return matrixPosition; }
         public OpenGLMatrix getFieldPosition() { return fieldPosition; }
@@ -265,11 +532,119 @@ public class DetectionMapper {
 
     }
 
+    /**
+     * Reusable buffers for the results of {@link #update(List, UpdateBuffers)}.
+     * Matrix positions are stored as {row, column} pairs in primitive lists, so position i is at
+     * indices 2i and 2i+1. Make one of these and reuse it for every update.
+     */
+    public static class UpdateBuffers {
+        private final IntList removed;
+        private final EnumMap<Space, IntList> added;
+
+        public UpdateBuffers() {
+            removed = new IntList();
+            added = new EnumMap<>(Space.class);
+            for (Space space : Space.values()) {
+                added.put(space, new IntList());
+            }
+        }
+
+        /**
+         * Clears all buffers without releasing their memory
+         */
+        public void clear() {
+            removed.clear();
+            for (IntList positions : added.values()) {
+                positions.clear();
+            }
+        }
+
+        /**
+         * Applies the update to a spacemap, clearing the removed positions and then setting the
+         * added ones. Static spaces are never changed.
+         * @param spaceMap the spacemap to apply the update to
+         */
+        public void applyTo(@NonNull SpaceMap spaceMap) {
+            spaceMap.clearSpace(removed, false);
+            for (int i = 0; i < Space.count; i++) {
+                Space space = Space.fromOrdinal(i);
+                spaceMap.setSpace(space, Objects.requireNonNull(added.get(space)), false);
+            }
+        }
+
+        /**
+         * Gets the matrix positions to remove from the map
+         * @return the removed positions as {row, column} pairs
+         */
+        @NonNull
+        public IntList getRemoved() { return removed; }
+
+        /**
+         * Gets the matrix positions to map as a space
+         * @param space the space to get the positions for
+         * @return the added positions as {row, column} pairs
+         */
+        @NonNull
+        public IntList getAdded(@NonNull Space space) { return Objects.requireNonNull(added.get(space)); }
+    }
+
+    /**
+     * A spatial hash of mapped detections, bucketed by grid cell.
+     * Empty buckets are kept rather than removed so they can be reused without allocating.
+     */
+    private static class CellIndex {
+        private final SparseArray<ArrayList<MappedDetection>> buckets = new SparseArray<>();
+
+        /**
+         * Packs a row and column into a single key
+         * @param row the row of the cell, can be negative
+         * @param col the column of the cell, can be negative
+         * @return the key for the cell
+         */
+        private static int toKey(int row, int col) {
+            return (row << 16) | (col & 0xFFFF);
+        }
+
+        private void add(int key, @NonNull MappedDetection mappedDetection) {
+            ArrayList<MappedDetection> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                buckets.put(key, bucket);
+            }
+            bucket.add(mappedDetection);
+        }
+
+        private void remove(int key, @NonNull MappedDetection mappedDetection) {
+            ArrayList<MappedDetection> bucket = buckets.get(key);
+            if (bucket != null) {
+                bucket.remove(mappedDetection);
+            }
+        }
+
+        private ArrayList<MappedDetection> get(int key) {
+            return buckets.get(key);
+        }
+
+        /**
+         * Adds every detection in a cell's bucket to a list
+         * @param key the cell's key
+         * @param out the list to add to
+         */
+        private void collect(int key, @NonNull ArrayList<MappedDetection> out) {
+            ArrayList<MappedDetection> bucket = buckets.get(key);
+            for (int i = 0; bucket != null && i < bucket.size(); i++) {
+                out.add(bucket.get(i));
+            }
+        }
+    }
+
     /**
      * Class for storing detections that may potentially be mapped
      */
     public static class PotentialDetection {
         private final OpenGLMatrix fieldPosition;
+        private final float fieldX;
+        private final float fieldY;
         private final int[] matrixPosition;
         private final Space space;
         private boolean potentialUsed;
@@ -284,6 +659,9 @@ public class DetectionMapper {
                                @MatrixCoordinates @NonNull int[] matrixPosition,
                                @NonNull Space space) {
             this.fieldPosition = fieldPosition;
+            VectorF translation = fieldPosition.getTranslation();
+            this.fieldX = translation.get(0);
+            this.fieldY = translation.get(1);
             this.matrixPosition = matrixPosition;
             this.space = space;
             this.potentialUsed = false;
@@ -292,6 +670,8 @@ public class DetectionMapper {
         public Space getSpace() { return space; }
         public int[] getMatrixPosition() { return matrixPosition; }
         public OpenGLMatrix getFieldPosition() { return fieldPosition; }
+        public float getFieldX() { return fieldX; }
+        public float getFieldY() { return fieldY; }
         public boolean isPotentialUsed() { return potentialUsed; }
         public void setPotentialUsed() { potentialUsed = true; }
     }
@@ -3,7 +3,6 @@ package localization;
 
 import static localization.SpaceMap.Space;
 
-import android.graphics.Bitmap;
 import android.graphics.RectF;
 import android.util.Log;
 import android.util.Pair;
@@ -23,9 +22,10 @@ import java.util.Map;
 import annotations.FieldCoordinates;
 import annotations.ImageCoordinates;
 import annotations.MatrixCoordinates;
-import display.Visuals;
 import localization.DetectionMapper.PotentialDetection;
 import display.DisplaySource;
+import display.SpaceMapRenderer;
+import util.IntList;
 
 /**
  * The FieldMap is how the FTC field will be visualized for pathfinding purposes
@@ -80,9 +80,13 @@ public class FieldMap {
     // see isObjectGone
     private static final int pxTolerance = 10;
 
-    private static final int scale = 75; // value to scale the field values down by
-    public static final int bitmapDisplaySize = 300; // good size to make bitmaps on the display
+    // value to scale the field values down by, in mm per space
     // 10 is good for mm to cm for testing, 75 is nice for actual field mm to a manageable size (~48x48)
+    public static final int defaultScale = 75;
+    public static final int bitmapDisplaySize = 300; // good size to make bitmaps on the display
+
+    // mm per space for this map
+    private final int scale;
 
     // the x and y dimensions of the field are the same, so we have fieldSize
     private final int fieldSize;
@@ -97,6 +101,11 @@ public class FieldMap {
 
     private final boolean useDisplay;
 
+    // created with the display, draws only the spaces that changed each update
+    private SpaceMapRenderer mapRenderer;
+    // records every published snapshot, if set
+    private MapRecorder mapRecorder;
+
 
     /**
      * When field positions are calculated from tensorflow recognitions, they're placed
@@ -147,7 +156,34 @@ public class FieldMap {
             @Nullable @FieldCoordinates HashMap<Space, ArrayList<OpenGLMatrix>> staticCoordsGL,
             @Nullable @FieldCoordinates HashMap<Space, ArrayList<int[]>> staticCoordsInt,
             boolean useDisplay) {
-        // convert mm to cm
+        this(fieldSizeMM, defaultScale, staticCoordsGL, staticCoordsInt, useDisplay);
+    }
+
+    /**
+     * Initialize the fieldmap with FTC field info at a custom resolution.
+     * See {@link #FieldMap(int, HashMap, HashMap, boolean)} for the rest of the parameters.
+     *
+     * Smaller scales map obstacles more precisely but make a bigger map. The spacemap stores one
+     * byte per space and only redraws and re-snapshots the rows that change, so even 10mm spaces
+     * (~366x366, about 134kb) are fine to update every loop. Full-map operations like
+     * pathfinding and the clearance transform grow with the number of spaces though, so
+     * 25mm is a good place to start.
+     * @param fieldSizeMM The height and width of the field, in real millimeters
+     * @param scale the size of each space, in millimeters
+     * @param staticCoordsGL The static spaces on the field as OpenGLMatrix coordinates. Can be null
+     * @param staticCoordsInt The static spaces on the field as int array coordinates. Can be null
+     * @param useDisplay if true, projects the field map onto the robot's display
+     */
+    public FieldMap(
+            int fieldSizeMM,
+            int scale,
+            @Nullable @FieldCoordinates HashMap<Space, ArrayList<OpenGLMatrix>> staticCoordsGL,
+            @Nullable @FieldCoordinates HashMap<Space, ArrayList<int[]>> staticCoordsInt,
+            boolean useDisplay) {
+        if (scale <= 0) {
+            throw new IllegalArgumentException("Scale must be positive: " + scale);
+        }
+        this.scale = scale;
         this.fieldSize = fieldSizeMM / scale;
         this.fieldTransform = fieldSizeMM/2;
         this.useDisplay = useDisplay;
@@ -223,23 +259,44 @@ public class FieldMap {
      * Update the field map.
      * Updates the robot's position, the object detector recognitions, the mappings of said
      * recognitions, and the display, if enabled.
+     * Also publishes a new snapshot of the spacemap for other threads.
      * @param robotPositionGL the robot's position
      */
     public void update(OpenGLMatrix robotPositionGL) {
         if (robotPositionGL != null) {
             setRobotPosition(robotPositionGL);
-            updateDisplay();
         }
+        updateDisplay();
     }
 
     /**
-     * Update the display with the current spacemap
+     * Publishes a new snapshot of the spacemap and draws it on the display, if enabled.
+     * Drawing only redraws the spaces that changed and doesn't wait for the ui thread, so this is
+     * cheap enough to call every loop. The snapshot is also recorded, if there's a recorder and
+     * the map or its detections changed since the last recorded frame.
      */
     public void updateDisplay() {
+        SpaceMapSnapshot snapshot = spaceMap.publishSnapshot();
+        if (mapRecorder != null && mapRecorder.hasChanges(snapshot)) {
+            mapRecorder.record(snapshot);
+        }
         if (useDisplay) {
-            Bitmap bitmap = Visuals.spaceMapToBitmap(spaceMap.getRawMap());
-            bitmap = Bitmap.createScaledBitmap(bitmap, bitmapDisplaySize, bitmapDisplaySize, false);
-            displaySource.updateImageView(bitmap);
+            if (mapRenderer == null) {
+                mapRenderer = new SpaceMapRenderer(displaySource, spaceMap.height, spaceMap.width, bitmapDisplaySize);
+            }
+            mapRenderer.render(snapshot);
+        }
+    }
+
+    /**
+     * Maps the occupied spaces of an occupancy grid onto the field map and updates the display.
+     * The grid should already have been integrated for this frame.
+     * @param occupancyGrid the occupancy grid to map
+     * @param changedOut if not null, the spaces that changed are added to it as {row, column} pairs
+     */
+    public void applyOccupancyGrid(@NonNull OccupancyGrid occupancyGrid, @Nullable IntList changedOut) {
+        if (occupancyGrid.applyTo(spaceMap, changedOut)) {
+            updateDisplay();
         }
     }
 
@@ -324,6 +381,42 @@ public class FieldMap {
         return xyPair;
     }
 
+    /**
+     * Gets the field x coordinate of the center of a matrix row.
+     * This is the inverse of {@link #fieldToMatrix(int[], boolean)}, and unlike
+     * {@link #matrixToField(int[])} it gives the center of the space instead of its edge.
+     * @param row the matrix row
+     * @return the field x coordinate of the row's center, in millimeters
+     */
+    @FieldCoordinates
+    public double getSpaceCenterX(@MatrixCoordinates int row) {
+        return fieldTransform - (row + 0.5) * scale;
+    }
+
+    /**
+     * Gets the field y coordinate of the center of a matrix column.
+     * This is the inverse of {@link #fieldToMatrix(int[], boolean)}, and unlike
+     * {@link #matrixToField(int[])} it gives the center of the space instead of its edge.
+     * @param col the matrix column
+     * @return the field y coordinate of the column's center, in millimeters
+     */
+    @FieldCoordinates
+    public double getSpaceCenterY(@MatrixCoordinates int col) {
+        return fieldTransform - (col + 0.5) * scale;
+    }
+
+    /**
+     * Converts a field position to matrix coordinates, rounded to within the walls
+     * @param x the field x coordinate, in millimeters
+     * @param y the field y coordinate, in millimeters
+     * @return the matrix coordinates of the space containing the position
+     */
+    @NonNull
+    @MatrixCoordinates
+    public int[] getMatrixPosition(@FieldCoordinates double x, @FieldCoordinates double y) {
+        return fieldToMatrix(new int[] {(int) Math.round(x), (int) Math.round(y)}, true);
+    }
+
 
 
     // endregion coordinate transformations
@@ -341,7 +434,23 @@ public class FieldMap {
     }
 
 
-    public static int getScale() { return scale; }
+    public int getScale() { return scale; }
+
+    /**
+     * Sets a recorder to record the map every update, for replaying the match later
+     * @param mapRecorder the recorder, or null to stop recording. The old recorder isn't closed.
+     */
+    public void setMapRecorder(@Nullable MapRecorder mapRecorder) {
+        this.mapRecorder = mapRecorder;
+    }
+
+    /**
+     * Gets the latest snapshot of the spacemap, which is safe to read from any thread.
+     * Use this instead of {@link #getSpaceMap()} when reading from the vision thread.
+     * @return the latest snapshot, or null if the field map hasn't been updated yet
+     */
+    @Nullable
+    public SpaceMapSnapshot getSnapshot() { return spaceMap.getSnapshot(); }
 
     // endregion accessors/modifiers
 
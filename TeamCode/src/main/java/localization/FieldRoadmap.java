@@ -0,0 +1,436 @@
+package localization;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.firstinspires.ftc.robotcore.internal.system.AppUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import annotations.MatrixCoordinates;
+import util.IntList;
+
+/**
+ * Precomputed routes between key locations on the field, like the shipping hub, the warehouse
+ * and the carousel.
+ *
+ * Routes are planned once on the static layer of the field (walls, image targets, and anything
+ * else added as a static space), shortened into straight segments, and stored as a small binary
+ * file. At runtime a route is just a table lookup. Each segment is checked against the current
+ * spacemap, and only segments blocked by dynamic obstacles are replanned, so planning between
+ * key locations costs almost nothing unless something is in the way.
+ *
+ * The file stores a hash of the static layer, so a roadmap built for a different field layout
+ * isn't used by accident. Use {@link #loadOrBuild(SpaceMap, LinkedHashMap, int, String)} to
+ * load a roadmap from the app's assets or the robot's data directory, or build and save one if
+ * neither exists yet. Copy a saved file into the assets folder to ship it with the app.
+ */
+public class FieldRoadmap {
+    private static final String TAG = "vuf.test.roadmap";
+    private static final int fileMagic = 0x524D4150; // "RMAP"
+    // 2 stores space indices as ints, since maps over 32767 spaces didn't fit in shorts
+    private static final int fileVersion = 2;
+    // height, width, clearance and counts are stored as unsigned shorts
+    private static final int maxShortValue = 0xFFFF;
+    private static final String assetDirectory = "roadmap/";
+
+    private final int height;
+    private final int width;
+    private final int staticHash;
+    private final int minClearance;
+    private final String[] names;
+    private final int[] locations; // space indices
+    // the corners of the route between locations i < j are at i * locationCount + j
+    private final int[][] routes;
+
+    // scratch for repairing routes
+    private final IntList repairPath = new IntList();
+    private final int[] repairStart = new int[2];
+    private final int[] repairEnd = new int[2];
+
+    private FieldRoadmap(int height, int width, int staticHash, int minClearance,
+                         @NonNull String[] names, @NonNull int[] locations, @NonNull int[][] routes) {
+        this.height = height;
+        this.width = width;
+        this.staticHash = staticHash;
+        this.minClearance = minClearance;
+        this.names = names;
+        this.locations = locations;
+        this.routes = routes;
+    }
+
+    // region building
+
+    /**
+     * Plans routes between every pair of key locations on the static layer of a spacemap
+     * @param spaceMap the spacemap to plan on. Only its static spaces are used.
+     * @param keyLocations the names and matrix coordinates of the key locations, in the order
+     *                     they should be indexed
+     * @param minClearance the minimum clearance the routes should keep from static spaces
+     * @return the built roadmap
+     */
+    @NonNull
+    public static FieldRoadmap build(@NonNull SpaceMap spaceMap,
+                                     @NonNull @MatrixCoordinates LinkedHashMap<String, int[]> keyLocations,
+                                     int minClearance) {
+        long startTime = System.nanoTime();
+        // plan on a copy with only the static spaces
+        SpaceMap staticMap = new SpaceMap(spaceMap);
+        staticMap.clearSpace(false);
+        GridPathfinder pathfinder = new GridPathfinder(staticMap);
+        pathfinder.setMinClearance(minClearance);
+
+        int count = keyLocations.size();
+        String[] names = new String[count];
+        int[][] coords = new int[count][];
+        int[] locations = new int[count];
+        int i = 0;
+        for (Map.Entry<String, int[]> entry : keyLocations.entrySet()) {
+            names[i] = entry.getKey();
+            coords[i] = entry.getValue();
+            locations[i] = pathfinder.getIndex(coords[i][0], coords[i][1]);
+            i++;
+        }
+
+        int[][] routes = new int[count * count][];
+        IntList path = new IntList();
+        IntList corners = new IntList();
+        for (int from = 0; from < count; from++) {
+            for (int to = from + 1; to < count; to++) {
+                if (pathfinder.findPath(coords[from], coords[to], path)) {
+                    pathfinder.shortcutPath(path, corners);
+                    routes[from * count + to] = corners.toArray();
+                } else {
+                    Log.d(TAG, String.format("No route from %s to %s", names[from], names[to]));
+                    routes[from * count + to] = new int[0];
+                }
+            }
+        }
+        Log.d(TAG, String.format("Built roadmap with %d locations in %d ms",
+                count, (System.nanoTime() - startTime) / 1000000));
+        return new FieldRoadmap(spaceMap.height, spaceMap.width, getStaticHash(spaceMap),
+                minClearance, names, locations, routes);
+    }
+
+    /**
+     * Hashes the passability of a spacemap's static layer, treating every dynamic space as clear
+     * @param spaceMap the spacemap to hash
+     * @return the hash
+     */
+    public static int getStaticHash(@NonNull SpaceMap spaceMap) {
+        int hash = 31 * spaceMap.height + spaceMap.width;
+        for (int r = 0; r < spaceMap.height; r++) {
+            for (int c = 0; c < spaceMap.width; c++) {
+                SpaceMap.Space space = spaceMap.getSpace(r, c);
+                boolean passable = !space.isStatic() || space.isPassable();
+                hash = 31 * hash + (passable ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    // endregion building
+
+    // region routes
+
+    /**
+     * Gets the path between two key locations on the current spacemap.
+     * The stored route is used wherever it's still passable, and any segment blocked by a dynamic
+     * obstacle is replanned with the pathfinder.
+     * @param from the index of the location to start at
+     * @param to the index of the location to end at
+     * @param pathfinder the pathfinder for the current spacemap, used to check and repair the route
+     * @param pathOut the list to put the path in, as space indices from start to end. Stored
+     *                segments are only their corners, so pass it to
+     *                {@link PathCompiler#compile} rather than assuming neighboring spaces.
+     * @return true if a path was found
+     */
+    public boolean findPath(int from, int to, @NonNull GridPathfinder pathfinder, @NonNull IntList pathOut) {
+        pathOut.clear();
+        int[] route = getRoute(from, to);
+        if (route == null || route.length == 0) {
+            return false;
+        }
+        boolean reversed = from > to;
+        SpaceMap spaceMap = pathfinder.getSpaceMap();
+        int previous = route[reversed ? route.length - 1 : 0];
+        pathOut.add(previous);
+        for (int i = 1; i < route.length; i++) {
+            int corner = route[reversed ? route.length - 1 - i : i];
+            int previousRow = pathfinder.getRow(previous);
+            int previousCol = pathfinder.getCol(previous);
+            int cornerRow = pathfinder.getRow(corner);
+            int cornerCol = pathfinder.getCol(corner);
+            if (spaceMap.isSegmentPassable(previousRow, previousCol, cornerRow, cornerCol, minClearance)) {
+                pathOut.add(corner);
+            } else {
+                // something dynamic is in the way, so only this segment is replanned
+                repairStart[0] = previousRow;
+                repairStart[1] = previousCol;
+                repairEnd[0] = cornerRow;
+                repairEnd[1] = cornerCol;
+                if (!pathfinder.findPath(repairStart, repairEnd, repairPath)) {
+                    pathOut.clear();
+                    return false;
+                }
+                for (int j = 1; j < repairPath.size(); j++) {
+                    pathOut.add(repairPath.get(j));
+                }
+            }
+            previous = corner;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the path between two key locations on the current spacemap
+     * @param fromName the name of the location to start at
+     * @param toName the name of the location to end at
+     * @param pathfinder the pathfinder for the current spacemap
+     * @param pathOut the list to put the path in, as space indices from start to end
+     * @return true if a path was found, false if there's no path or either location doesn't exist
+     */
+    public boolean findPath(@NonNull String fromName, @NonNull String toName,
+                            @NonNull GridPathfinder pathfinder, @NonNull IntList pathOut) {
+        int from = getLocationIndex(fromName);
+        int to = getLocationIndex(toName);
+        if (from < 0 || to < 0) {
+            pathOut.clear();
+            return false;
+        }
+        return findPath(from, to, pathfinder, pathOut);
+    }
+
+    @Nullable
+    private int[] getRoute(int from, int to) {
+        if (from == to) {
+            return new int[] {locations[from]};
+        }
+        int count = locations.length;
+        return routes[Math.min(from, to) * count + Math.max(from, to)];
+    }
+
+    /**
+     * Gets the index of a key location
+     * @param name the name of the location
+     * @return the index, or -1 if there's no location with the name
+     */
+    public int getLocationIndex(@NonNull String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Determines whether this roadmap was built for a spacemap's static layer and key locations
+     * @param spaceMap the spacemap to check
+     * @param keyLocations the key locations to check, or null to only check the spacemap
+     * @param minClearance the clearance the routes should have
+     * @return true if the roadmap can be used with the spacemap
+     */
+    public boolean matches(@NonNull SpaceMap spaceMap,
+                           @Nullable @MatrixCoordinates LinkedHashMap<String, int[]> keyLocations,
+                           int minClearance) {
+        if (spaceMap.height != height || spaceMap.width != width || this.minClearance != minClearance
+                || getStaticHash(spaceMap) != staticHash) {
+            return false;
+        }
+        if (keyLocations == null) {
+            return true;
+        }
+        if (keyLocations.size() != names.length) {
+            return false;
+        }
+        int i = 0;
+        for (Map.Entry<String, int[]> entry : keyLocations.entrySet()) {
+            int[] coords = entry.getValue();
+            if (!names[i].equals(entry.getKey()) || locations[i] != coords[0] * width + coords[1]) {
+                return false;
+            }
+            i++;
+        }
+        return true;
+    }
+
+    public int getLocationCount() { return names.length; }
+
+    // endregion routes
+
+    // region saving/loading
+
+    /**
+     * Writes the roadmap in its binary format
+     * @param outputStream the stream to write to. It isn't closed.
+     * @throws IOException if the stream can't be written, or the map is too big for the format
+     */
+    public void save(@NonNull OutputStream outputStream) throws IOException {
+        if (height > maxShortValue || width > maxShortValue || minClearance > maxShortValue
+                || names.length > maxShortValue) {
+            throw new IOException(String.format("Roadmap too big to save: %dx%d with %d locations",
+                    height, width, names.length));
+        }
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+        output.writeInt(fileMagic);
+        output.writeInt(fileVersion);
+        output.writeShort(height);
+        output.writeShort(width);
+        output.writeInt(staticHash);
+        output.writeShort(minClearance);
+        output.writeShort(names.length);
+        for (int i = 0; i < names.length; i++) {
+            output.writeUTF(names[i]);
+            output.writeInt(locations[i]);
+        }
+        for (int from = 0; from < names.length; from++) {
+            for (int to = from + 1; to < names.length; to++) {
+                int[] route = routes[from * names.length + to];
+                if (route.length > maxShortValue) {
+                    throw new IOException("Route too long to save: " + route.length);
+                }
+                output.writeShort(route.length);
+                for (int corner : route) {
+                    output.writeInt(corner);
+                }
+            }
+        }
+        output.flush();
+    }
+
+    /**
+     * Reads a roadmap from its binary format
+     * @param inputStream the stream to read from. It isn't closed.
+     * @return the roadmap
+     * @throws IOException if the stream can't be read or isn't a roadmap
+     */
+    @NonNull
+    public static FieldRoadmap load(@NonNull InputStream inputStream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+        if (input.readInt() != fileMagic) {
+            throw new IOException("Not a roadmap file");
+        }
+        int version = input.readInt();
+        if (version != fileVersion) {
+            throw new IOException("Unsupported roadmap version " + version);
+        }
+        int height = input.readUnsignedShort();
+        int width = input.readUnsignedShort();
+        int staticHash = input.readInt();
+        int minClearance = input.readUnsignedShort();
+        int count = input.readUnsignedShort();
+        long spaceCount = (long) height * width;
+        String[] names = new String[count];
+        int[] locations = new int[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = input.readUTF();
+            locations[i] = readIndex(input, spaceCount);
+        }
+        int[][] routes = new int[count * count][];
+        for (int from = 0; from < count; from++) {
+            for (int to = from + 1; to < count; to++) {
+                int[] route = new int[input.readUnsignedShort()];
+                for (int i = 0; i < route.length; i++) {
+                    route[i] = readIndex(input, spaceCount);
+                }
+                routes[from * count + to] = route;
+            }
+        }
+        return new FieldRoadmap(height, width, staticHash, minClearance, names, locations, routes);
+    }
+
+    private static int readIndex(@NonNull DataInputStream input, long spaceCount) throws IOException {
+        int index = input.readInt();
+        if (index < 0 || index >= spaceCount) {
+            throw new IOException("Space index out of the map: " + index);
+        }
+        return index;
+    }
+
+    /**
+     * Saves the roadmap to the robot's data directory
+     * Saves to "/storage/emulated/0/FIRST/data/{filename}"
+     * @param filename the name of the file
+     * @return true if the roadmap was saved
+     */
+    public boolean saveToFile(@NonNull String filename) {
+        File file = new File(AppUtil.ROBOT_DATA_DIR, filename);
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            save(outputStream);
+            Log.d(TAG, String.format("Roadmap saved to %s", file));
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "roadmap save failed");
+            Log.d(TAG, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Loads a roadmap from the app's assets, then from the robot's data directory
+     * @param filename the name of the file. Assets are looked for in the roadmap folder.
+     * @return the roadmap, or null if it couldn't be loaded from either
+     */
+    @Nullable
+    public static FieldRoadmap loadFromFile(@NonNull String filename) {
+        try (InputStream inputStream = AppUtil.getDefContext().getAssets().open(assetDirectory + filename)) {
+            return load(inputStream);
+        } catch (IOException e) {
+            Log.d(TAG, "roadmap not in assets, checking data directory");
+        }
+        File file = new File(AppUtil.ROBOT_DATA_DIR, filename);
+        try (InputStream inputStream = new FileInputStream(file)) {
+            return load(inputStream);
+        } catch (IOException e) {
+            Log.d(TAG, "roadmap load failed");
+            Log.d(TAG, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Loads a roadmap if one was saved for this field, otherwise builds one and saves it so the
+     * next init is fast
+     * @param spaceMap the spacemap to plan on
+     * @param keyLocations the names and matrix coordinates of the key locations
+     * @param minClearance the minimum clearance the routes should keep from static spaces
+     * @param filename the name of the file to load from or save to
+     * @return the roadmap
+     */
+    @NonNull
+    public static FieldRoadmap loadOrBuild(@NonNull SpaceMap spaceMap,
+                                           @NonNull @MatrixCoordinates LinkedHashMap<String, int[]> keyLocations,
+                                           int minClearance, @NonNull String filename) {
+        FieldRoadmap roadmap = loadFromFile(filename);
+        if (roadmap != null && roadmap.matches(spaceMap, keyLocations, minClearance)) {
+            return roadmap;
+        }
+        Log.d(TAG, "No matching roadmap saved, building one");
+        roadmap = build(spaceMap, keyLocations, minClearance);
+        roadmap.saveToFile(filename);
+        return roadmap;
+    }
+
+    // endregion saving/loading
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format("FieldRoadmap{%dx%d, locations=%s}", height, width, Arrays.toString(names));
+    }
+}
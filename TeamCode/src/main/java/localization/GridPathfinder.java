@@ -0,0 +1,304 @@
+package localization;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+import annotations.MatrixCoordinates;
+import localization.SpaceMap.Space;
+import util.IndexedMinHeap;
+import util.IntList;
+
+/**
+ * A* pathfinding directly on a SpaceMap.
+ *
+ * The robot can move to any of the 8 spaces around it, but can't cut the corner of an
+ * impassable space when moving diagonally. Straight moves cost 10 and diagonal moves cost 14,
+ * so all the math stays in ints, and the octile distance is used as the heuristic.
+ *
+ * Spaces are referred to by their index in the spacemap (row * width + column), so the open set
+ * is a primitive indexed heap and the scores and parents are plain int arrays. All of these are
+ * allocated once for the spacemap's size and reused between searches, so a search doesn't
+ * allocate anything besides growing the caller's path list.
+ *
+ * A pathfinder is tied to the spacemap it was made with, and always plans on the current state
+ * of that spacemap.
+ *
+ * A minimum clearance can be set so paths keep a margin around walls and obstacles. This is
+ * checked against the spacemap's {@link ClearanceMap}, so it costs one lookup per space.
+ */
+public class GridPathfinder {
+    private static final String TAG = "vuf.test.pathfinder";
+
+    static final int straightCost = 10;
+    static final int diagonalCost = 14;
+    // row and column offsets for each neighbor. the first 4 are straight, the last 4 are diagonal
+    static final int[] neighborRows = {-1, 1, 0, 0, -1, -1, 1, 1};
+    static final int[] neighborCols = {0, 0, -1, 1, -1, 1, -1, 1};
+
+    private final SpaceMap spaceMap;
+    private final int width;
+
+    // scratch buffers, reused between searches
+    private final IndexedMinHeap openSet;
+    private final int[] gScores;
+    private final int[] parents;
+    // a space's score is only valid if its stamp matches the current search, so nothing needs
+    // to be cleared between searches
+    private final int[] searchStamps;
+    private final int[] closedStamps;
+    private int currentStamp;
+
+    private int lastExpansions;
+
+    // minimum distance from impassable spaces, or 0 for no margin
+    private int minClearance;
+    private ClearanceMap clearanceMap;
+
+    /**
+     * Create a pathfinder for a spacemap
+     * @param spaceMap the spacemap to plan on
+     */
+    public GridPathfinder(@NonNull SpaceMap spaceMap) {
+        this.spaceMap = spaceMap;
+        this.width = spaceMap.width;
+        int size = spaceMap.height * spaceMap.width;
+        openSet = new IndexedMinHeap(size);
+        gScores = new int[size];
+        parents = new int[size];
+        searchStamps = new int[size];
+        closedStamps = new int[size];
+    }
+
+    /**
+     * Find the shortest path between two coordinates
+     * The start space doesn't have to be passable, since it's usually the robot's own space.
+     * @param start the coordinates to start at
+     * @param end the coordinates to end at
+     * @param pathOut the list to put the path in, as space indices from start to end. It's cleared
+     *                first. Use {@link #getRow(int)} and {@link #getCol(int)} to get coordinates.
+     * @return true if a path was found, otherwise false and the path list is left empty
+     */
+    public boolean findPath(@NonNull @MatrixCoordinates int[] start,
+                            @NonNull @MatrixCoordinates int[] end,
+                            @NonNull IntList pathOut) {
+        pathOut.clear();
+        lastExpansions = 0;
+        if (!spaceMap.inBounds(start[0], start[1]) || !spaceMap.inBounds(end[0], end[1])
+                || !spaceMap.isPassable(end[0], end[1])) {
+            return false;
+        }
+        clearanceMap = (minClearance > 0) ? spaceMap.getClearanceMap() : null;
+        if (clearanceMap != null && !clearanceMap.hasClearance(end[0], end[1], minClearance)) {
+            return false;
+        }
+
+        int startIndex = getIndex(start[0], start[1]);
+        int endIndex = getIndex(end[0], end[1]);
+        nextStamp();
+        openSet.clear();
+
+        gScores[startIndex] = 0;
+        parents[startIndex] = -1;
+        searchStamps[startIndex] = currentStamp;
+        openSet.insertOrUpdate(startIndex, packKey(0, end, start[0], start[1]));
+
+        while (!openSet.isEmpty()) {
+            int current = openSet.poll();
+            if (current == endIndex) {
+                buildPath(endIndex, pathOut);
+                return true;
+            }
+            closedStamps[current] = currentStamp;
+            lastExpansions++;
+
+            int row = getRow(current);
+            int col = getCol(current);
+            int currentScore = gScores[current];
+            for (int i = 0; i < neighborRows.length; i++) {
+                int nRow = row + neighborRows[i];
+                int nCol = col + neighborCols[i];
+                if (!canMove(row, col, nRow, nCol)) {
+                    continue;
+                }
+                int neighbor = getIndex(nRow, nCol);
+                if (closedStamps[neighbor] == currentStamp) {
+                    continue;
+                }
+                int score = currentScore + ((i < 4) ? straightCost : diagonalCost);
+                if (searchStamps[neighbor] != currentStamp || score < gScores[neighbor]) {
+                    searchStamps[neighbor] = currentStamp;
+                    gScores[neighbor] = score;
+                    parents[neighbor] = current;
+                    openSet.insertOrUpdate(neighbor, packKey(score, end, nRow, nCol));
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether the robot can move from one space to a neighboring space.
+     * The target space has to be passable and have the minimum clearance, and diagonal moves
+     * can't cut the corner of an impassable space.
+     * @return true if the move is allowed
+     */
+    boolean canMove(int row, int col, int nRow, int nCol) {
+        if (!spaceMap.inBounds(nRow, nCol) || !spaceMap.isPassable(nRow, nCol)) {
+            return false;
+        }
+        if (clearanceMap != null && !clearanceMap.hasClearance(nRow, nCol, minClearance)) {
+            return false;
+        }
+        if (nRow != row && nCol != col) {
+            return spaceMap.isPassable(row, nCol) && spaceMap.isPassable(nRow, col);
+        }
+        return true;
+    }
+
+    /**
+     * Follows the parents back from the end to the start to get the path
+     * @param endIndex the index of the end space
+     * @param pathOut the list to put the path in
+     */
+    private void buildPath(int endIndex, @NonNull IntList pathOut) {
+        for (int index = endIndex; index != -1; index = parents[index]) {
+            pathOut.add(index);
+        }
+        pathOut.reverse();
+    }
+
+    /**
+     * Packs the f score and heuristic into a heap key. Ties in f score are broken by the
+     * heuristic so spaces closer to the end are expanded first.
+     */
+    private static long packKey(int gScore, @NonNull int[] end, int row, int col) {
+        int heuristic = octileDistance(row, col, end[0], end[1]);
+        return ((long) (gScore + heuristic) << 32) | heuristic;
+    }
+
+    /**
+     * Gets the cost of the shortest path between two spaces if there were no obstacles
+     * @return the octile distance between the spaces
+     */
+    static int octileDistance(int row1, int col1, int row2, int col2) {
+        int dRow = Math.abs(row1 - row2);
+        int dCol = Math.abs(col1 - col2);
+        return straightCost * Math.max(dRow, dCol) + (diagonalCost - straightCost) * Math.min(dRow, dCol);
+    }
+
+    /**
+     * Moves on to the next search stamp, resetting the stamps if they overflow
+     */
+    private void nextStamp() {
+        currentStamp++;
+        if (currentStamp == Integer.MAX_VALUE) {
+            Arrays.fill(searchStamps, 0);
+            Arrays.fill(closedStamps, 0);
+            currentStamp = 1;
+        }
+    }
+
+    /**
+     * Shortens a path into the fewest straight segments the robot can drive, by skipping
+     * every space that can be reached in a straight line from an earlier corner.
+     * Segments are checked with {@link SpaceMap#isSegmentPassable(int, int, int, int, int)}, so they
+     * keep the same minimum clearance as the search.
+     * @param path the path to shorten, as space indices
+     * @param cornersOut the list to put the corners in, as space indices including the start and
+     *                   end. It's cleared first, and shouldn't be the same list as the path.
+     */
+    public void shortcutPath(@NonNull IntList path, @NonNull IntList cornersOut) {
+        cornersOut.clear();
+        if (path.isEmpty()) {
+            return;
+        }
+        int corner = 0;
+        cornersOut.add(path.get(0));
+        while (corner < path.size() - 1) {
+            int cornerRow = getRow(path.get(corner));
+            int cornerCol = getCol(path.get(corner));
+            // the next space is always reachable, so find the furthest one past it
+            int next = corner + 1;
+            for (int i = path.size() - 1; i > corner + 1; i--) {
+                int index = path.get(i);
+                if (spaceMap.isSegmentPassable(cornerRow, cornerCol, getRow(index), getCol(index), minClearance)) {
+                    next = i;
+                    break;
+                }
+            }
+            cornersOut.add(path.get(next));
+            corner = next;
+        }
+    }
+
+    // region path painting
+
+    /**
+     * Paints a path onto the spacemap with the pathfinding spaces, clearing any old path first.
+     * Static spaces along the path, like the robot, aren't painted over.
+     * @param path the path to paint, as space indices
+     */
+    public void paintPath(@NonNull IntList path) {
+        clearPath();
+        int[] coords = new int[2];
+        for (int i = 0; i < path.size(); i++) {
+            Space space = (i == 0) ? Space.PF_START : (i == path.size() - 1) ? Space.PF_END : Space.PF_PATH;
+            coords[0] = getRow(path.get(i));
+            coords[1] = getCol(path.get(i));
+            spaceMap.setSpace(space, coords, false);
+        }
+    }
+
+    /**
+     * Removes any painted path from the spacemap
+     */
+    public void clearPath() {
+        spaceMap.clearSpace(Space.PF_PATH, false);
+        spaceMap.clearSpace(Space.PF_START, false);
+        spaceMap.clearSpace(Space.PF_END, false);
+    }
+
+    // endregion path painting
+
+    // region accessors
+
+    /**
+     * Sets how far paths have to stay from impassable spaces. The start space is exempt, so the
+     * robot can still plan its way out of a tight spot.
+     * @param minClearance the minimum clearance, where one space is {@link #straightCost}, or 0 to
+     *                     allow paths right next to walls and obstacles
+     */
+    public void setMinClearance(int minClearance) { this.minClearance = minClearance; }
+    public int getMinClearance() { return minClearance; }
+
+    public int getIndex(int row, int col) { return row * width + col; }
+    public int getRow(int index) { return index / width; }
+    public int getCol(int index) { return index % width; }
+
+    /**
+     * Gets the number of spaces expanded in the last search, which is useful for benchmarking
+     * @return the number of expanded spaces
+     */
+    public int getLastExpansions() { return lastExpansions; }
+
+    @NonNull
+    public SpaceMap getSpaceMap() { return spaceMap; }
+
+    // endregion accessors
+
+    /**
+     * Logs a path as a list of coordinates
+     * @param path the path to log
+     */
+    public void logPath(@NonNull IntList path) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < path.size(); i++) {
+            int index = path.get(i);
+            builder.append('{').append(getRow(index)).append(", ").append(getCol(index)).append("} ");
+        }
+        Log.d(TAG, "Path: " + builder);
+    }
+}
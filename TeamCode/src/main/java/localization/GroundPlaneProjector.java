@@ -0,0 +1,465 @@
+package localization;
+
+import androidx.annotation.NonNull;
+
+import org.firstinspires.ftc.robotcore.external.matrices.OpenGLMatrix;
+
+import java.util.Arrays;
+import java.util.List;
+
+import annotations.FieldCoordinates;
+import annotations.ImageCoordinates;
+import localization.DetectionMapper.PotentialDetection;
+import localization.SpaceMap.Space;
+
+/**
+ * Projects points in a camera image onto the floor, so objects found by the opencv pipelines
+ * can be placed on the field map.
+ *
+ * Since everything we care about sits on the floor, the floor is a plane, and a camera looking at
+ * a plane can be described by a homography, a 3x3 matrix that maps image pixels straight to floor
+ * positions. The homography only depends on how the camera is mounted, so it's calibrated once
+ * by putting markers on the floor at known spots relative to the robot and finding them in the
+ * image. See {@link #fromCorrespondences(double[], double[], int)}. After that, projecting a
+ * point is 9 multiplies and a divide.
+ *
+ * The floor positions are in the robot's frame in millimeters, the same frame the camera location
+ * given to vuforia uses. Each frame, the points are batched, projected onto the floor, then moved
+ * onto the field with the robot's pose from a {@link TransformKernel}, and finally turned into
+ * potential detections for the {@link DetectionMapper}. None of this allocates except for the
+ * detections themselves.
+ *
+ * For a bounding box, the point to project is the middle of its bottom edge, since that's where
+ * the object touches the floor. The rest of the box is above the floor, so it'd be projected too
+ * far away.
+ */
+public class GroundPlaneProjector {
+    // points further than this from the robot are too stretched out to be useful
+    public static final float defaultMaxRange = 1500; // mm
+    // frames this long after the newest pose in a history aren't projected, since the robot could
+    // be anywhere by then. a bit more than the gap between vuforia updates
+    public static final long defaultMaxPoseAge = 250 * CoordinateUtils.nanoToMilli;
+
+    // image -> robot floor homography, row major, with the last element 1 or -1. the sign is
+    // kept so w is positive for pixels that see the floor, since the top of the image is often
+    // above the horizon
+    private final double[] homography;
+    private float maxRange = defaultMaxRange;
+    private long maxPoseAge = defaultMaxPoseAge;
+
+    // the batch of points, as structures of arrays
+    @ImageCoordinates
+    private float[] imageX = new float[0];
+    @ImageCoordinates
+    private float[] imageY = new float[0];
+    private float[] floorX = new float[0];
+    private float[] floorY = new float[0];
+    private float[] floorZ = new float[0];
+    @FieldCoordinates
+    private float[] fieldX = new float[0];
+    @FieldCoordinates
+    private float[] fieldY = new float[0];
+    private float[] fieldZ = new float[0];
+    private int pointCount;
+    private int projectedCount;
+    // scratch for looking up poses in a pose history
+    private final double[] historyPose = new double[3];
+
+    /**
+     * Create a projector from a homography that was already calibrated
+     * @param homography the image to robot floor homography, as 9 values in row major order.
+     *                   Its sign matters: the bottom row times a pixel on the floor has to be
+     *                   positive, like from {@link #getHomography()}.
+     */
+    public GroundPlaneProjector(@NonNull double[] homography) {
+        if (homography.length != 9 || homography[8] == 0) {
+            throw new IllegalArgumentException("Homography must be 9 values with a nonzero last value");
+        }
+        this.homography = new double[9];
+        for (int i = 0; i < 9; i++) {
+            this.homography[i] = homography[i] / Math.abs(homography[8]);
+        }
+    }
+
+    // region calibration
+
+    /**
+     * Calibrates a projector from points on the floor that were found in the image, with a
+     * direct linear transform. 4 points are enough, but using more and spreading them across the
+     * image averages out errors in finding them. No 3 of the points should be in a line.
+     * @param imagePoints the image positions of the points, as {x0, y0, x1, y1, ...} in pixels
+     * @param floorPoints the floor positions of the points in the robot's frame, as
+     *                    {x0, y0, x1, y1, ...} in millimeters
+     * @param count the number of points
+     * @return the calibrated projector
+     */
+    @NonNull
+    public static GroundPlaneProjector fromCorrespondences(@NonNull @ImageCoordinates double[] imagePoints,
+                                                           @NonNull double[] floorPoints, int count) {
+        if (count < 4) {
+            throw new IllegalArgumentException("At least 4 points are needed, got " + count);
+        }
+        // normalize both sets of points so the equations are well conditioned, since pixels
+        // and millimeters are both in the hundreds while the homography's bottom row is tiny
+        double[] imageNorm = getNormalization(imagePoints, count);
+        double[] floorNorm = getNormalization(floorPoints, count);
+
+        // each point gives 2 equations in the 8 unknowns, with the last element fixed at 1.
+        // these are solved with least squares through the normal equations
+        double[] normal = new double[8 * 9]; // augmented 8x8 system
+        double[] row = new double[9];
+        for (int i = 0; i < count; i++) {
+            double u = (imagePoints[2 * i] - imageNorm[0]) * imageNorm[2];
+            double v = (imagePoints[2 * i + 1] - imageNorm[1]) * imageNorm[2];
+            double x = (floorPoints[2 * i] - floorNorm[0]) * floorNorm[2];
+            double y = (floorPoints[2 * i + 1] - floorNorm[1]) * floorNorm[2];
+
+            setRow(row, u, v, 1, 0, 0, 0, -u * x, -v * x, x);
+            addToNormal(normal, row);
+            setRow(row, 0, 0, 0, u, v, 1, -u * y, -v * y, y);
+            addToNormal(normal, row);
+        }
+        double[] h = solve(normal);
+        double[] normalized = new double[] {h[0], h[1], h[2], h[3], h[4], h[5], h[6], h[7], 1};
+
+        // undo the normalization: H = floorNorm^-1 * normalized * imageNorm
+        double[] imageTransform = new double[] {
+                imageNorm[2], 0, -imageNorm[2] * imageNorm[0],
+                0, imageNorm[2], -imageNorm[2] * imageNorm[1],
+                0, 0, 1};
+        double[] floorInverse = new double[] {
+                1 / floorNorm[2], 0, floorNorm[0],
+                0, 1 / floorNorm[2], floorNorm[1],
+                0, 0, 1};
+        // w is 1 at the middle of the calibration points, which are on the floor, so this has the
+        // right sign for the constructor
+        return new GroundPlaneProjector(multiply3(floorInverse, multiply3(normalized, imageTransform)));
+    }
+
+    /**
+     * Makes a projector from how the camera is mounted, for before it's been calibrated with
+     * markers. The camera is treated as a perfect pinhole pointed straight ahead and tilted down,
+     * so this is rougher than {@link #fromCorrespondences(double[], double[], int)}: a few floor
+     * spots are put through that model to find where they'd show up in the image, and the
+     * projector is calibrated from those.
+     * @param focalLength the focal length, in pixels
+     * @param centerX the x of the middle of the image, in pixels
+     * @param centerY the y of the middle of the image, in pixels
+     * @param forward how far in front of the robot's center the camera is, in millimeters
+     * @param left how far left of the robot's center the camera is, in millimeters
+     * @param height how high the camera is above the floor, in millimeters
+     * @param pitch how far the camera is tilted down, in radians. Has to be less than 90 degrees.
+     * @return the projector
+     */
+    @NonNull
+    public static GroundPlaneProjector fromCameraMounting(double focalLength, double centerX, double centerY,
+                                                          double forward, double left, double height,
+                                                          double pitch) {
+        // a rectangle on the floor in front of the camera, relative to the camera
+        double[] spots = new double[] {500, -300, 500, 300, 1200, -300, 1200, 300};
+        double[] imagePoints = new double[8];
+        double[] floorPoints = new double[8];
+        double sin = Math.sin(pitch);
+        double cos = Math.cos(pitch);
+        for (int i = 0; i < 4; i++) {
+            double x = spots[2 * i];
+            double y = spots[2 * i + 1];
+            // the camera's right is the robot's -y, its down and forward are tilted by the pitch
+            double cameraRight = -y;
+            double cameraDown = -x * sin + height * cos;
+            double cameraForward = x * cos + height * sin;
+            imagePoints[2 * i] = centerX + focalLength * cameraRight / cameraForward;
+            imagePoints[2 * i + 1] = centerY + focalLength * cameraDown / cameraForward;
+            floorPoints[2 * i] = x + forward;
+            floorPoints[2 * i + 1] = y + left;
+        }
+        return fromCorrespondences(imagePoints, floorPoints, 4);
+    }
+
+    /**
+     * Gets the translation and scale that moves a set of points to be centered on the origin with
+     * an average distance of sqrt(2)
+     * @param points the points, as {x0, y0, x1, y1, ...}
+     * @param count the number of points
+     * @return {center x, center y, scale}
+     */
+    @NonNull
+    private static double[] getNormalization(@NonNull double[] points, int count) {
+        double centerX = 0;
+        double centerY = 0;
+        for (int i = 0; i < count; i++) {
+            centerX += points[2 * i];
+            centerY += points[2 * i + 1];
+        }
+        centerX /= count;
+        centerY /= count;
+        double averageDistance = 0;
+        for (int i = 0; i < count; i++) {
+            averageDistance += Math.hypot(points[2 * i] - centerX, points[2 * i + 1] - centerY);
+        }
+        averageDistance /= count;
+        double scale = averageDistance == 0 ? 1 : Math.sqrt(2) / averageDistance;
+        return new double[] {centerX, centerY, scale};
+    }
+
+    private static void setRow(@NonNull double[] row, double... values) {
+        System.arraycopy(values, 0, row, 0, 9);
+    }
+
+    /**
+     * Adds an equation to the normal equations, so normal += row^T * row for the coefficients
+     * and the right side
+     * @param normal the augmented 8x9 normal equations
+     * @param row the 8 coefficients followed by the right side
+     */
+    private static void addToNormal(@NonNull double[] normal, @NonNull double[] row) {
+        for (int r = 0; r < 8; r++) {
+            for (int c = 0; c < 9; c++) {
+                normal[r * 9 + c] += row[r] * row[c];
+            }
+        }
+    }
+
+    /**
+     * Solves an augmented 8x8 system with gaussian elimination and partial pivoting
+     * @param system the augmented 8x9 system. It's modified.
+     * @return the 8 unknowns
+     */
+    @NonNull
+    private static double[] solve(@NonNull double[] system) {
+        int n = 8;
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < n; r++) {
+                if (Math.abs(system[r * 9 + col]) > Math.abs(system[pivot * 9 + col])) {
+                    pivot = r;
+                }
+            }
+            if (Math.abs(system[pivot * 9 + col]) < 1e-12) {
+                throw new IllegalArgumentException("Calibration points don't determine a homography, check that no 3 are in a line");
+            }
+            for (int c = 0; c < 9; c++) {
+                double temp = system[col * 9 + c];
+                system[col * 9 + c] = system[pivot * 9 + c];
+                system[pivot * 9 + c] = temp;
+            }
+            for (int r = col + 1; r < n; r++) {
+                double factor = system[r * 9 + col] / system[col * 9 + col];
+                for (int c = col; c < 9; c++) {
+                    system[r * 9 + c] -= factor * system[col * 9 + c];
+                }
+            }
+        }
+        double[] solution = new double[n];
+        for (int r = n - 1; r >= 0; r--) {
+            double sum = system[r * 9 + 8];
+            for (int c = r + 1; c < n; c++) {
+                sum -= system[r * 9 + c] * solution[c];
+            }
+            solution[r] = sum / system[r * 9 + r];
+        }
+        return solution;
+    }
+
+    @NonNull
+    private static double[] multiply3(@NonNull double[] a, @NonNull double[] b) {
+        double[] out = new double[9];
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                out[r * 3 + c] = a[r * 3] * b[c] + a[r * 3 + 1] * b[3 + c] + a[r * 3 + 2] * b[6 + c];
+            }
+        }
+        return out;
+    }
+
+    // endregion calibration
+
+    // region batching
+
+    /**
+     * Clears the batch of points, keeping the memory for the next frame
+     */
+    public void clear() {
+        pointCount = 0;
+        projectedCount = 0;
+    }
+
+    /**
+     * Adds an image point to the batch
+     * @param x the x position in the image, in pixels
+     * @param y the y position in the image, in pixels
+     */
+    public void addPoint(@ImageCoordinates float x, @ImageCoordinates float y) {
+        ensureCapacity(pointCount + 1);
+        imageX[pointCount] = x;
+        imageY[pointCount] = y;
+        pointCount++;
+    }
+
+    /**
+     * Adds the point a bounding box touches the floor at, which is the middle of its bottom edge
+     * @param x the left of the box
+     * @param y the top of the box
+     * @param width the width of the box
+     * @param height the height of the box
+     */
+    public void addBox(int x, int y, int width, int height) {
+        addPoint(x + width / 2f, y + height);
+    }
+
+    /**
+     * Adds the floor points of a batch of bounding boxes
+     * @param boxes the boxes, as {x, y, width, height} for each box
+     */
+    public void addBoxes(@NonNull int[] boxes) {
+        for (int i = 0; i + 3 < boxes.length; i += 4) {
+            addBox(boxes[i], boxes[i + 1], boxes[i + 2], boxes[i + 3]);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (imageX.length >= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, imageX.length * 2);
+        imageX = Arrays.copyOf(imageX, newCapacity);
+        imageY = Arrays.copyOf(imageY, newCapacity);
+        floorX = new float[newCapacity];
+        floorY = new float[newCapacity];
+        floorZ = new float[newCapacity];
+        fieldX = new float[newCapacity];
+        fieldY = new float[newCapacity];
+        fieldZ = new float[newCapacity];
+    }
+
+    // endregion batching
+
+    // region projecting
+
+    /**
+     * Projects the batch onto the field. Points above the horizon or further than the max range
+     * are dropped, so the results can be fewer than the points added.
+     * @param kernel a transform kernel with the robot's current pose
+     * @return the number of points that landed on the field
+     */
+    public int project(@NonNull TransformKernel kernel) {
+        double h0 = homography[0], h1 = homography[1], h2 = homography[2];
+        double h3 = homography[3], h4 = homography[4], h5 = homography[5];
+        double h6 = homography[6], h7 = homography[7], h8 = homography[8];
+        float maxRangeSquared = maxRange * maxRange;
+
+        int count = 0;
+        for (int i = 0; i < pointCount; i++) {
+            double u = imageX[i];
+            double v = imageY[i];
+            double w = h6 * u + h7 * v + h8;
+            // the floor is only in front of the camera, so anything behind it is above the horizon
+            if (w <= 0) {
+                continue;
+            }
+            float x = (float) ((h0 * u + h1 * v + h2) / w);
+            float y = (float) ((h3 * u + h4 * v + h5) / w);
+            if (x * x + y * y > maxRangeSquared) {
+                continue;
+            }
+            floorX[count] = x;
+            floorY[count] = y;
+            floorZ[count] = 0;
+            count++;
+        }
+        kernel.robotToField(floorX, floorY, floorZ, count, fieldX, fieldY, fieldZ);
+        projectedCount = count;
+        return count;
+    }
+
+    /**
+     * Projects the batch onto the field from where the robot was when the frame was captured,
+     * rather than where it is now, since the robot keeps moving while the frame goes through the
+     * pipeline
+     * @param kernel a transform kernel. Its robot pose is set to the pose from the history.
+     * @param history the robot's recent poses, in field millimeters
+     * @param time the System.nanoTime() the frame was captured at
+     * @return the number of points that landed on the field, or -1 if the history doesn't go
+     *         back far enough or the newest pose is too old for the frame, see
+     *         {@link #setMaxPoseAge(long)}. Nothing is projected then.
+     */
+    public int project(@NonNull TransformKernel kernel, @NonNull PoseHistory history, long time) {
+        // the history would give the newest pose, which is wrong once the robot has moved on
+        if (history.size() == 0 || time - history.getTime(history.size() - 1) > maxPoseAge
+                || !history.getPose(time, historyPose)) {
+            projectedCount = 0;
+            return -1;
+        }
+        kernel.setRobotPose((float) historyPose[0], (float) historyPose[1], historyPose[2]);
+        return project(kernel);
+    }
+
+    /**
+     * Projects one image point onto the floor, in the robot's frame
+     * @param x the x position in the image
+     * @param y the y position in the image
+     * @param floorOut the floor position {x, y} in millimeters
+     * @return false if the point is above the horizon
+     */
+    public boolean projectToFloor(@ImageCoordinates double x, @ImageCoordinates double y, @NonNull double[] floorOut) {
+        double w = homography[6] * x + homography[7] * y + homography[8];
+        if (w <= 0) {
+            return false;
+        }
+        floorOut[0] = (homography[0] * x + homography[1] * y + homography[2]) / w;
+        floorOut[1] = (homography[3] * x + homography[4] * y + homography[5]) / w;
+        return true;
+    }
+
+    /**
+     * Turns the projected points into potential detections for the detection mapper
+     * @param fieldMap the field map to get matrix positions from
+     * @param space the space the detections should be mapped as
+     * @param potentialOut the list to add the detections to
+     */
+    public void addPotentialDetections(@NonNull FieldMap fieldMap, @NonNull Space space,
+                                       @NonNull List<PotentialDetection> potentialOut) {
+        for (int i = 0; i < projectedCount; i++) {
+            OpenGLMatrix fieldPosition = OpenGLMatrix.translation(fieldX[i], fieldY[i], 0);
+            int[] matrixPosition = fieldMap.getMatrixPosition(fieldX[i], fieldY[i]);
+            potentialOut.add(new PotentialDetection(fieldPosition, matrixPosition, space));
+        }
+    }
+
+    @FieldCoordinates
+    public float getFieldX(int index) { return fieldX[index]; }
+    @FieldCoordinates
+    public float getFieldY(int index) { return fieldY[index]; }
+    public int getProjectedCount() { return projectedCount; }
+    public int getPointCount() { return pointCount; }
+
+    // endregion projecting
+
+    /**
+     * Sets how far from the robot points can be before they're dropped
+     * @param maxRange the max range, in millimeters
+     */
+    public void setMaxRange(float maxRange) {
+        this.maxRange = maxRange;
+    }
+
+    /**
+     * Sets how long after the newest pose in a history a frame can be captured and still be
+     * projected with {@link #project(TransformKernel, PoseHistory, long)}
+     * @param maxPoseAge the max age, in nanoseconds
+     */
+    public void setMaxPoseAge(long maxPoseAge) {
+        this.maxPoseAge = maxPoseAge;
+    }
+
+    public float getMaxRange() { return maxRange; }
+
+    /**
+     * Gets the homography, to save it as a constant after calibrating
+     * @return a copy of the homography, in row major order
+     */
+    @NonNull
+    public double[] getHomography() {
+        return homography.clone();
+    }
+}
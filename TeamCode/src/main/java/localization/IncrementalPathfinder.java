@@ -0,0 +1,392 @@
+package localization;
+
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import annotations.MatrixCoordinates;
+import localization.SpaceMap.Space;
+import util.IndexedMinHeap;
+import util.IntList;
+
+/**
+ * D* Lite pathfinding on a SpaceMap.
+ *
+ * Unlike {@link GridPathfinder}, which searches from scratch every time, this planner searches
+ * backwards from the goal and keeps its results between plans. When spaces change or the robot
+ * moves, only the part of the search affected by the change is repaired, so keeping a route valid
+ * while obstacles appear and disappear is much cheaper than replanning every frame.
+ *
+ * The planner keeps its own copy of which spaces are passable, taken when a plan is started.
+ * The spacemap is only read again for the spaces passed to {@link #updateSpaces(List)}, so the
+ * planner has to be told about every change, usually straight from {@link DetectionMapper#update(List)}
+ * after the changes have been applied to the spacemap.
+ *
+ * Movement rules and costs are the same as {@link GridPathfinder}.
+ *
+ * See "D* Lite" (Koenig, Likhachev 2002) for the algorithm.
+ */
+public class IncrementalPathfinder {
+    private static final String TAG = "vuf.test.d_star_lite";
+    private static final int infinity = Integer.MAX_VALUE / 4; // small enough to add costs to
+
+    private final SpaceMap spaceMap;
+    private final int width;
+    private final int height;
+
+    private final boolean[] passable;
+    private final int[] gScores;
+    private final int[] rhsScores;
+    private final IndexedMinHeap openSet;
+
+    private int startIndex = -1;
+    private int goalIndex = -1;
+    private int lastStart;
+    private int keyModifier;
+
+    private int lastExpansions;
+
+    /**
+     * Create an incremental pathfinder for a spacemap
+     * @param spaceMap the spacemap to plan on
+     */
+    public IncrementalPathfinder(@NonNull SpaceMap spaceMap) {
+        this.spaceMap = spaceMap;
+        this.width = spaceMap.width;
+        this.height = spaceMap.height;
+        int size = width * height;
+        passable = new boolean[size];
+        gScores = new int[size];
+        rhsScores = new int[size];
+        openSet = new IndexedMinHeap(size);
+    }
+
+    // region planning
+
+    /**
+     * Start a new plan from scratch. Takes a new copy of the spacemap's passable spaces.
+     * @param start the coordinates to start at, usually the robot's position
+     * @param goal the coordinates to end at
+     * @param pathOut the list to put the path in, as space indices from start to goal
+     * @return true if a path was found
+     */
+    public boolean plan(@NonNull @MatrixCoordinates int[] start,
+                        @NonNull @MatrixCoordinates int[] goal,
+                        @NonNull IntList pathOut) {
+        pathOut.clear();
+        if (!spaceMap.inBounds(start[0], start[1]) || !spaceMap.inBounds(goal[0], goal[1])) {
+            return false;
+        }
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                passable[getIndex(r, c)] = spaceMap.isPassable(r, c);
+            }
+        }
+        startIndex = getIndex(start[0], start[1]);
+        goalIndex = getIndex(goal[0], goal[1]);
+        lastStart = startIndex;
+        keyModifier = 0;
+
+        Arrays.fill(gScores, infinity);
+        Arrays.fill(rhsScores, infinity);
+        openSet.clear();
+        rhsScores[goalIndex] = 0;
+        openSet.insertOrUpdate(goalIndex, calculateKey(goalIndex));
+
+        return replan(pathOut);
+    }
+
+    /**
+     * Update the robot's position without starting a new plan
+     * @param start the robot's new coordinates
+     */
+    public void moveStart(@NonNull @MatrixCoordinates int[] start) {
+        if (!hasPlan()) {
+            return;
+        }
+        startIndex = getIndex(start[0], start[1]);
+        // the heuristic is relative to the start, so old keys in the open set are now too large by
+        // up to the distance moved. adding that to all new keys keeps the order correct
+        keyModifier += heuristic(lastStart, startIndex);
+        lastStart = startIndex;
+    }
+
+    /**
+     * Rereads a set of spaces from the spacemap and repairs the search wherever their
+     * passability changed. Spaces that didn't change are skipped.
+     * @param changedCoords the coordinates that may have changed
+     */
+    public void updateSpaces(@NonNull @MatrixCoordinates List<int[]> changedCoords) {
+        if (!hasPlan()) {
+            return;
+        }
+        for (int i = 0; i < changedCoords.size(); i++) {
+            int[] coords = changedCoords.get(i);
+            updateSpace(coords[0], coords[1]);
+        }
+    }
+
+    /**
+     * Rereads a set of spaces from the spacemap and repairs the search wherever their
+     * passability changed. Spaces that didn't change are skipped.
+     * @param changedPairs the coordinates that may have changed, as {row, column} pairs
+     */
+    public void updateSpaces(@NonNull @MatrixCoordinates IntList changedPairs) {
+        if (!hasPlan()) {
+            return;
+        }
+        for (int i = 0; i < changedPairs.size(); i += 2) {
+            updateSpace(changedPairs.get(i), changedPairs.get(i+1));
+        }
+    }
+
+    /**
+     * Rereads the spaces removed and added by a detection mapper update. The update should already
+     * have been applied to the spacemap.
+     * @param buffers the buffers filled by {@link DetectionMapper#update(List, DetectionMapper.UpdateBuffers)}
+     */
+    public void updateSpaces(@NonNull DetectionMapper.UpdateBuffers buffers) {
+        updateSpaces(buffers.getRemoved());
+        for (int i = 0; i < Space.count; i++) {
+            updateSpaces(buffers.getAdded(Space.fromOrdinal(i)));
+        }
+    }
+
+    /**
+     * Rereads the spaces removed and added by a detection mapper update. The update should already
+     * have been applied to the spacemap.
+     * @param mapperUpdate the result of {@link DetectionMapper#update(List)}
+     */
+    public void updateSpaces(@NonNull Pair<ArrayList<int[]>, HashMap<Space, ArrayList<int[]>>> mapperUpdate) {
+        updateSpaces(mapperUpdate.first);
+        for (ArrayList<int[]> coordsList : mapperUpdate.second.values()) {
+            updateSpaces(coordsList);
+        }
+    }
+
+    /**
+     * Rereads a single space from the spacemap and repairs the search if its passability changed
+     * @param row the row of the space
+     * @param col the column of the space
+     */
+    public void updateSpace(int row, int col) {
+        if (!hasPlan() || !spaceMap.inBounds(row, col)) {
+            return;
+        }
+        int index = getIndex(row, col);
+        boolean nowPassable = spaceMap.isPassable(row, col);
+        if (passable[index] == nowPassable) {
+            return;
+        }
+        passable[index] = nowPassable;
+        // the space's edges and any diagonal edges cutting its corner have changed, and all of
+        // those edges are between the space and its neighbors
+        updateVertex(index);
+        for (int i = 0; i < GridPathfinder.neighborRows.length; i++) {
+            int nRow = row + GridPathfinder.neighborRows[i];
+            int nCol = col + GridPathfinder.neighborCols[i];
+            if (spaceMap.inBounds(nRow, nCol)) {
+                updateVertex(getIndex(nRow, nCol));
+            }
+        }
+    }
+
+    /**
+     * Repairs the search after any updates and gets the current path
+     * @param pathOut the list to put the path in, as space indices from start to goal
+     * @return true if a path was found
+     */
+    public boolean replan(@NonNull IntList pathOut) {
+        pathOut.clear();
+        if (!hasPlan()) {
+            return false;
+        }
+        computeShortestPath();
+        if (gScores[startIndex] >= infinity) {
+            return false;
+        }
+        // follow the cheapest neighbor from the start to the goal
+        int current = startIndex;
+        pathOut.add(current);
+        int maxSteps = width * height;
+        while (current != goalIndex && pathOut.size() <= maxSteps) {
+            int next = -1;
+            int bestScore = infinity;
+            int row = getRow(current);
+            int col = getCol(current);
+            for (int i = 0; i < GridPathfinder.neighborRows.length; i++) {
+                int nRow = row + GridPathfinder.neighborRows[i];
+                int nCol = col + GridPathfinder.neighborCols[i];
+                if (!spaceMap.inBounds(nRow, nCol)) {
+                    continue;
+                }
+                int neighbor = getIndex(nRow, nCol);
+                int score = cost(current, neighbor) + gScores[neighbor];
+                if (score < bestScore) {
+                    bestScore = score;
+                    next = neighbor;
+                }
+            }
+            if (next == -1) {
+                pathOut.clear();
+                return false;
+            }
+            current = next;
+            pathOut.add(current);
+        }
+        return current == goalIndex;
+    }
+
+    // endregion planning
+
+    // region d* lite
+
+    /**
+     * Expands spaces until the start's score is correct
+     */
+    private void computeShortestPath() {
+        lastExpansions = 0;
+        while (!openSet.isEmpty()
+                && (openSet.peekKey() < calculateKey(startIndex) || rhsScores[startIndex] != gScores[startIndex])) {
+            long oldKey = openSet.peekKey();
+            int current = openSet.peekId();
+            long newKey = calculateKey(current);
+            lastExpansions++;
+
+            if (oldKey < newKey) {
+                // key is out of date because the start moved
+                openSet.insertOrUpdate(current, newKey);
+            } else if (gScores[current] > rhsScores[current]) {
+                // overconsistent, the space got cheaper
+                gScores[current] = rhsScores[current];
+                openSet.remove(current);
+                int row = getRow(current);
+                int col = getCol(current);
+                for (int i = 0; i < GridPathfinder.neighborRows.length; i++) {
+                    int nRow = row + GridPathfinder.neighborRows[i];
+                    int nCol = col + GridPathfinder.neighborCols[i];
+                    if (!spaceMap.inBounds(nRow, nCol)) {
+                        continue;
+                    }
+                    int neighbor = getIndex(nRow, nCol);
+                    if (neighbor != goalIndex) {
+                        rhsScores[neighbor] = Math.min(rhsScores[neighbor],
+                                addCost(cost(neighbor, current), gScores[current]));
+                    }
+                    updateQueue(neighbor);
+                }
+            } else {
+                // underconsistent, the space got more expensive
+                gScores[current] = infinity;
+                updateVertex(current);
+                int row = getRow(current);
+                int col = getCol(current);
+                for (int i = 0; i < GridPathfinder.neighborRows.length; i++) {
+                    int nRow = row + GridPathfinder.neighborRows[i];
+                    int nCol = col + GridPathfinder.neighborCols[i];
+                    if (spaceMap.inBounds(nRow, nCol)) {
+                        updateVertex(getIndex(nRow, nCol));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Recalculates a space's rhs score from its neighbors, then updates its place in the open set
+     * @param index the index of the space
+     */
+    private void updateVertex(int index) {
+        if (index != goalIndex) {
+            int best = infinity;
+            int row = getRow(index);
+            int col = getCol(index);
+            for (int i = 0; i < GridPathfinder.neighborRows.length; i++) {
+                int nRow = row + GridPathfinder.neighborRows[i];
+                int nCol = col + GridPathfinder.neighborCols[i];
+                if (spaceMap.inBounds(nRow, nCol)) {
+                    int neighbor = getIndex(nRow, nCol);
+                    best = Math.min(best, addCost(cost(index, neighbor), gScores[neighbor]));
+                }
+            }
+            rhsScores[index] = best;
+        }
+        updateQueue(index);
+    }
+
+    /**
+     * Puts a space in the open set if it's inconsistent, otherwise removes it
+     * @param index the index of the space
+     */
+    private void updateQueue(int index) {
+        if (gScores[index] != rhsScores[index]) {
+            openSet.insertOrUpdate(index, calculateKey(index));
+        } else {
+            openSet.remove(index);
+        }
+    }
+
+    /**
+     * Calculates a space's key for the open set, packed so that comparing the longs compares
+     * the keys in order
+     * @param index the index of the space
+     * @return the packed key
+     */
+    private long calculateKey(int index) {
+        int minScore = Math.min(gScores[index], rhsScores[index]);
+        int primary = addCost(addCost(minScore, heuristic(startIndex, index)), keyModifier);
+        return ((long) primary << 32) | minScore;
+    }
+
+    /**
+     * Gets the cost of moving between two neighboring spaces with the planner's copy of the map
+     * @return the cost, or infinity if the move isn't allowed
+     */
+    private int cost(int from, int to) {
+        if (!passable[from] || !passable[to]) {
+            return infinity;
+        }
+        int fromRow = getRow(from);
+        int fromCol = getCol(from);
+        int toRow = getRow(to);
+        int toCol = getCol(to);
+        if (fromRow != toRow && fromCol != toCol) {
+            // dont cut corners
+            if (!passable[getIndex(fromRow, toCol)] || !passable[getIndex(toRow, fromCol)]) {
+                return infinity;
+            }
+            return GridPathfinder.diagonalCost;
+        }
+        return GridPathfinder.straightCost;
+    }
+
+    private static int addCost(int a, int b) {
+        return (a >= infinity || b >= infinity) ? infinity : Math.min(infinity, a + b);
+    }
+
+    private int heuristic(int from, int to) {
+        return GridPathfinder.octileDistance(getRow(from), getCol(from), getRow(to), getCol(to));
+    }
+
+    // endregion d* lite
+
+    // region accessors
+
+    public boolean hasPlan() { return goalIndex >= 0; }
+    public int getIndex(int row, int col) { return row * width + col; }
+    public int getRow(int index) { return index / width; }
+    public int getCol(int index) { return index % width; }
+
+    /**
+     * Gets the number of spaces expanded in the last replan, which is useful for benchmarking
+     * @return the number of expanded spaces
+     */
+    public int getLastExpansions() { return lastExpansions; }
+
+    // endregion accessors
+}
@@ -0,0 +1,259 @@
+package localization;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import localization.SpaceMap.Space;
+import util.IntList;
+
+/**
+ * Replays a map log written by {@link MapRecorder}.
+ *
+ * The log is memory mapped instead of read in, so opening even a long match only has to walk
+ * the frame headers to index them. Moving to a frame goes back to the closest keyframe at or
+ * before it and applies the deltas from there, or just applies the deltas from the current frame
+ * when moving forward a little, so scrubbing back and forth is fast.
+ *
+ * This doesn't use anything from android, so it can also run on a laptop to look at logs pulled
+ * off the robot. A reader should only be used from one thread.
+ */
+public class MapLogReader {
+    public final int height;
+    public final int width;
+    private final int scale;
+
+    private final MappedByteBuffer data;
+    // the position of each frame's type byte
+    private final IntList frameOffsets;
+
+    // the map at the current frame, as space ordinals
+    private final byte[] grid;
+    private int currentFrame = -1;
+    private int detectionOffset;
+
+    private final int[] scratchCoords = new int[2];
+
+    /**
+     * Opens a map log and indexes its frames. A frame cut off at the end of the log is ignored.
+     * @param file the log file
+     * @throws IOException if the file can't be read or isn't a map log
+     */
+    public MapLogReader(@NonNull File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            // the mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.limit() < MapRecorder.headerBytes || data.getInt(0) != MapRecorder.fileMagic) {
+            throw new IOException("Not a map log");
+        }
+        int version = data.getInt(4);
+        if (version != MapRecorder.fileVersion) {
+            throw new IOException("Unsupported map log version " + version);
+        }
+        height = data.getShort(8) & 0xFFFF;
+        width = data.getShort(10) & 0xFFFF;
+        scale = data.getShort(12) & 0xFFFF;
+        grid = new byte[height * width];
+
+        frameOffsets = new IntList();
+        int offset = MapRecorder.headerBytes;
+        while (offset + 4 <= data.limit()) {
+            int length = data.getInt(offset);
+            if (length < MapRecorder.frameHeaderBytes || length > data.limit() - offset - 4) {
+                break;
+            }
+            frameOffsets.add(offset + 4);
+            offset += 4 + length;
+        }
+        if (!frameOffsets.isEmpty() && !isKeyframe(0)) {
+            throw new IOException("Map log doesn't start with a keyframe");
+        }
+    }
+
+    // region frames
+
+    /**
+     * Moves to a frame, updating the map and detections
+     * @param frame the index of the frame
+     */
+    public void seek(int frame) {
+        if (frame < 0 || frame >= frameOffsets.size()) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " out of bounds for " + frameOffsets.size() + " frames");
+        }
+        int keyframe = frame;
+        while (!isKeyframe(keyframe)) {
+            keyframe--;
+        }
+        // only go back to the keyframe if the current frame isn't already on the way
+        int firstFrame = keyframe;
+        if (currentFrame >= keyframe && currentFrame <= frame) {
+            firstFrame = currentFrame + 1;
+        }
+        for (int i = firstFrame; i <= frame; i++) {
+            applyFrame(i);
+        }
+        currentFrame = frame;
+    }
+
+    /**
+     * Moves to the next frame
+     * @return false if there isn't another frame
+     */
+    public boolean next() {
+        if (currentFrame + 1 >= frameOffsets.size()) {
+            return false;
+        }
+        seek(currentFrame + 1);
+        return true;
+    }
+
+    /**
+     * Finds the last frame recorded at or before a time
+     * @param time the time in nanoseconds since recording started
+     * @return the index of the frame, or -1 if the time is before the first frame
+     */
+    public int findFrame(long time) {
+        int low = 0;
+        int high = frameOffsets.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getFrameTime(mid) <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads a frame's spaces into the grid and saves where its detections start
+     * @param frame the index of the frame
+     */
+    private void applyFrame(int frame) {
+        int position = frameOffsets.get(frame) + MapRecorder.frameHeaderBytes;
+        data.position(position);
+        if (isKeyframe(frame)) {
+            data.get(grid);
+        } else {
+            int rowCount = data.getShort() & 0xFFFF;
+            for (int i = 0; i < rowCount; i++) {
+                int row = data.getShort() & 0xFFFF;
+                data.get(grid, row * width, width);
+            }
+        }
+        detectionOffset = data.position();
+    }
+
+    private boolean isKeyframe(int frame) {
+        return data.get(frameOffsets.get(frame)) == MapRecorder.keyframeType;
+    }
+
+    /**
+     * Gets when a frame was recorded
+     * @param frame the index of the frame
+     * @return the time in nanoseconds since recording started
+     */
+    public long getFrameTime(int frame) {
+        return data.getLong(frameOffsets.get(frame) + 1);
+    }
+
+    /**
+     * Gets the spacemap version a frame was recorded at
+     * @param frame the index of the frame
+     * @return the spacemap version
+     */
+    public long getFrameVersion(int frame) {
+        return data.getLong(frameOffsets.get(frame) + 9);
+    }
+
+    public int getFrameCount() { return frameOffsets.size(); }
+    public int getCurrentFrame() { return currentFrame; }
+
+    // endregion frames
+
+    // region map
+
+    /**
+     * Gets a space at the current frame
+     * @param row the row of the space
+     * @param col the column of the space
+     * @return the space
+     */
+    @NonNull
+    public Space getSpace(int row, int col) {
+        return Space.fromOrdinal(grid[row * width + col]);
+    }
+
+    /**
+     * Sets every space of a spacemap that's different from the current frame, so the spacemap's
+     * dirty tracking only sees what changed between frames
+     * @param spaceMap the spacemap to update, with the same size as the log
+     */
+    public void applyTo(@NonNull SpaceMap spaceMap) {
+        for (int r = 0; r < height; r++) {
+            int rowStart = r * width;
+            for (int c = 0; c < width; c++) {
+                Space space = Space.fromOrdinal(grid[rowStart + c]);
+                if (spaceMap.getSpace(r, c) != space) {
+                    scratchCoords[0] = r;
+                    scratchCoords[1] = c;
+                    spaceMap.setSpace(space, scratchCoords, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a spacemap of the current frame, with the same ranges the field map uses
+     * @return the new spacemap
+     */
+    @NonNull
+    public SpaceMap toSpaceMap() {
+        SpaceMap spaceMap = new SpaceMap(height, width, 1, height - 2);
+        applyTo(spaceMap);
+        return spaceMap;
+    }
+
+    public int getScale() { return scale; }
+
+    // endregion map
+
+    // region detections
+
+    /**
+     * Gets the number of mapped detections at the current frame
+     * @return the number of detections
+     */
+    public int getDetectionCount() {
+        return currentFrame < 0 ? 0 : data.getShort(detectionOffset) & 0xFFFF;
+    }
+
+    @NonNull
+    public Space getDetectionSpace(int index) {
+        return Space.fromOrdinal(data.get(getDetectionOffset(index)));
+    }
+
+    public float getDetectionX(int index) { return data.getFloat(getDetectionOffset(index) + 1); }
+    public float getDetectionY(int index) { return data.getFloat(getDetectionOffset(index) + 5); }
+    public int getDetectionRow(int index) { return data.getShort(getDetectionOffset(index) + 9); }
+    public int getDetectionCol(int index) { return data.getShort(getDetectionOffset(index) + 11); }
+    public int getDetectionConfidence(int index) { return data.get(getDetectionOffset(index) + 13); }
+
+    private int getDetectionOffset(int index) {
+        if (index < 0 || index >= getDetectionCount()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + getDetectionCount());
+        }
+        return detectionOffset + 2 + index * DetectionMapper.recordedDetectionBytes;
+    }
+
+    // endregion detections
+}
@@ -0,0 +1,235 @@
+package localization;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.firstinspires.ftc.robotcore.internal.system.AppUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records how the field map changes over a match to a compact binary log, so it can be replayed
+ * and scrubbed through later with {@link MapLogReader}, like on a laptop after a match.
+ *
+ * The log is append only. It starts with a header, then has one frame per call to
+ * {@link #record(SpaceMapSnapshot)}. Most frames are deltas that only hold the rows that changed
+ * since the last frame, which snapshots make free to find. Every {@link #keyframeInterval}
+ * frames, a keyframe with the whole map is written instead, so the reader can jump to any point
+ * without replaying the whole match. Frames are built in one reused buffer and written in one go,
+ * so recording doesn't allocate, and a log cut off by a crash is still readable up to the last
+ * whole frame.
+ *
+ * Format, all big endian:
+ * header: int magic "MLOG", int version, short height, short width, short scale
+ * frame: int length of the rest of the frame, byte type (keyframe or delta),
+ *      long nanoseconds since recording started, long spacemap version, then
+ *      keyframe: height * width space ordinals, row by row
+ *      delta: short row count, then for each row a short row number and width space ordinals
+ *      and then for both: short detection count and the detections, see
+ *      {@link DetectionMapper#writeMappedDetections(ByteBuffer)}
+ */
+public class MapRecorder {
+    private static final String TAG = "vuf.test.map_recorder";
+    static final int fileMagic = 0x4D4C4F47; // "MLOG"
+    static final int fileVersion = 1;
+    static final int headerBytes = 14;
+    static final byte keyframeType = 1;
+    static final byte deltaType = 2;
+    // bytes in a frame before the map data, not counting the length
+    static final int frameHeaderBytes = 17;
+    public static final int keyframeInterval = 150;
+
+    private final FileOutputStream outputStream;
+    private final FileChannel channel;
+    private final int height;
+    private final int width;
+    private final long startTime;
+
+    private ByteBuffer buffer;
+    private DetectionMapper detectionMapper;
+    private SpaceMapSnapshot lastSnapshot;
+    // the detection mapper's update count when the last frame was recorded
+    private int lastDetectionUpdate;
+    private int framesSinceKeyframe;
+    private int frameCount;
+
+    /**
+     * Create a recorder and write the log header. Anything already in the file is replaced.
+     * @param file the file to record to
+     * @param height the height of the spacemap
+     * @param width the width of the spacemap
+     * @param scale the size of each space in millimeters, so the reader can convert back
+     * @throws IOException if the file can't be written
+     */
+    public MapRecorder(@NonNull File file, int height, int width, int scale) throws IOException {
+        this.height = height;
+        this.width = width;
+        outputStream = new FileOutputStream(file);
+        channel = outputStream.getChannel();
+        buffer = ByteBuffer.allocateDirect(getFrameCapacity(16));
+
+        buffer.clear();
+        buffer.putInt(fileMagic);
+        buffer.putInt(fileVersion);
+        buffer.putShort((short) height);
+        buffer.putShort((short) width);
+        buffer.putShort((short) scale);
+        writeBuffer();
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Creates a recorder for a field map in the robot's data directory
+     * Saves to "/storage/emulated/0/FIRST/data/{filename}"
+     * @param fieldMap the field map to record
+     * @param filename the name of the file
+     * @return the recorder, or null if the file couldn't be created
+     */
+    @Nullable
+    public static MapRecorder create(@NonNull FieldMap fieldMap, @NonNull String filename) {
+        File file = new File(AppUtil.ROBOT_DATA_DIR, filename);
+        SpaceMap spaceMap = fieldMap.getSpaceMap();
+        try {
+            MapRecorder recorder = new MapRecorder(file, spaceMap.height, spaceMap.width, fieldMap.getScale());
+            Log.d(TAG, String.format("Recording map to %s", file));
+            return recorder;
+        } catch (IOException e) {
+            Log.d(TAG, "couldn't create map log");
+            Log.d(TAG, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Sets a detection mapper whose mapped detections are recorded with every frame
+     * @param detectionMapper the detection mapper, or null to stop recording detections
+     */
+    public void setDetectionMapper(@Nullable DetectionMapper detectionMapper) {
+        this.detectionMapper = detectionMapper;
+        // update counts never go negative, so the next frame is recorded with the new detections
+        lastDetectionUpdate = -1;
+    }
+
+    /**
+     * Checks if a snapshot would record anything new: either the spacemap changed since the last
+     * frame or the detections did.
+     * @param snapshot the latest snapshot of the spacemap
+     * @return true if there's something to record
+     */
+    public boolean hasChanges(@NonNull SpaceMapSnapshot snapshot) {
+        return lastSnapshot == null || snapshot.getVersion() != lastSnapshot.getVersion()
+                || (detectionMapper != null && detectionMapper.getUpdateCount() != lastDetectionUpdate);
+    }
+
+    /**
+     * Records a frame, even if nothing changed since the last one. Should be called from the
+     * thread that updates the detection mapper, if there is one.
+     * @param snapshot the latest snapshot of the spacemap
+     * @return true if the frame was written
+     */
+    public boolean record(@NonNull SpaceMapSnapshot snapshot) {
+        if (!channel.isOpen()) {
+            return false;
+        }
+        int detectionCount = detectionMapper == null ? 0 : detectionMapper.getMappedCount();
+        boolean keyframe = lastSnapshot == null || framesSinceKeyframe >= keyframeInterval;
+        ensureCapacity(detectionCount);
+
+        buffer.clear();
+        buffer.putInt(0); // filled in once the frame is done
+        buffer.put(keyframe ? keyframeType : deltaType);
+        buffer.putLong(System.nanoTime() - startTime);
+        buffer.putLong(snapshot.getVersion());
+        if (keyframe) {
+            for (int r = 0; r < height; r++) {
+                buffer.put(snapshot.getSharedRow(r));
+            }
+            framesSinceKeyframe = 0;
+        } else {
+            int countPosition = buffer.position();
+            buffer.putShort((short) 0);
+            int changedRows = 0;
+            for (int r = 0; r < height; r++) {
+                if (snapshot.isRowChangedSince(lastSnapshot, r)) {
+                    buffer.putShort((short) r);
+                    buffer.put(snapshot.getSharedRow(r));
+                    changedRows++;
+                }
+            }
+            buffer.putShort(countPosition, (short) changedRows);
+            framesSinceKeyframe++;
+        }
+
+        buffer.putShort((short) detectionCount);
+        if (detectionMapper != null) {
+            detectionMapper.writeMappedDetections(buffer);
+        }
+        buffer.putInt(0, buffer.position() - 4);
+
+        try {
+            writeBuffer();
+        } catch (IOException e) {
+            Log.d(TAG, "couldn't write map frame");
+            Log.d(TAG, e.toString());
+            // the reader stops at a broken frame, so nothing after it could be read anyway
+            close();
+            return false;
+        }
+        lastSnapshot = snapshot;
+        lastDetectionUpdate = detectionMapper == null ? 0 : detectionMapper.getUpdateCount();
+        frameCount++;
+        return true;
+    }
+
+    /**
+     * Makes sure the buffer can hold a frame with a number of detections, growing it if not.
+     * Only allocates when there are more detections than ever before.
+     * @param detectionCount the number of detections in the frame
+     */
+    private void ensureCapacity(int detectionCount) {
+        if (buffer.capacity() < getFrameCapacity(detectionCount)) {
+            buffer = ByteBuffer.allocateDirect(getFrameCapacity(detectionCount * 2));
+        }
+    }
+
+    /**
+     * Gets the size of the biggest possible frame, which is a delta where every row changed
+     * @param detectionCount the number of detections in the frame
+     * @return the size in bytes
+     */
+    private int getFrameCapacity(int detectionCount) {
+        return 4 + frameHeaderBytes + 2 + height * (2 + width) + 2
+                + detectionCount * DetectionMapper.recordedDetectionBytes;
+    }
+
+    /**
+     * Writes everything in the buffer up to its position to the file
+     * @throws IOException if the file can't be written
+     */
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Closes the log. Frames recorded after this are dropped.
+     */
+    public void close() {
+        try {
+            outputStream.close();
+            Log.d(TAG, String.format("Recorded %s map frames", frameCount));
+        } catch (IOException e) {
+            Log.d(TAG, e.toString());
+        }
+    }
+
+    public int getFrameCount() { return frameCount; }
+}
@@ -0,0 +1,232 @@
+package localization;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+import annotations.MatrixCoordinates;
+import localization.SpaceMap.Space;
+import util.IntList;
+
+/**
+ * A probabilistic alternative to the detection mapper's confidence counters.
+ *
+ * Each space stores the log odds that it's occupied. Detections add evidence that a space is
+ * occupied and disappearances add evidence that it's empty, and every frame the old evidence
+ * decays a little so the map can recover from bad detections. A space is only mapped once its
+ * log odds pass the occupied threshold, and only unmapped once they fall below the lower free
+ * threshold, so a space that's detected in some frames but not others doesn't flicker.
+ *
+ * Evidence from a frame is added to a pending array, then applied to the whole grid at once in
+ * {@link #integrate()}. That keeps the per space update to a single flat loop over primitive
+ * arrays that the compiler can vectorize, and nothing is allocated after construction.
+ *
+ * Usage each frame:
+ * 1. add hits and misses, usually through {@link DetectionMapper#setOccupancyGrid(OccupancyGrid)}
+ * 2. call {@link #integrate()}
+ * 3. call {@link #applyTo(SpaceMap, IntList)} to map the occupied spaces, then render as usual
+ */
+public class OccupancyGrid {
+    // sensor model, in log odds. log(p / (1 - p))
+    public static final float defaultHitLogOdds = 0.85f; // p = 0.7
+    public static final float defaultMissLogOdds = -0.4f; // p = 0.4
+    public static final float defaultDecay = 0.98f; // fraction of evidence kept each frame
+    private static final float minLogOdds = -2f;
+    private static final float maxLogOdds = 3.5f;
+    private static final float occupiedThreshold = 1.4f; // p = 0.8
+    private static final float freeThreshold = 0.4f; // p = 0.6
+
+    public final int height;
+    public final int width;
+    private final Space occupiedSpace;
+    private final float hitLogOdds;
+    private final float missLogOdds;
+    private final float decay;
+
+    private final float[] logOdds;
+    private final float[] pendingLogOdds;
+    // whether each space is currently above the occupied threshold, after hysteresis
+    private final boolean[] occupied;
+    private final int[] coords = new int[2];
+
+    /**
+     * Create an occupancy grid with the default sensor model
+     * @param height the height of the grid, which should match the spacemap
+     * @param width the width of the grid, which should match the spacemap
+     * @param occupiedSpace the space to map occupied spaces as, usually {@link Space#OBSTACLE}
+     */
+    public OccupancyGrid(int height, int width, @NonNull Space occupiedSpace) {
+        this(height, width, occupiedSpace, defaultHitLogOdds, defaultMissLogOdds, defaultDecay);
+    }
+
+    /**
+     * Create an occupancy grid
+     * @param height the height of the grid, which should match the spacemap
+     * @param width the width of the grid, which should match the spacemap
+     * @param occupiedSpace the space to map occupied spaces as, usually {@link Space#OBSTACLE}
+     * @param hitLogOdds the log odds added when a space is detected. Should be positive.
+     * @param missLogOdds the log odds added when a space is seen to be empty. Should be negative.
+     * @param decay the fraction of the log odds kept each frame, between 0 and 1
+     */
+    public OccupancyGrid(int height, int width, @NonNull Space occupiedSpace,
+                         float hitLogOdds, float missLogOdds, float decay) {
+        this.height = height;
+        this.width = width;
+        this.occupiedSpace = occupiedSpace;
+        this.hitLogOdds = hitLogOdds;
+        this.missLogOdds = missLogOdds;
+        this.decay = decay;
+        logOdds = new float[height * width];
+        pendingLogOdds = new float[height * width];
+        occupied = new boolean[height * width];
+    }
+
+    // region evidence
+
+    /**
+     * Adds evidence that a space is occupied
+     * @param row the row of the space
+     * @param col the column of the space
+     */
+    public void addHit(int row, int col) {
+        pendingLogOdds[row * width + col] += hitLogOdds;
+    }
+
+    /**
+     * Adds evidence that a space is empty
+     * @param row the row of the space
+     * @param col the column of the space
+     */
+    public void addMiss(int row, int col) {
+        pendingLogOdds[row * width + col] += missLogOdds;
+    }
+
+    /**
+     * Adds evidence that a list of spaces are occupied
+     * @param coordPairs the spaces, as {row, column} pairs
+     */
+    public void addHits(@NonNull @MatrixCoordinates IntList coordPairs) {
+        for (int i = 0; i < coordPairs.size(); i += 2) {
+            addHit(coordPairs.get(i), coordPairs.get(i+1));
+        }
+    }
+
+    /**
+     * Adds evidence that a list of spaces are empty
+     * @param coordPairs the spaces, as {row, column} pairs
+     */
+    public void addMisses(@NonNull @MatrixCoordinates IntList coordPairs) {
+        for (int i = 0; i < coordPairs.size(); i += 2) {
+            addMiss(coordPairs.get(i), coordPairs.get(i+1));
+        }
+    }
+
+    /**
+     * Decays the old evidence and applies the evidence added since the last integration.
+     * Should be called once per frame.
+     */
+    public void integrate() {
+        float[] values = logOdds;
+        float[] pending = pendingLogOdds;
+        float keep = decay;
+        // kept branch free so it can be vectorized
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.min(maxLogOdds, Math.max(minLogOdds, values[i] * keep + pending[i]));
+        }
+        Arrays.fill(pending, 0f);
+    }
+
+    /**
+     * Throws away all evidence
+     */
+    public void clear() {
+        Arrays.fill(logOdds, 0f);
+        Arrays.fill(pendingLogOdds, 0f);
+        Arrays.fill(occupied, false);
+    }
+
+    // endregion evidence
+
+    // region queries
+
+    /**
+     * Updates which spaces are occupied, and maps the changes onto a spacemap.
+     * Spaces become occupied above the occupied threshold and only become free again below the
+     * lower free threshold. Static spaces on the spacemap are never changed.
+     * @param spaceMap the spacemap to map the occupied spaces onto
+     * @param changedOut if not null, the spaces that changed are added to it as {row, column} pairs,
+     *                   which can be passed straight to {@link IncrementalPathfinder#updateSpaces(IntList)}
+     * @return true if any spaces changed
+     */
+    public boolean applyTo(@NonNull SpaceMap spaceMap, @Nullable IntList changedOut) {
+        boolean changed = false;
+        for (int i = 0; i < logOdds.length; i++) {
+            boolean wasOccupied = occupied[i];
+            boolean nowOccupied = wasOccupied ? logOdds[i] > freeThreshold : logOdds[i] > occupiedThreshold;
+            if (wasOccupied == nowOccupied) {
+                continue;
+            }
+            occupied[i] = nowOccupied;
+            changed = true;
+            coords[0] = i / width;
+            coords[1] = i % width;
+            if (nowOccupied) {
+                spaceMap.addSpace(occupiedSpace, coords, false);
+            } else if (spaceMap.getSpace(coords) == occupiedSpace) {
+                spaceMap.setSpace(Space.CLEAR, coords, false);
+            }
+            if (changedOut != null) {
+                changedOut.addPair(coords[0], coords[1]);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Determines whether a space is occupied, as of the last {@link #applyTo(SpaceMap, IntList)}
+     * @param row the row of the space
+     * @param col the column of the space
+     * @return true if the space is occupied
+     */
+    public boolean isOccupied(int row, int col) {
+        return occupied[row * width + col];
+    }
+
+    /**
+     * Determines whether a space's log odds are above a threshold, ignoring hysteresis
+     * @param row the row of the space
+     * @param col the column of the space
+     * @param threshold the threshold, as a probability between 0 and 1
+     * @return true if the space's probability of being occupied is above the threshold
+     */
+    public boolean isAboveThreshold(int row, int col, double threshold) {
+        return logOdds[row * width + col] > toLogOdds(threshold);
+    }
+
+    /**
+     * Gets the probability that a space is occupied
+     * @param row the row of the space
+     * @param col the column of the space
+     * @return the probability, between 0 and 1
+     */
+    public double getProbability(int row, int col) {
+        return 1 - 1 / (1 + Math.exp(logOdds[row * width + col]));
+    }
+
+    public float getLogOdds(int row, int col) { return logOdds[row * width + col]; }
+
+    @NonNull
+    public Space getOccupiedSpace() { return occupiedSpace; }
+
+    /**
+     * Converts a probability to log odds
+     * @param probability the probability, between 0 and 1
+     * @return the log odds
+     */
+    public static float toLogOdds(double probability) {
+        return (float) Math.log(probability / (1 - probability));
+    }
+
+    // endregion queries
+}
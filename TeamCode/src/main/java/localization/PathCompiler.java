@@ -0,0 +1,156 @@
+package localization;
+
+import static RoadRunner.DriveConstants.MAX_ANG_VEL;
+import static RoadRunner.DriveConstants.TRACK_WIDTH;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.acmerobotics.roadrunner.geometry.Pose2d;
+import com.acmerobotics.roadrunner.geometry.Vector2d;
+import com.acmerobotics.roadrunner.trajectory.constraints.TrajectoryAccelerationConstraint;
+import com.acmerobotics.roadrunner.trajectory.constraints.TrajectoryVelocityConstraint;
+
+import org.firstinspires.ftc.teamcode.trajectorysequence.TrajectorySequence;
+import org.firstinspires.ftc.teamcode.trajectorysequence.TrajectorySequenceBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mechanisms.RoadRunnerMecanumDrive;
+import util.IntList;
+
+/**
+ * Turns a path from a grid pathfinder into a RoadRunner trajectory sequence the drive can follow.
+ *
+ * The path is first shortened into straight segments with
+ * {@link GridPathfinder#shortcutPath(IntList, IntList)}, so only the corners are kept. The corners
+ * are converted from matrix coordinates to the center of their space in field inches, then
+ * joined with splines. The tangent at each corner points from the corner before it to the corner
+ * after it, so the robot rounds corners smoothly instead of stopping at each one.
+ *
+ * Trajectories use the field coordinate system, so the drive's pose estimate has to be in field
+ * coordinates too, usually set from vuforia before compiling.
+ * The robot keeps its heading until the last segment, where it turns to the end heading.
+ */
+public class PathCompiler {
+    private static final String TAG = "vuf.test.path_compiler";
+    public static final double mmPerInch = 25.4;
+    // corners closer than this to the previous point are skipped, since a spline can't have
+    // zero length
+    private static final double minSegmentLength = 1; // in
+
+    private final FieldMap fieldMap;
+    private final GridPathfinder pathfinder;
+    private final IntList corners = new IntList();
+
+    private TrajectoryVelocityConstraint velConstraint;
+    private TrajectoryAccelerationConstraint accelConstraint;
+
+    /**
+     * Create a path compiler
+     * @param fieldMap the field map the paths are on, used to convert them to field coordinates
+     * @param pathfinder the pathfinder that made the paths
+     */
+    public PathCompiler(@NonNull FieldMap fieldMap, @NonNull GridPathfinder pathfinder) {
+        this.fieldMap = fieldMap;
+        this.pathfinder = pathfinder;
+    }
+
+    /**
+     * Compiles a path into a trajectory sequence
+     * @param drive the drive to build the trajectory for. Its constraints are used unless
+     *              {@link #setConstraints(double, double)} has been called.
+     * @param path the path from the pathfinder, as space indices from start to end
+     * @param startPose the robot's current pose, in field inches
+     * @param endHeading the heading the robot should end at, in radians
+     * @return the trajectory sequence, or null if the path doesn't go anywhere
+     */
+    @Nullable
+    public TrajectorySequence compile(@NonNull RoadRunnerMecanumDrive drive, @NonNull IntList path,
+                                      @NonNull Pose2d startPose, double endHeading) {
+        List<Vector2d> waypoints = getWaypoints(path, startPose.vec());
+        if (waypoints.isEmpty()) {
+            Log.d(TAG, "Path is empty, nothing to compile");
+            return null;
+        }
+
+        TrajectorySequenceBuilder builder = drive.trajectorySequenceBuilder(startPose);
+        if (velConstraint != null) {
+            builder.setConstraints(velConstraint, accelConstraint);
+        }
+        builder.setTangent(getTangent(startPose.vec(), waypoints.get(0)));
+
+        Vector2d previous = startPose.vec();
+        for (int i = 0; i < waypoints.size(); i++) {
+            Vector2d waypoint = waypoints.get(i);
+            if (i == waypoints.size() - 1) {
+                builder.splineToLinearHeading(new Pose2d(waypoint, endHeading), getTangent(previous, waypoint));
+            } else {
+                builder.splineToConstantHeading(waypoint, getTangent(previous, waypoints.get(i + 1)));
+            }
+            previous = waypoint;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Gets the corners of a path in field coordinates
+     * @param path the path from the pathfinder, as space indices from start to end
+     * @param start the robot's position, in field inches. Corners too close to it are skipped.
+     * @return the corners after the start, in field inches
+     */
+    @NonNull
+    public List<Vector2d> getWaypoints(@NonNull IntList path, @NonNull Vector2d start) {
+        pathfinder.shortcutPath(path, corners);
+        List<Vector2d> waypoints = new ArrayList<>(corners.size());
+        Vector2d previous = start;
+        // the first corner is the robot's own space
+        for (int i = 1; i < corners.size(); i++) {
+            Vector2d waypoint = toFieldInches(corners.get(i));
+            if (waypoint.distTo(previous) < minSegmentLength) {
+                continue;
+            }
+            waypoints.add(waypoint);
+            previous = waypoint;
+        }
+        return waypoints;
+    }
+
+    /**
+     * Converts a space index to the field position of the space's center
+     * @param index the space index
+     * @return the field position, in inches
+     */
+    @NonNull
+    public Vector2d toFieldInches(int index) {
+        double x = fieldMap.getSpaceCenterX(pathfinder.getRow(index));
+        double y = fieldMap.getSpaceCenterY(pathfinder.getCol(index));
+        return new Vector2d(x / mmPerInch, y / mmPerInch);
+    }
+
+    /**
+     * Sets the velocity and acceleration limits for compiled trajectories, to drive paths slower
+     * than the drive's defaults
+     * @param maxVel the max velocity, in inches per second
+     * @param maxAccel the max acceleration, in inches per second squared
+     */
+    public void setConstraints(double maxVel, double maxAccel) {
+        velConstraint = RoadRunnerMecanumDrive.getVelocityConstraint(maxVel, MAX_ANG_VEL, TRACK_WIDTH);
+        accelConstraint = RoadRunnerMecanumDrive.getAccelerationConstraint(maxAccel);
+    }
+
+    /**
+     * Goes back to using the drive's default constraints
+     */
+    public void resetConstraints() {
+        velConstraint = null;
+        accelConstraint = null;
+    }
+
+    private static double getTangent(@NonNull Vector2d from, @NonNull Vector2d to) {
+        return Math.atan2(to.getY() - from.getY(), to.getX() - from.getX());
+    }
+}
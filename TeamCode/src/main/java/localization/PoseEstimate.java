@@ -0,0 +1,111 @@
+package localization;
+
+import androidx.annotation.NonNull;
+
+import org.firstinspires.ftc.robotcore.external.matrices.OpenGLMatrix;
+import org.firstinspires.ftc.robotcore.external.navigation.AngleUnit;
+import org.firstinspires.ftc.robotcore.external.navigation.AxesOrder;
+import org.firstinspires.ftc.robotcore.external.navigation.AxesReference;
+import org.firstinspires.ftc.robotcore.external.navigation.Orientation;
+
+import java.util.Locale;
+
+import annotations.FieldCoordinates;
+
+/**
+ * A flat robot pose on the field along with how sure we are about it and when it was measured.
+ *
+ * Positions are in field millimeters and the heading is in radians, the same as vuforia's
+ * robot location. The uncertainty is a covariance: the variance of x, y, and heading, plus how
+ * x and y vary together. Estimates never change once made, so they can be handed between threads.
+ */
+public final class PoseEstimate {
+    @FieldCoordinates
+    public final double x;
+    @FieldCoordinates
+    public final double y;
+    public final double heading; // radians
+
+    public final double varianceX; // mm^2
+    public final double varianceY; // mm^2
+    public final double covarianceXY; // mm^2
+    public final double varianceHeading; // rad^2
+
+    // System.nanoTime() of the camera frame the estimate came from
+    public final long timestamp;
+    // the number of measurements fused into this estimate
+    public final int sourceCount;
+
+    /**
+     * Create a pose estimate
+     * @param x the x position, in field millimeters
+     * @param y the y position, in field millimeters
+     * @param heading the heading, in radians
+     * @param varianceX the variance of x
+     * @param varianceY the variance of y
+     * @param covarianceXY the covariance of x and y
+     * @param varianceHeading the variance of the heading
+     * @param timestamp the System.nanoTime() the pose was measured at
+     * @param sourceCount the number of measurements that went into the estimate
+     */
+    public PoseEstimate(@FieldCoordinates double x, @FieldCoordinates double y, double heading,
+                        double varianceX, double varianceY, double covarianceXY, double varianceHeading,
+                        long timestamp, int sourceCount) {
+        this.x = x;
+        this.y = y;
+        this.heading = heading;
+        this.varianceX = varianceX;
+        this.varianceY = varianceY;
+        this.covarianceXY = covarianceXY;
+        this.varianceHeading = varianceHeading;
+        this.timestamp = timestamp;
+        this.sourceCount = sourceCount;
+    }
+
+    /**
+     * Gets how long ago the estimate was measured
+     * @param now the current System.nanoTime()
+     * @return the age, in nanoseconds
+     */
+    public long getAge(long now) {
+        return now - timestamp;
+    }
+
+    /**
+     * Determines whether the estimate is too old to trust
+     * @param now the current System.nanoTime()
+     * @param maxAge the oldest an estimate can be, in nanoseconds
+     * @return true if the estimate is older than the max age
+     */
+    public boolean isStale(long now, long maxAge) {
+        return getAge(now) > maxAge;
+    }
+
+    /**
+     * Gets the standard deviation of the position, using the larger of the two axes
+     * @return the standard deviation, in millimeters
+     */
+    public double getPositionDeviation() {
+        return Math.sqrt(Math.max(varianceX, varianceY));
+    }
+
+    /**
+     * Converts the estimate to a matrix like the ones vuforia gives, for code that works with
+     * matrices. Only the flat pose is kept.
+     * @return the pose as a matrix
+     */
+    @NonNull
+    @FieldCoordinates
+    public OpenGLMatrix toMatrix() {
+        return OpenGLMatrix.translation((float) x, (float) y, 0)
+                .multiplied(Orientation.getRotationMatrix(AxesReference.EXTRINSIC, AxesOrder.XYZ,
+                        AngleUnit.RADIANS, 0, 0, (float) heading));
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "{x: %.1f, y: %.1f, heading: %.1f deg, sd: %.1f mm, %.1f deg, sources: %d}",
+                x, y, Math.toDegrees(heading), getPositionDeviation(), Math.toDegrees(Math.sqrt(varianceHeading)), sourceCount);
+    }
+}
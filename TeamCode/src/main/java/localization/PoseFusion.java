@@ -0,0 +1,310 @@
+package localization;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.acmerobotics.dashboard.config.Config;
+
+import java.util.Arrays;
+
+import annotations.FieldCoordinates;
+
+/**
+ * Fuses robot poses measured from several vuforia targets in the same frame into one estimate.
+ *
+ * How much a measurement is trusted depends on how the target was seen. Vuforia gets worse
+ * quickly with distance, and worse again when the target is seen at a steep angle, and most of
+ * that error is along the line from the target to the camera, since depth is the hardest part to
+ * judge from an image. So each measurement gets a covariance that grows with distance and angle
+ * and is stretched along that line, and the measurements are combined by adding up their inverse
+ * covariances. Two targets seen from different sides cover each other's depth error, so the
+ * fused estimate is better than either.
+ *
+ * Before fusing, measurements that don't agree with the rest are thrown out. With 3 or more, the
+ * one furthest from the fusion of the others is dropped until the rest agree. With 2 that
+ * disagree, the one closer to the last estimate is kept, or the more certain one if there isn't
+ * a last estimate.
+ *
+ * Nothing is allocated except the estimate, so this can run every frame.
+ */
+@Config
+public class PoseFusion {
+    // the standard deviation of a measurement from a target 1m away, seen straight on
+    public static double BASE_DEVIATION = 15; // mm
+    public static double BASE_HEADING_DEVIATION = Math.toRadians(2);
+    public static double REFERENCE_DISTANCE = 1000; // mm
+    // depth error compared to the error across the line of sight
+    public static double DEPTH_RATIO = 2;
+    // targets seen at steeper angles than this are treated as if they were seen at this angle
+    private static final double minViewCos = 0.2;
+    // squared mahalanobis distance for rejecting outliers, the 99% point for 2 degrees of freedom
+    private static final double outlierGate = 9.21;
+    private static final double headingGate = 3; // standard deviations
+
+    private int count;
+    private double[] xs = new double[4];
+    private double[] ys = new double[4];
+    private double[] headings = new double[4];
+    // each measurement's inverse covariance {xx, xy, yy}
+    private double[] informationXX = new double[4];
+    private double[] informationXY = new double[4];
+    private double[] informationYY = new double[4];
+    private double[] headingWeights = new double[4];
+    private boolean[] rejected = new boolean[4];
+    private int rejectedCount;
+
+    // scratch covariances for outlier checks
+    private final double[] covarianceA = new double[3];
+    private final double[] covarianceB = new double[3];
+
+    /**
+     * Clears the measurements for a new frame
+     */
+    public void clear() {
+        count = 0;
+        rejectedCount = 0;
+    }
+
+    /**
+     * Adds a robot pose measured from a target
+     * @param x the measured robot x, in field millimeters
+     * @param y the measured robot y, in field millimeters
+     * @param heading the measured robot heading, in radians
+     * @param targetX the x position of the target on the field
+     * @param targetY the y position of the target on the field
+     * @param normalX the x of the direction the target faces, out of its image
+     * @param normalY the y of the direction the target faces, out of its image
+     */
+    public void addMeasurement(@FieldCoordinates double x, @FieldCoordinates double y, double heading,
+                               @FieldCoordinates double targetX, @FieldCoordinates double targetY,
+                               double normalX, double normalY) {
+        ensureCapacity(count + 1);
+        double rayX = x - targetX;
+        double rayY = y - targetY;
+        double distance = Math.max(Math.hypot(rayX, rayY), 1);
+        rayX /= distance;
+        rayY /= distance;
+        double normalLength = Math.hypot(normalX, normalY);
+        double viewCos = normalLength == 0 ? 1 : Math.abs(rayX * normalX + rayY * normalY) / normalLength;
+        viewCos = Math.max(viewCos, minViewCos);
+
+        double scale = (1 + Math.pow(distance / REFERENCE_DISTANCE, 2)) / viewCos;
+        double acrossDeviation = BASE_DEVIATION * scale;
+        double depthDeviation = acrossDeviation * DEPTH_RATIO;
+        double headingDeviation = BASE_HEADING_DEVIATION * scale;
+
+        // inverse of R * diag(depth^2, across^2) * R^T, where R turns x onto the ray
+        double depthInformation = 1 / (depthDeviation * depthDeviation);
+        double acrossInformation = 1 / (acrossDeviation * acrossDeviation);
+        informationXX[count] = depthInformation * rayX * rayX + acrossInformation * rayY * rayY;
+        informationXY[count] = (depthInformation - acrossInformation) * rayX * rayY;
+        informationYY[count] = depthInformation * rayY * rayY + acrossInformation * rayX * rayX;
+        headingWeights[count] = 1 / (headingDeviation * headingDeviation);
+
+        xs[count] = x;
+        ys[count] = y;
+        headings[count] = heading;
+        rejected[count] = false;
+        count++;
+    }
+
+    /**
+     * Fuses the measurements added since the last clear
+     * @param timestamp the System.nanoTime() of the frame the measurements came from
+     * @param previous the last estimate, used to pick between 2 measurements that disagree.
+     *                 Can be null.
+     * @return the fused estimate, or null if there weren't any measurements
+     */
+    @Nullable
+    public PoseEstimate fuse(long timestamp, @Nullable PoseEstimate previous) {
+        if (count == 0) {
+            return null;
+        }
+        rejectOutliers(previous);
+
+        double sumXX = 0, sumXY = 0, sumYY = 0;
+        double weightedX = 0, weightedY = 0;
+        double headingWeight = 0, headingSin = 0, headingCos = 0;
+        int used = 0;
+        for (int i = 0; i < count; i++) {
+            if (rejected[i]) {
+                continue;
+            }
+            sumXX += informationXX[i];
+            sumXY += informationXY[i];
+            sumYY += informationYY[i];
+            weightedX += informationXX[i] * xs[i] + informationXY[i] * ys[i];
+            weightedY += informationXY[i] * xs[i] + informationYY[i] * ys[i];
+            // headings wrap around, so they're averaged as unit vectors
+            headingWeight += headingWeights[i];
+            headingSin += headingWeights[i] * Math.sin(headings[i]);
+            headingCos += headingWeights[i] * Math.cos(headings[i]);
+            used++;
+        }
+
+        // the fused covariance is the inverse of the summed information
+        double determinant = sumXX * sumYY - sumXY * sumXY;
+        double varianceX = sumYY / determinant;
+        double varianceY = sumXX / determinant;
+        double covarianceXY = -sumXY / determinant;
+        double x = varianceX * weightedX + covarianceXY * weightedY;
+        double y = covarianceXY * weightedX + varianceY * weightedY;
+        double heading = Math.atan2(headingSin, headingCos);
+
+        return new PoseEstimate(x, y, heading, varianceX, varianceY, covarianceXY,
+                1 / headingWeight, timestamp, used);
+    }
+
+    /**
+     * Marks measurements that don't agree with the others as rejected
+     * @param previous the last estimate, or null
+     */
+    private void rejectOutliers(@Nullable PoseEstimate previous) {
+        // only reject the worst measurement each pass, since an outlier also throws off the
+        // checks of every good measurement
+        while (count - rejectedCount >= 3) {
+            int worst = -1;
+            double worstScore = 1;
+            for (int i = 0; i < count; i++) {
+                if (rejected[i]) {
+                    continue;
+                }
+                double score = getOutlierScore(i);
+                if (score > worstScore) {
+                    worst = i;
+                    worstScore = score;
+                }
+            }
+            if (worst == -1) {
+                return;
+            }
+            rejected[worst] = true;
+            rejectedCount++;
+        }
+
+        int first = -1;
+        int second = -1;
+        for (int i = 0; i < count; i++) {
+            if (!rejected[i]) {
+                if (first == -1) {
+                    first = i;
+                } else {
+                    second = i;
+                }
+            }
+        }
+        if (second != -1 && (getMahalanobisSquared(first, second) > outlierGate || !headingsAgree(first, second))) {
+            // keep whichever agrees with the last estimate, or whichever is more certain
+            int worse;
+            if (previous != null) {
+                worse = getPreviousDistance(first, previous) > getPreviousDistance(second, previous) ? first : second;
+            } else {
+                worse = getInformation(first) < getInformation(second) ? first : second;
+            }
+            rejected[worse] = true;
+            rejectedCount++;
+        }
+    }
+
+    /**
+     * Checks a measurement against the fusion of every other measurement that isn't rejected
+     * @param index the measurement to check
+     * @return how far it is from the others compared to the gates. Over 1 is an outlier.
+     */
+    private double getOutlierScore(int index) {
+        double sumXX = 0, sumXY = 0, sumYY = 0, weightedX = 0, weightedY = 0;
+        double headingWeight = 0, headingSin = 0, headingCos = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == index || rejected[i]) {
+                continue;
+            }
+            sumXX += informationXX[i];
+            sumXY += informationXY[i];
+            sumYY += informationYY[i];
+            weightedX += informationXX[i] * xs[i] + informationXY[i] * ys[i];
+            weightedY += informationXY[i] * xs[i] + informationYY[i] * ys[i];
+            headingWeight += headingWeights[i];
+            headingSin += headingWeights[i] * Math.sin(headings[i]);
+            headingCos += headingWeights[i] * Math.cos(headings[i]);
+        }
+        double determinant = sumXX * sumYY - sumXY * sumXY;
+        double othersXX = sumYY / determinant;
+        double othersYY = sumXX / determinant;
+        double othersXY = -sumXY / determinant;
+        double othersX = othersXX * weightedX + othersXY * weightedY;
+        double othersY = othersXY * weightedX + othersYY * weightedY;
+
+        getCovariance(index, covarianceA);
+        double distanceSquared = mahalanobisSquared(xs[index] - othersX, ys[index] - othersY,
+                covarianceA[0] + othersXX, covarianceA[1] + othersXY, covarianceA[2] + othersYY);
+        double headingDifference = angleDifference(headings[index], Math.atan2(headingSin, headingCos));
+        double headingDeviation = Math.sqrt(1 / headingWeights[index] + 1 / headingWeight);
+        return Math.max(distanceSquared / outlierGate, Math.abs(headingDifference) / (headingGate * headingDeviation));
+    }
+
+    private double getPreviousDistance(int index, @NonNull PoseEstimate previous) {
+        getCovariance(index, covarianceA);
+        return mahalanobisSquared(xs[index] - previous.x, ys[index] - previous.y,
+                covarianceA[0] + previous.varianceX, covarianceA[1] + previous.covarianceXY,
+                covarianceA[2] + previous.varianceY);
+    }
+
+    private double getMahalanobisSquared(int a, int b) {
+        getCovariance(a, covarianceA);
+        getCovariance(b, covarianceB);
+        return mahalanobisSquared(xs[a] - xs[b], ys[a] - ys[b], covarianceA[0] + covarianceB[0],
+                covarianceA[1] + covarianceB[1], covarianceA[2] + covarianceB[2]);
+    }
+
+    private boolean headingsAgree(int a, int b) {
+        double headingDeviation = Math.sqrt(1 / headingWeights[a] + 1 / headingWeights[b]);
+        return Math.abs(angleDifference(headings[a], headings[b])) <= headingGate * headingDeviation;
+    }
+
+    /**
+     * Gets a measurement's covariance by inverting its information
+     * @param index the measurement
+     * @param covarianceOut the covariance as {xx, xy, yy}
+     */
+    private void getCovariance(int index, double[] covarianceOut) {
+        double determinant = informationXX[index] * informationYY[index] - informationXY[index] * informationXY[index];
+        covarianceOut[0] = informationYY[index] / determinant;
+        covarianceOut[1] = -informationXY[index] / determinant;
+        covarianceOut[2] = informationXX[index] / determinant;
+    }
+
+    private double getInformation(int index) {
+        return informationXX[index] + informationYY[index];
+    }
+
+    private static double mahalanobisSquared(double dx, double dy, double xx, double xy, double yy) {
+        double determinant = xx * yy - xy * xy;
+        return (dx * dx * yy - 2 * dx * dy * xy + dy * dy * xx) / determinant;
+    }
+
+    /**
+     * Gets the difference between two angles, wrapped to [-pi, pi]
+     */
+    static double angleDifference(double a, double b) {
+        double difference = a - b;
+        return Math.atan2(Math.sin(difference), Math.cos(difference));
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (xs.length >= capacity) {
+            return;
+        }
+        int newCapacity = xs.length * 2;
+        xs = Arrays.copyOf(xs, newCapacity);
+        ys = Arrays.copyOf(ys, newCapacity);
+        headings = Arrays.copyOf(headings, newCapacity);
+        informationXX = Arrays.copyOf(informationXX, newCapacity);
+        informationXY = Arrays.copyOf(informationXY, newCapacity);
+        informationYY = Arrays.copyOf(informationYY, newCapacity);
+        headingWeights = Arrays.copyOf(headingWeights, newCapacity);
+        rejected = Arrays.copyOf(rejected, newCapacity);
+    }
+
+    public int getMeasurementCount() { return count; }
+    public int getRejectedCount() { return rejectedCount; }
+}
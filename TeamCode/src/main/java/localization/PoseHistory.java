@@ -0,0 +1,250 @@
+package localization;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A fixed size history of robot poses, keyed by System.nanoTime(), for looking up where the robot
+ * was when a camera frame was captured.
+ *
+ * Camera frames reach us well after they're captured, so by the time a vision pose or detection
+ * comes in, the robot has moved. {@link #getPose(long, double[])} interpolates the pose at any
+ * time in the history, so detections can be placed using the pose from when they were seen.
+ *
+ * Each entry can also hold what a filter needs to redo the steps after it: the covariance after
+ * the entry, the move relative to the robot since the last entry, and a heading measured at the
+ * entry if there was one. A filter can then apply a late correction at the entry closest to when
+ * it was measured and replay every later step on top of it, see
+ * {@link RoadRunner.EKFLocalizer}.
+ *
+ * Entries are kept in primitive arrays used as a circular buffer, so adding an entry never
+ * allocates, and the oldest entry is overwritten once the buffer is full. Entries are indexed from
+ * 0 for the oldest to size - 1 for the newest. Times have to be added in order.
+ */
+public class PoseHistory {
+    private final int capacity;
+    private final long[] times;
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] headings;
+    // 9 per entry, row major
+    private final double[] covariances;
+    // the move since the previous entry, relative to the robot
+    private final double[] forwards;
+    private final double[] strafes;
+    private final double[] turns;
+    // NaN if no heading was measured at the entry
+    private final double[] measuredHeadings;
+
+    // the slot of the oldest entry
+    private int start;
+    private int size;
+
+    /**
+     * Create a pose history
+     * @param capacity the number of entries to keep. At loop rate, this should cover the
+     *                 longest camera delay with some room.
+     */
+    public PoseHistory(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2: " + capacity);
+        }
+        this.capacity = capacity;
+        times = new long[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+        headings = new double[capacity];
+        covariances = new double[capacity * 9];
+        forwards = new double[capacity];
+        strafes = new double[capacity];
+        turns = new double[capacity];
+        measuredHeadings = new double[capacity];
+    }
+
+    // region adding entries
+
+    /**
+     * Removes every entry
+     */
+    public void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    /**
+     * Adds a pose as the newest entry, overwriting the oldest if the history is full
+     * @param time the System.nanoTime() of the pose. Can't be before the newest entry.
+     * @param x the x position
+     * @param y the y position
+     * @param heading the heading, in radians
+     * @return the index of the new entry
+     */
+    public int add(long time, double x, double y, double heading) {
+        if (size > 0 && time < times[slot(size - 1)]) {
+            throw new IllegalArgumentException("Pose added out of order");
+        }
+        if (size == capacity) {
+            start = (start + 1) % capacity;
+        } else {
+            size++;
+        }
+        int slot = slot(size - 1);
+        times[slot] = time;
+        xs[slot] = x;
+        ys[slot] = y;
+        headings[slot] = heading;
+        forwards[slot] = 0;
+        strafes[slot] = 0;
+        turns[slot] = 0;
+        measuredHeadings[slot] = Double.NaN;
+        for (int i = 0; i < 9; i++) {
+            covariances[slot * 9 + i] = 0;
+        }
+        return size - 1;
+    }
+
+    /**
+     * Replaces the pose of an entry, like when a filter replays the steps after a correction
+     * @param index the entry
+     * @param x the x position
+     * @param y the y position
+     * @param heading the heading, in radians
+     */
+    public void setPose(int index, double x, double y, double heading) {
+        int slot = checkedSlot(index);
+        xs[slot] = x;
+        ys[slot] = y;
+        headings[slot] = heading;
+    }
+
+    /**
+     * Sets the move made between the previous entry and this one, and the heading measured at
+     * this entry
+     * @param index the entry
+     * @param forward the distance moved forward, relative to the robot
+     * @param strafe the distance moved left, relative to the robot
+     * @param turn the angle turned, in radians
+     * @param measuredHeading the heading measured at the entry, or NaN if there wasn't one
+     */
+    public void setStep(int index, double forward, double strafe, double turn, double measuredHeading) {
+        int slot = checkedSlot(index);
+        forwards[slot] = forward;
+        strafes[slot] = strafe;
+        turns[slot] = turn;
+        measuredHeadings[slot] = measuredHeading;
+    }
+
+    /**
+     * Sets the covariance of an entry
+     * @param index the entry
+     * @param covariance the covariance, as a row major 3x3 matrix
+     */
+    public void setCovariance(int index, @NonNull double[] covariance) {
+        System.arraycopy(covariance, 0, covariances, checkedSlot(index) * 9, 9);
+    }
+
+    // endregion adding entries
+
+    // region lookup
+
+    /**
+     * Finds the newest entry at or before a time
+     * @param time the System.nanoTime() to look for
+     * @return the index of the entry, or -1 if the time is before every entry
+     */
+    public int findIndex(long time) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (times[slot(mid)] <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the entry closest in time to a time
+     * @param time the System.nanoTime() to look for
+     * @return the index of the entry, or -1 if the time is before every entry
+     */
+    public int findClosest(long time) {
+        int index = findIndex(time);
+        if (index != -1 && index + 1 < size
+                && times[slot(index + 1)] - time < time - times[slot(index)]) {
+            return index + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the pose at a time, interpolated between the entries on either side of it.
+     * Times after the newest entry get the newest pose.
+     * @param time the System.nanoTime() to get the pose at
+     * @param poseOut the pose as {x, y, heading}
+     * @return false if the time is before every entry, in which case the output isn't set
+     */
+    public boolean getPose(long time, @NonNull double[] poseOut) {
+        int index = findIndex(time);
+        if (index == -1) {
+            return false;
+        }
+        int slot = slot(index);
+        if (index == size - 1 || times[slot] == time) {
+            poseOut[0] = xs[slot];
+            poseOut[1] = ys[slot];
+            poseOut[2] = headings[slot];
+            return true;
+        }
+        int nextSlot = slot(index + 1);
+        double fraction = (double) (time - times[slot]) / (times[nextSlot] - times[slot]);
+        poseOut[0] = xs[slot] + (xs[nextSlot] - xs[slot]) * fraction;
+        poseOut[1] = ys[slot] + (ys[nextSlot] - ys[slot]) * fraction;
+        // go the short way around, since headings wrap
+        double turn = PoseFusion.angleDifference(headings[nextSlot], headings[slot]);
+        poseOut[2] = PoseFusion.angleDifference(headings[slot] + turn * fraction, 0);
+        return true;
+    }
+
+    // endregion lookup
+
+    // region getters
+
+    public int size() { return size; }
+    public int getCapacity() { return capacity; }
+    public long getTime(int index) { return times[checkedSlot(index)]; }
+    public double getX(int index) { return xs[checkedSlot(index)]; }
+    public double getY(int index) { return ys[checkedSlot(index)]; }
+    public double getHeading(int index) { return headings[checkedSlot(index)]; }
+    public double getForward(int index) { return forwards[checkedSlot(index)]; }
+    public double getStrafe(int index) { return strafes[checkedSlot(index)]; }
+    public double getTurn(int index) { return turns[checkedSlot(index)]; }
+    public double getMeasuredHeading(int index) { return measuredHeadings[checkedSlot(index)]; }
+
+    /**
+     * Gets the covariance of an entry
+     * @param index the entry
+     * @param covarianceOut the covariance, as a row major 3x3 matrix
+     */
+    public void getCovariance(int index, @NonNull double[] covarianceOut) {
+        System.arraycopy(covariances, checkedSlot(index) * 9, covarianceOut, 0, 9);
+    }
+
+    // endregion getters
+
+    private int slot(int index) {
+        int slot = start + index;
+        return slot >= capacity ? slot - capacity : slot;
+    }
+
+    private int checkedSlot(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + size);
+        }
+        return slot(index);
+    }
+}
@@ -0,0 +1,115 @@
+package localization;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+import annotations.MatrixCoordinates;
+
+/**
+ * Casts batches of rays on a SpaceMap, mainly to work out what the camera can see.
+ *
+ * {@link #castFrustum(int, int, double, double, int, int)} casts a fan of rays across the
+ * camera's field of view and marks every space the rays reach. Spaces are marked with a stamp
+ * that changes every cast, so nothing has to be cleared between frames, and nothing is allocated
+ * after construction. A full frustum of about 100 rays only touches a few thousand spaces.
+ *
+ * Angles are headings in field coordinates, in radians, the same as the robot's heading from
+ * vuforia. They're converted to matrix directions internally, since matrix rows and columns run
+ * opposite to field x and y.
+ */
+public class RayCaster {
+    private final SpaceMap spaceMap;
+    private final int width;
+
+    private final int[] visibleStamps;
+    private int currentStamp;
+
+    /**
+     * Create a ray caster for a spacemap
+     * @param spaceMap the spacemap to cast rays on
+     */
+    public RayCaster(@NonNull SpaceMap spaceMap) {
+        this.spaceMap = spaceMap;
+        this.width = spaceMap.width;
+        visibleStamps = new int[spaceMap.height * spaceMap.width];
+    }
+
+    /**
+     * Casts a fan of rays across a field of view and marks every space they reach as visible,
+     * including the impassable spaces they stop at. Spaces marked by earlier casts are forgotten.
+     * @param row the row of the camera
+     * @param col the column of the camera
+     * @param heading the heading of the center of the view, in field coordinates, in radians
+     * @param fieldOfView the total width of the view, in radians
+     * @param rayCount the number of rays to cast across the view. At least 2.
+     * @param range how far the rays go, in spaces
+     */
+    public void castFrustum(int row, int col, double heading, double fieldOfView, int rayCount, int range) {
+        nextStamp();
+        double angleStep = fieldOfView / (rayCount - 1);
+        double angle = heading - fieldOfView / 2;
+        for (int i = 0; i < rayCount; i++, angle += angleStep) {
+            spaceMap.traceRay(row, col, getEndRow(row, angle, range), getEndCol(col, angle, range),
+                    visibleStamps, currentStamp);
+        }
+    }
+
+    /**
+     * Casts a batch of rays from one space
+     * @param row the row to cast from
+     * @param col the column to cast from
+     * @param headings the heading of each ray, in field coordinates, in radians
+     * @param count the number of rays to cast, from the start of the headings
+     * @param range how far the rays go, in spaces
+     * @param hitsOut the index of the impassable space each ray hit, or -1 if it didn't hit
+     *                anything. Must be at least as long as the count.
+     */
+    public void castRays(int row, int col, @NonNull double[] headings, int count, int range, @NonNull int[] hitsOut) {
+        for (int i = 0; i < count; i++) {
+            hitsOut[i] = spaceMap.castRay(row, col, getEndRow(row, headings[i], range), getEndCol(col, headings[i], range));
+        }
+    }
+
+    /**
+     * Determines whether a space was reached by the last frustum cast
+     * @param row the row of the space
+     * @param col the column of the space
+     * @return true if the space was visible
+     */
+    public boolean isVisible(int row, int col) {
+        return currentStamp > 0 && spaceMap.inBounds(row, col) && visibleStamps[row * width + col] == currentStamp;
+    }
+
+    /**
+     * Determines whether a space was reached by the last frustum cast
+     * @param coords the coordinates of the space
+     * @return true if the space was visible
+     */
+    public boolean isVisible(@NonNull @MatrixCoordinates int[] coords) {
+        return isVisible(coords[0], coords[1]);
+    }
+
+    // field x runs opposite to matrix rows, and field y runs opposite to matrix columns
+    private static int getEndRow(int row, double heading, int range) {
+        return row - (int) Math.round(Math.cos(heading) * range);
+    }
+
+    private static int getEndCol(int col, double heading, int range) {
+        return col - (int) Math.round(Math.sin(heading) * range);
+    }
+
+    /**
+     * Moves on to the next stamp, resetting the stamps if they overflow
+     */
+    private void nextStamp() {
+        currentStamp++;
+        if (currentStamp == Integer.MAX_VALUE) {
+            Arrays.fill(visibleStamps, 0);
+            currentStamp = 1;
+        }
+    }
+
+    @NonNull
+    public SpaceMap getSpaceMap() { return spaceMap; }
+}
@@ -9,29 +9,61 @@ import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.function.Consumer;
 
 import annotations.AnyCoordinateRange;
 import annotations.MatrixCoordinates;
+import util.IntList;
 
 /**
  * The ftc field can be represented as a set of squares of a fixed size containing various
  * types of spaces.
  * The SpaceMap class is a way of organizing this map and making various operations
  * simpler, faster, and more consistent.
+ *
+ * Internally, the map is stored as a flat array of space ordinals, one byte per space, with
+ * each row taking up {@link #width} bytes. This keeps the whole field in one small block of
+ * memory instead of a grid of enum references.
+ *
+ * Every change to the map increments the map's version, and each row remembers the version it
+ * was last changed at. Consumers can save the version they last saw and then ask only for the
+ * rows that changed since then, instead of scanning the whole map every loop.
+ *
+ * A spacemap isn't thread safe, and should only be used directly by the thread that writes to it.
+ * Other threads should read {@link SpaceMapSnapshot}s, which the writer publishes with
+ * {@link #publishSnapshot()}.
  */
 public class SpaceMap {
     private static final String TAG = "vuf.test.spacemap";
-    private final Space[][] spaceMap;
+    private final byte[] spaceMap;
     public final int height;
     public final int width;
     private final int minRange;
     private final int maxRange;
 
+    // dirty tracking
+    private long version;
+    private final long[] rowVersions;
+    // a hash of each row's contents, updated with every change. rows with different hashes are
+    // different, and rows with the same hash are the same except for a 1 in 2^64 chance
+    private final long[] rowHashes;
+
+    // how many spaces of each type are on the map, so whole-map searches for a space that isn't
+    // there can be skipped. on fine maps these scans are most of the cost of an update.
+    private final int[] spaceCounts;
+    // index of the last space set to the robot, so moving the robot doesn't need a scan
+    private int robotIndex = -1;
+
+    // derived layers, created the first time they're asked for
+    private ClearanceMap clearanceMap;
+
+    // the latest published snapshot, read by other threads
+    private volatile SpaceMapSnapshot snapshot;
+
 
     /**
      * Create new spacemap with specified width and height and fill it with clear spots
@@ -39,15 +71,7 @@ public class SpaceMap {
      * @param yWidth the width of the spacemap
      */
     public SpaceMap(int xHeight, int yWidth) {
-        spaceMap = new Space[xHeight][yWidth];
-        height = xHeight;
-        width = yWidth;
-        this.minRange = 0;
-        this.maxRange = xHeight-1;
-        // fill the array with clear spots
-        for(Space[] row : spaceMap) {
-            Arrays.fill(row, Space.CLEAR);
-        }
+        this(xHeight, yWidth, 0, xHeight-1);
     }
 
     /**
@@ -57,7 +81,10 @@ public class SpaceMap {
      * @param yWidth the width of the spacemap
      */
     public SpaceMap(int xHeight, int yWidth, int minRange, int maxRange) {
-        spaceMap = new Space[xHeight][yWidth];
+        spaceMap = new byte[xHeight * yWidth];
+        rowVersions = new long[xHeight];
+        rowHashes = new long[xHeight];
+        spaceCounts = new int[Space.count];
         height = xHeight;
         width = yWidth;
         minRange = Math.max(0, minRange);
@@ -66,18 +93,29 @@ public class SpaceMap {
         this.maxRange = maxRange;
 
         // fill the array with clear spots
-        for(Space[] row : spaceMap) {
-            Arrays.fill(row, Space.CLEAR);
+        Arrays.fill(spaceMap, (byte) Space.CLEAR.ordinal());
+        long clearRowHash = 0;
+        for (int c = 0; c < width; c++) {
+            clearRowHash ^= cellHash(c, Space.CLEAR.ordinal());
         }
+        Arrays.fill(rowHashes, clearRowHash);
+        spaceCounts[Space.CLEAR.ordinal()] = spaceMap.length;
     }
 
 
     /**
      * Create a new spacemap as a deep copy of another spacemap
+     * The copy starts at the same version as the original, so rows changed in either map after
+     * the copy can be found with {@link #getDifferences(SpaceMap, boolean, long)}
      * @param otherMap the spacemap to deepcopy
      */
     public SpaceMap(@NonNull SpaceMap otherMap) {
-        this.spaceMap = getSpaceMapDC(otherMap.spaceMap);
+        this.spaceMap = otherMap.spaceMap.clone();
+        this.rowVersions = otherMap.rowVersions.clone();
+        this.rowHashes = otherMap.rowHashes.clone();
+        this.spaceCounts = otherMap.spaceCounts.clone();
+        this.robotIndex = otherMap.robotIndex;
+        this.version = otherMap.version;
         height = otherMap.height;
         width = otherMap.width;
         minRange = otherMap.minRange;
@@ -85,9 +123,22 @@ public class SpaceMap {
     }
 
 
-
+    /**
+     * Gets the spacemap as a 2d array of spaces
+     * This is a copy built from the packed map, so changes to it aren't reflected in the spacemap.
+     * Prefer {@link #getSpace(int, int)} when only reading a few spaces.
+     * @return a 2d space array in the form [row][column]
+     */
     @NonNull
-    public Space[][] getRawMap() { return spaceMap; }
+    public Space[][] getRawMap() {
+        Space[][] rawMap = new Space[height][width];
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                rawMap[r][c] = getSpace(r, c);
+            }
+        }
+        return rawMap;
+    }
 
     /**
      * Find differences between two space maps
@@ -99,24 +150,384 @@ public class SpaceMap {
     @NonNull
     @MatrixCoordinates
     public ArrayList<int[]> getDifferences(@NonNull SpaceMap otherMap, boolean requireStateChange) {
-        ArrayList<int[]> diffList = new ArrayList<>();
-
-        for(int r = 0; r < spaceMap.length; r++) {
-            Space[] cRow = spaceMap[r];
-            Space[] oRow = otherMap.spaceMap[r];
-            if (!Arrays.equals(cRow, oRow)) {
-                for(int c = 0; c < spaceMap[0].length; c++) {
-                    if (cRow[c] != oRow[c] && // if theyre not equal
-                            // and if a state change is required, then theyre different
-                            (!requireStateChange || oRow[c].passable != cRow[c].passable)) {
-                        diffList.add(new int[] {r, c});
-                    }
+        return getDifferences(otherMap, requireStateChange, -1);
+    }
+
+    /**
+     * Find differences between two space maps, only checking rows that changed after a version.
+     * Both maps must have been identical at the provided version, which is the case when one
+     * was copied from the other at that version. Rows that weren't changed in either map since
+     * then are skipped without being compared.
+     * @param otherMap The other spacemap to compare to
+     * @param requireStateChange if true, only spaces where the passable status is changed are included
+     * @param sinceVersion the version both maps were identical at, or -1 to compare every row
+     * @return an arraylist of all different coordinates
+     */
+    @NonNull
+    @MatrixCoordinates
+    public ArrayList<int[]> getDifferences(@NonNull SpaceMap otherMap, boolean requireStateChange,
+                                           long sinceVersion) {
+        final ArrayList<int[]> diffList = new ArrayList<>();
+        forEachDifference(otherMap, requireStateChange, sinceVersion, new DifferenceVisitor() {
+            @Override
+            public void visit(int row, int col, @NonNull Space space, @NonNull Space otherSpace) {
+                diffList.add(new int[] {row, col});
+            }
+        });
+        return diffList;
+    }
+
+    /**
+     * Find differences between two space maps without allocating coordinate arrays
+     * @param otherMap The other spacemap to compare to
+     * @param requireStateChange if true, only spaces where the passable status is changed are included
+     * @param sinceVersion the version both maps were identical at, or -1 if they weren't copied
+     *                     from each other
+     * @param indicesOut the list to add the different spaces to, as indices (row * width + column).
+     *                   It's cleared first.
+     * @return true if there were any differences
+     */
+    public boolean getDifferences(@NonNull SpaceMap otherMap, boolean requireStateChange,
+                                  long sinceVersion, @NonNull IntList indicesOut) {
+        indicesOut.clear();
+        for (int r = 0; r < height; r++) {
+            if (isRowSkippable(otherMap, r, sinceVersion)) {
+                continue;
+            }
+            int rowStart = r * width;
+            for (int c = 0; c < width; c++) {
+                if (isDifferent(spaceMap[rowStart + c], otherMap.spaceMap[rowStart + c], requireStateChange)) {
+                    indicesOut.add(rowStart + c);
                 }
             }
         }
-        return diffList;
+        return !indicesOut.isEmpty();
     }
 
+    /**
+     * Find differences between two space maps and pass each one to a visitor as it's found
+     * @param otherMap The other spacemap to compare to
+     * @param requireStateChange if true, only spaces where the passable status is changed are included
+     * @param sinceVersion the version both maps were identical at, or -1 if they weren't copied
+     *                     from each other
+     * @param visitor the visitor to call for every different space
+     */
+    public void forEachDifference(@NonNull SpaceMap otherMap, boolean requireStateChange,
+                                  long sinceVersion, @NonNull DifferenceVisitor visitor) {
+        for (int r = 0; r < height; r++) {
+            if (isRowSkippable(otherMap, r, sinceVersion)) {
+                continue;
+            }
+            int rowStart = r * width;
+            for (int c = 0; c < width; c++) {
+                byte ordinal = spaceMap[rowStart + c];
+                byte otherOrdinal = otherMap.spaceMap[rowStart + c];
+                if (isDifferent(ordinal, otherOrdinal, requireStateChange)) {
+                    visitor.visit(r, c, Space.fromOrdinal(ordinal), Space.fromOrdinal(otherOrdinal));
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines whether a row can't have any differences, without comparing its spaces.
+     * Rows that weren't changed in either map since the maps were identical are the same, and
+     * rows with the same hash are the same.
+     */
+    private boolean isRowSkippable(@NonNull SpaceMap otherMap, int row, long sinceVersion) {
+        if (!isRowChangedSince(row, sinceVersion) && !otherMap.isRowChangedSince(row, sinceVersion)) {
+            return true;
+        }
+        return rowHashes[row] == otherMap.rowHashes[row];
+    }
+
+    private static boolean isDifferent(byte ordinal, byte otherOrdinal, boolean requireStateChange) {
+        if (ordinal == otherOrdinal) {
+            return false;
+        }
+        // if a state change is required, then theyre only different if passability changed
+        return !requireStateChange
+                || Space.fromOrdinal(ordinal).passable != Space.fromOrdinal(otherOrdinal).passable;
+    }
+
+    /**
+     * A callback for each space that's different between two spacemaps
+     */
+    public interface DifferenceVisitor {
+        /**
+         * Called for a space that's different between two spacemaps
+         * @param row the row of the space
+         * @param col the column of the space
+         * @param space the space in the spacemap the differences were found from
+         * @param otherSpace the space in the other spacemap
+         */
+        void visit(int row, int col, @NonNull Space space, @NonNull Space otherSpace);
+    }
+
+    // region dirty tracking
+
+    /**
+     * Gets the current version of the map. The version is incremented every time a space
+     * is actually changed, so if the version is the same, the map is the same.
+     * @return the current version
+     */
+    public long getVersion() { return version; }
+
+    /**
+     * Gets the version that a row was last changed at
+     * @param row the row to check
+     * @return the version of the row's last change, or 0 if it was never changed
+     */
+    public long getRowVersion(int row) { return rowVersions[row]; }
+
+    /**
+     * Determines whether a row has changed since a version
+     * @param row the row to check
+     * @param sinceVersion the version to compare against
+     * @return true if the row was changed after the provided version
+     */
+    public boolean isRowChangedSince(int row, long sinceVersion) {
+        return rowVersions[row] > sinceVersion;
+    }
+
+    /**
+     * Gets a hash of a row's contents. Rows with the same spaces have the same hash, no matter
+     * what spacemap they're in or what order the spaces were set in.
+     * @param row the row to get the hash of
+     * @return the row's hash
+     */
+    public long getRowHash(int row) { return rowHashes[row]; }
+
+    /**
+     * Gets the hash of a single space for the row hashes. The row hash is all of its spaces'
+     * hashes xored together, so a change can be applied by xoring out the old space's hash and
+     * xoring in the new one.
+     * @param col the column of the space
+     * @param ordinal the ordinal of the space
+     * @return the hash
+     */
+    private static long cellHash(int col, int ordinal) {
+        // splitmix64 finalizer, which spreads the bits of the input over the whole output
+        long hash = ((long) col << 8 | ordinal) + 0x9E3779B97F4A7C15L;
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /**
+     * Finds all rows that have changed since a version
+     * @param sinceVersion the version to compare against
+     * @param changedRows the bitset to store the changed rows in. It's cleared first, then the
+     *                    bit for each changed row is set. Reuse it between calls to avoid allocating.
+     * @return true if any rows changed
+     */
+    public boolean getChangedRows(long sinceVersion, @NonNull BitSet changedRows) {
+        changedRows.clear();
+        // nothing has changed, no need to check rows
+        if (version <= sinceVersion) {
+            return false;
+        }
+        for (int r = 0; r < height; r++) {
+            if (rowVersions[r] > sinceVersion) {
+                changedRows.set(r);
+            }
+        }
+        return !changedRows.isEmpty();
+    }
+
+    // endregion dirty tracking
+
+    // region derived layers
+
+    /**
+     * Gets the distance from every space to the nearest impassable space.
+     * The clearance map is created the first time this is called, and after that it's brought up to
+     * date with only the rows that changed since the last call.
+     * @return the synced clearance map
+     */
+    @NonNull
+    public ClearanceMap getClearanceMap() {
+        if (clearanceMap == null) {
+            clearanceMap = new ClearanceMap(this);
+        }
+        clearanceMap.sync();
+        return clearanceMap;
+    }
+
+    // endregion derived layers
+
+    // region snapshots
+
+    /**
+     * Publishes an immutable snapshot of the map's current state for other threads to read.
+     * Rows that haven't changed since the last published snapshot are shared with it instead of
+     * copied. If nothing changed at all, the last snapshot is kept.
+     * Should only be called by the thread that writes to the spacemap.
+     * @return the published snapshot
+     */
+    @NonNull
+    public SpaceMapSnapshot publishSnapshot() {
+        SpaceMapSnapshot lastSnapshot = snapshot;
+        if (lastSnapshot != null && lastSnapshot.getVersion() == version) {
+            return lastSnapshot;
+        }
+        byte[][] rows = new byte[height][];
+        for (int r = 0; r < height; r++) {
+            if (lastSnapshot != null && rowVersions[r] <= lastSnapshot.getVersion()) {
+                rows[r] = lastSnapshot.getSharedRow(r);
+            } else {
+                rows[r] = Arrays.copyOfRange(spaceMap, r * width, (r + 1) * width);
+            }
+        }
+        SpaceMapSnapshot newSnapshot = new SpaceMapSnapshot(rows, width, version);
+        snapshot = newSnapshot;
+        return newSnapshot;
+    }
+
+    /**
+     * Gets the latest published snapshot. Safe to call from any thread.
+     * @return the latest snapshot, or null if one was never published
+     */
+    @Nullable
+    public SpaceMapSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    // endregion snapshots
+
+    // region raycasting
+
+    /**
+     * Casts a ray between two spaces and finds the first impassable space it hits.
+     * The ray follows the spaces a Bresenham line passes through. The start space is never
+     * counted as a hit, so a ray can be cast from inside an obstacle or from the robot.
+     * @param startRow the row the ray starts at
+     * @param startCol the column the ray starts at
+     * @param endRow the row the ray ends at
+     * @param endCol the column the ray ends at
+     * @return the index (row * width + column) of the first impassable space, including the end
+     * space, or -1 if the ray doesn't hit anything before the end or leaving the map
+     */
+    public int castRay(int startRow, int startCol, int endRow, int endCol) {
+        return traceRay(startRow, startCol, endRow, endCol, null, 0);
+    }
+
+    /**
+     * Determines whether there's a clear line of sight between two spaces.
+     * Only the spaces between them are checked, so the end space can be an obstacle, like a
+     * detection that should be visible.
+     * @param startRow the row of the viewer
+     * @param startCol the column of the viewer
+     * @param endRow the row of the target
+     * @param endCol the column of the target
+     * @return true if no impassable spaces are between the two spaces
+     */
+    public boolean hasLineOfSight(int startRow, int startCol, int endRow, int endCol) {
+        int hit = castRay(startRow, startCol, endRow, endCol);
+        return hit == -1 || hit == endRow * width + endCol;
+    }
+
+    /**
+     * Follows a Bresenham line from one space to another until it hits an impassable space.
+     * @param startRow the row the ray starts at
+     * @param startCol the column the ray starts at
+     * @param endRow the row the ray ends at
+     * @param endCol the column the ray ends at
+     * @param visitedStamps if not null, every space the ray reaches, including the one it hits,
+     *                      is set to the stamp
+     * @param stamp the stamp to mark visited spaces with
+     * @return the index of the impassable space hit, or -1 if none was hit
+     */
+    int traceRay(int startRow, int startCol, int endRow, int endCol, @Nullable int[] visitedStamps, int stamp) {
+        int dCol = Math.abs(endCol - startCol);
+        int dRow = -Math.abs(endRow - startRow);
+        int colStep = (startCol < endCol) ? 1 : -1;
+        int rowStep = (startRow < endRow) ? 1 : -1;
+        int error = dCol + dRow;
+        int row = startRow;
+        int col = startCol;
+        while (true) {
+            if (!inBounds(row, col)) {
+                return -1;
+            }
+            int index = row * width + col;
+            if (visitedStamps != null) {
+                visitedStamps[index] = stamp;
+            }
+            if ((row != startRow || col != startCol) && !Space.fromOrdinal(spaceMap[index]).passable) {
+                return index;
+            }
+            if (row == endRow && col == endCol) {
+                return -1;
+            }
+            int doubledError = 2 * error;
+            if (doubledError >= dRow) {
+                error += dRow;
+                col += colStep;
+            }
+            if (doubledError <= dCol) {
+                error += dCol;
+                row += rowStep;
+            }
+        }
+    }
+
+    /**
+     * Determines whether the robot could drive in a straight line between the centers of two
+     * spaces. Unlike a ray, this checks every space the line touches, and where the line passes
+     * exactly through a corner, both spaces beside the corner, so it never cuts a corner that the
+     * pathfinders wouldn't.
+     * @param startRow the row to start at
+     * @param startCol the column to start at
+     * @param endRow the row to end at
+     * @param endCol the column to end at
+     * @param minClearance the minimum clearance every space has to have, using the
+     *                     {@link ClearanceMap}, or 0 to only check passability
+     * @return true if every space the line touches is passable, not counting the start space
+     */
+    public boolean isSegmentPassable(int startRow, int startCol, int endRow, int endCol, int minClearance) {
+        ClearanceMap clearance = (minClearance > 0) ? getClearanceMap() : null;
+        int dCol = Math.abs(endCol - startCol);
+        int dRow = Math.abs(endRow - startRow);
+        int colStep = (startCol < endCol) ? 1 : -1;
+        int rowStep = (startRow < endRow) ? 1 : -1;
+        int error = dCol - dRow;
+        int row = startRow;
+        int col = startCol;
+        for (int remaining = dCol + dRow; remaining > 0; remaining--) {
+            if (error > 0) {
+                col += colStep;
+                error -= 2 * dRow;
+            } else if (error < 0) {
+                row += rowStep;
+                error += 2 * dCol;
+            } else {
+                // passing exactly through a corner, so both spaces beside it are touched
+                if (!isSegmentSpaceClear(row, col + colStep, clearance, minClearance)
+                        || !isSegmentSpaceClear(row + rowStep, col, clearance, minClearance)) {
+                    return false;
+                }
+                col += colStep;
+                row += rowStep;
+                error += 2 * (dCol - dRow);
+                remaining--;
+            }
+            if (!isSegmentSpaceClear(row, col, clearance, minClearance)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isSegmentSpaceClear(int row, int col, @Nullable ClearanceMap clearance, int minClearance) {
+        if (!inBounds(row, col) || !isPassable(row, col)) {
+            return false;
+        }
+        return clearance == null || clearance.hasClearance(row, col, minClearance);
+    }
+
+    // endregion raycasting
+
 
     /**
      * Gets a deep copy of the space array
@@ -162,28 +573,6 @@ public class SpaceMap {
         return newCoords;
     }
 
-    /**
-     * Apply a function to every element of the space map
-     * @param allocateNew if true, a new array will be allocated for each coordinate pair per loop,
-     *                    so the array can be saved in lists etc. Otherwise, one array will be
-     *                    changed to reflect the new coordinates each loop. Only set to true if
-     *                    the coordinate array needs to be maintained after use.
-     * @param consumer the consumer to apply. the consumer takes in an array of coordinates in
-     *                 the form {row, column}
-     */
-    private void applyToSpaceMap(boolean allocateNew, Consumer<int[]> consumer) {
-        int[] coords = new int[2]; // create so we dont have to reallocate
-        for (int r = 0; r < spaceMap.length; r++) {
-            for (int c = 0; c < spaceMap[0].length; c++) {
-                coords[0] = r;
-                coords[1] = c;
-                int[] newCoords = (allocateNew) ? coords.clone() : coords;
-                consumer.accept(newCoords);
-            }
-        }
-    }
-
-
     /**
      * Function for testing how long looping through the whole map takes
      * it took about 4 ms when I ran it, so not really worried about time there
@@ -191,9 +580,9 @@ public class SpaceMap {
     public void catalog() {
         long startTime = System.nanoTime();
         Map<Space, ArrayList<int[]>> hashMap = new HashMap<>();
-        for (int r = 0; r < spaceMap.length; r++) {
-            for (int c = 0; c < spaceMap[0].length; c++) {
-                Space space = spaceMap[r][c];
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                Space space = getSpace(r, c);
                 if (space != Space.CLEAR) {
                     hashMap.putIfAbsent(space, new ArrayList<>());
                     Objects.requireNonNull(hashMap.get(space)).add(new int[]{r, c});
@@ -213,12 +602,14 @@ public class SpaceMap {
      */
     public void setWalls() {
         // set top and bottom row
-        Arrays.fill(spaceMap[0], Space.WALL);
-        Arrays.fill(spaceMap[height-1], Space.WALL);
+        for (int c = 0; c < width; c++) {
+            setCell(0, c, Space.WALL);
+            setCell(height-1, c, Space.WALL);
+        }
         // set left and right column
-        for(Space[] row : spaceMap) {
-            row[0] = Space.WALL;
-            row[width-1] = Space.WALL;
+        for (int r = 0; r < height; r++) {
+            setCell(r, 0, Space.WALL);
+            setCell(r, width-1, Space.WALL);
         }
     }
 
@@ -233,7 +624,30 @@ public class SpaceMap {
     public void setSpace(@NonNull Space newSpace, @NonNull @MatrixCoordinates int[] coords, boolean allowStatic) {
         Space oldSpace = getSpace(coords);
         if (!(newSpace.isStatic() || oldSpace.isStatic()) || allowStatic) {
-            spaceMap[coords[0]][coords[1]] = newSpace;
+            setCell(coords[0], coords[1], newSpace);
+        }
+    }
+
+    /**
+     * Sets a space in the packed map and updates the dirty tracking if it changed.
+     * All writes to the map should go through here so no changes are missed.
+     * @param row the row of the space
+     * @param col the column of the space
+     * @param newSpace the new space
+     */
+    private void setCell(int row, int col, @NonNull Space newSpace) {
+        int index = row * width + col;
+        byte newOrdinal = (byte) newSpace.ordinal();
+        byte oldOrdinal = spaceMap[index];
+        if (oldOrdinal != newOrdinal) {
+            spaceMap[index] = newOrdinal;
+            rowVersions[row] = ++version;
+            rowHashes[row] ^= cellHash(col, oldOrdinal) ^ cellHash(col, newOrdinal);
+            spaceCounts[oldOrdinal]--;
+            spaceCounts[newOrdinal]++;
+            if (newOrdinal == Space.ROBOT.ordinal()) {
+                robotIndex = index;
+            }
         }
     }
 
@@ -254,6 +668,27 @@ public class SpaceMap {
         }
     }
 
+    /**
+     * Set a list of coordinates to a space without allocating coordinate arrays
+     * @param newSpace the new space to set
+     * @param coordPairs the coordinates to replace, as {row, column} pairs
+     * @param allowStatic if true, allows adding and removing static spaces. Otherwise, attempts to
+     *                    remove existing static spaces or add new ones will be ignored.
+     */
+    public void setSpace(@NonNull Space newSpace, @NonNull @MatrixCoordinates IntList coordPairs, boolean allowStatic) {
+        // if the space is static and editing statics isnt allowed, exit
+        if (newSpace.isStatic() && !allowStatic) {
+            return;
+        }
+        for (int i = 0; i < coordPairs.size(); i += 2) {
+            int row = coordPairs.get(i);
+            int col = coordPairs.get(i+1);
+            if (allowStatic || !getSpace(row, col).isStatic()) {
+                setCell(row, col, newSpace);
+            }
+        }
+    }
+
     /**
      * Set a list of coordinates to spaces
      * @param coordMap a hashmap of spaces and coordinates to set
@@ -327,6 +762,16 @@ public class SpaceMap {
         setSpace(Space.CLEAR, coordsList, allowStatic);
     }
 
+    /**
+     * Clears a list of coordinates from the spacemap by setting it to clear
+     * @param coordPairs the coordinates to clear, as {row, column} pairs
+     * @param allowStatic if true, allows adding and removing static spaces. Otherwise, attempts to
+     *                    remove existing static spaces or add new ones will be ignored.
+     */
+    public void clearSpace(@NonNull @MatrixCoordinates IntList coordPairs, boolean allowStatic) {
+        setSpace(Space.CLEAR, coordPairs, allowStatic);
+    }
+
     /**
      * Clears all coordinates from the spacemap by setting them to clear
      * @param allowStatic if true, allows adding and removing static spaces. Otherwise, attempts to
@@ -335,16 +780,14 @@ public class SpaceMap {
      */
     public void clearSpace(boolean allowStatic) {
         // loop through all coords
-        applyToSpaceMap(false, new Consumer<int[]>() {
-            @Override
-            public void accept(int[] value) {
-                Space oldSpace = getSpace(value);
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
                 // if editing statics is allowed or it isnt static, set to clear
-                if (!oldSpace.isStatic() || allowStatic) {
-                    setSpace(Space.CLEAR, value, allowStatic);
+                if (!getSpace(r, c).isStatic() || allowStatic) {
+                    setCell(r, c, Space.CLEAR);
                 }
             }
-        });
+        }
     }
 
 
@@ -359,16 +802,16 @@ public class SpaceMap {
         if (space.isStatic() && !allowStatic)
             return;
 
-        applyToSpaceMap(false, new Consumer<int[]>() {
-            @Override
-            public void accept(int[] value) {
-                Space oldSpace = getSpace(value);
+        byte ordinal = (byte) space.ordinal();
+        for (int r = 0; r < height && spaceCounts[ordinal] > 0; r++) {
+            int rowStart = r * width;
+            for (int c = 0; c < width; c++) {
                 // if the old space is the target space, set it to clear
-                if (oldSpace == space) {
-                    setSpace(Space.CLEAR, value, allowStatic);
+                if (spaceMap[rowStart + c] == ordinal) {
+                    setCell(r, c, Space.CLEAR);
                 }
             }
-        });
+        }
     }
 
 
@@ -379,17 +822,26 @@ public class SpaceMap {
      */
     public List<int[]> getSpace(Space space) {
         List<int[]> coordsList = new ArrayList<>();
-        applyToSpaceMap(true, new Consumer<int[]>() {
-            @Override
-            public void accept(int[] value) {
-                if (getSpace(value) == space) {
-                    coordsList.add(value);
-                }
+        byte ordinal = (byte) space.ordinal();
+        int remaining = spaceCounts[ordinal];
+        for (int i = 0; i < spaceMap.length && remaining > 0; i++) {
+            if (spaceMap[i] == ordinal) {
+                coordsList.add(new int[] {i / width, i % width});
+                remaining--;
             }
-        });
+        }
         return coordsList;
     }
 
+    /**
+     * Gets the number of spaces of a type on the spacemap
+     * @param space the space to count
+     * @return the number of spaces
+     */
+    public int getSpaceCount(@NonNull Space space) {
+        return spaceCounts[space.ordinal()];
+    }
+
 
 
     /**
@@ -399,7 +851,38 @@ public class SpaceMap {
      */
     @NonNull
     public Space getSpace(@NonNull @MatrixCoordinates int[] coords) {
-        return spaceMap[coords[0]][coords[1]];
+        return getSpace(coords[0], coords[1]);
+    }
+
+    /**
+     * Get the space at a coordinate without needing a coordinate array
+     * @param row the row of the space to get
+     * @param col the column of the space to get
+     * @return the space at the coordinate
+     */
+    @NonNull
+    public Space getSpace(int row, int col) {
+        return Space.fromOrdinal(spaceMap[row * width + col]);
+    }
+
+    /**
+     * Determine whether the robot can move through the space at a coordinate
+     * @param row the row of the space
+     * @param col the column of the space
+     * @return true if the space is passable
+     */
+    public boolean isPassable(int row, int col) {
+        return getSpace(row, col).passable;
+    }
+
+    /**
+     * Determine whether a coordinate is inside the spacemap
+     * @param row the row to check
+     * @param col the column to check
+     * @return true if the coordinate is inside the spacemap
+     */
+    public boolean inBounds(int row, int col) {
+        return row >= 0 && row < height && col >= 0 && col < width;
     }
 
     /**
@@ -407,7 +890,12 @@ public class SpaceMap {
      * @param robotCoords the robot coordinates to set
      */
     public void setRobotPosition(@NonNull @MatrixCoordinates int[] robotCoords) {
-        clearSpace(Space.ROBOT, true);
+        // usually the robot is only in one space, so only that space has to be cleared
+        if (isLoneRobotIndex()) {
+            setCell(robotIndex / width, robotIndex % width, Space.CLEAR);
+        } else {
+            clearSpace(Space.ROBOT, true);
+        }
         setSpace(Space.ROBOT, robotCoords, true);
     }
 
@@ -418,6 +906,9 @@ public class SpaceMap {
     @Nullable
     @MatrixCoordinates
     public int[] getRobotPosition() {
+        if (isLoneRobotIndex()) {
+            return new int[] {robotIndex / width, robotIndex % width};
+        }
         List<int[]> positionList = getSpace(Space.ROBOT);
         if (!positionList.isEmpty()) {
             return positionList.get(0);
@@ -425,8 +916,14 @@ public class SpaceMap {
         return null;
     }
 
-
-
+    /**
+     * Determines whether the robot is in exactly one space, at the last robot index
+     * @return true if the last robot index is the only robot space
+     */
+    private boolean isLoneRobotIndex() {
+        return spaceCounts[Space.ROBOT.ordinal()] == 1 && robotIndex >= 0
+                && spaceMap[robotIndex] == Space.ROBOT.ordinal();
+    }
 
 
     // endregion adding/removing
@@ -510,5 +1007,20 @@ public class SpaceMap {
 
         public boolean isStatic() { return this.isStaticSpace; }
 
+        // cached for the same reason as ImageTarget.cachedValues(), since this is called for
+        // every space read from the packed map
+        private static final Space[] cachedValues = Space.values();
+        public static final int count = cachedValues.length;
+
+        /**
+         * Gets a space from its ordinal, which is how spaces are stored in the packed map
+         * @param ordinal the ordinal of the space
+         * @return the space with the ordinal
+         */
+        @NonNull
+        public static Space fromOrdinal(int ordinal) {
+            return cachedValues[ordinal];
+        }
+
     }
 }
@@ -0,0 +1,121 @@
+package localization;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import annotations.MatrixCoordinates;
+import localization.SpaceMap.Space;
+
+/**
+ * An immutable copy of a SpaceMap at one version, for reading the map from other threads.
+ *
+ * The spacemap itself isn't thread safe, so only the thread that writes to it should read it
+ * directly. That thread publishes snapshots with {@link SpaceMap#publishSnapshot()}, and any
+ * other thread can get the latest one with {@link SpaceMap#getSnapshot()} without locking.
+ * Since snapshots never change, a reader can keep using one for as long as it wants.
+ *
+ * Each row is its own array, and a new snapshot reuses the previous snapshot's array for every
+ * row that hasn't changed since, so publishing only copies the changed rows. This also means
+ * checking whether a row changed between two snapshots is just a reference comparison.
+ */
+public final class SpaceMapSnapshot {
+    public final int height;
+    public final int width;
+    private final long version;
+    // never modified after construction, and shared between snapshots
+    private final byte[][] rows;
+
+    /**
+     * Create a snapshot. Only called by the spacemap while publishing.
+     * @param rows the rows of the snapshot, which must never be modified after this
+     * @param width the width of the map
+     * @param version the spacemap version the snapshot was taken at
+     */
+    SpaceMapSnapshot(@NonNull byte[][] rows, int width, long version) {
+        this.rows = rows;
+        this.height = rows.length;
+        this.width = width;
+        this.version = version;
+    }
+
+    /**
+     * Gets the row array to reuse for a row in the next snapshot
+     * @param row the row to get
+     * @return the shared row array
+     */
+    byte[] getSharedRow(int row) {
+        return rows[row];
+    }
+
+    /**
+     * Get the space at a coordinate
+     * @param row the row of the space
+     * @param col the column of the space
+     * @return the space at the coordinate
+     */
+    @NonNull
+    public Space getSpace(int row, int col) {
+        return Space.fromOrdinal(rows[row][col]);
+    }
+
+    /**
+     * Get the space at a coordinate
+     * @param coords the coordinates of the space
+     * @return the space at the coordinate
+     */
+    @NonNull
+    public Space getSpace(@NonNull @MatrixCoordinates int[] coords) {
+        return getSpace(coords[0], coords[1]);
+    }
+
+    /**
+     * Determine whether the robot can move through the space at a coordinate
+     * @param row the row of the space
+     * @param col the column of the space
+     * @return true if the space is passable
+     */
+    public boolean isPassable(int row, int col) {
+        return getSpace(row, col).isPassable();
+    }
+
+    /**
+     * Determine whether a coordinate is inside the snapshot
+     * @param row the row to check
+     * @param col the column to check
+     * @return true if the coordinate is inside the snapshot
+     */
+    public boolean inBounds(int row, int col) {
+        return row >= 0 && row < height && col >= 0 && col < width;
+    }
+
+    /**
+     * Determines whether a row is different from an older snapshot of the same spacemap
+     * @param older the older snapshot, or null to treat every row as changed
+     * @param row the row to check
+     * @return true if the row changed between the snapshots
+     */
+    public boolean isRowChangedSince(@Nullable SpaceMapSnapshot older, int row) {
+        return older == null || older.rows[row] != rows[row];
+    }
+
+    /**
+     * Gets the snapshot as a 2d array of spaces
+     * @return a new array of the snapshot's spaces
+     */
+    @NonNull
+    public Space[][] getRawMap() {
+        Space[][] rawMap = new Space[height][width];
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                rawMap[r][c] = getSpace(r, c);
+            }
+        }
+        return rawMap;
+    }
+
+    /**
+     * Gets the spacemap version this snapshot was taken at
+     * @return the version
+     */
+    public long getVersion() { return version; }
+}
@@ -0,0 +1,234 @@
+package localization;
+
+import androidx.annotation.NonNull;
+
+import org.firstinspires.ftc.robotcore.external.matrices.OpenGLMatrix;
+
+import annotations.DistanceValues;
+import annotations.FieldCoordinates;
+
+/**
+ * Transforms batches of points between the camera, robot and field frames using plain arrays,
+ * for projecting every detection in a frame without making any OpenGLMatrix or VectorF objects.
+ *
+ * Transforms are 4x4 matrices stored as float[16] in column major order, the same layout
+ * {@link OpenGLMatrix#getData()} uses, so they can be copied straight out of vuforia's matrices.
+ * Points are passed as separate x, y and z arrays instead of an array per point, so a batch is
+ * just a few loops over flat arrays.
+ *
+ * The camera to robot transform is set once, and the robot to field transform is set each
+ * frame. The combined camera to field transform is only recomputed when one of them changes, so
+ * a batch only costs 9 multiply-adds per point.
+ */
+public class TransformKernel {
+    private final float[] cameraToRobot = identity();
+    private final float[] robotToField = identity();
+    private final float[] cameraToField = identity();
+    private boolean combinedDirty;
+
+    // region setting transforms
+
+    /**
+     * Sets where the camera is mounted on the robot
+     * @param cameraToRobot the camera's pose in robot coordinates, like the camera location
+     *                      given to vuforia
+     */
+    public void setCameraToRobot(@NonNull OpenGLMatrix cameraToRobot) {
+        setCameraToRobot(cameraToRobot.getData());
+    }
+
+    /**
+     * Sets where the camera is mounted on the robot
+     * @param data the camera's pose in robot coordinates, as a column major 4x4 matrix
+     */
+    public void setCameraToRobot(@NonNull float[] data) {
+        System.arraycopy(data, 0, cameraToRobot, 0, 16);
+        combinedDirty = true;
+    }
+
+    /**
+     * Sets the robot's pose on the field
+     * @param robotToField the robot's pose in field coordinates, like vuforia's robot location
+     */
+    public void setRobotToField(@NonNull @FieldCoordinates OpenGLMatrix robotToField) {
+        System.arraycopy(robotToField.getData(), 0, this.robotToField, 0, 16);
+        combinedDirty = true;
+    }
+
+    /**
+     * Sets the robot's pose on the field from a flat pose, which is all odometry gives
+     * @param x the robot's x position, in field coordinates
+     * @param y the robot's y position, in field coordinates
+     * @param heading the robot's heading, in radians
+     */
+    public void setRobotPose(@FieldCoordinates float x, @FieldCoordinates float y, double heading) {
+        setPlanarPose(robotToField, x, y, heading);
+        combinedDirty = true;
+    }
+
+    /**
+     * Gets the combined camera to field transform, recomputing it if needed
+     * @return the transform. It's owned by the kernel, so it shouldn't be changed.
+     */
+    @NonNull
+    public float[] getCameraToField() {
+        if (combinedDirty) {
+            multiply(robotToField, cameraToRobot, cameraToField);
+            combinedDirty = false;
+        }
+        return cameraToField;
+    }
+
+    // endregion setting transforms
+
+    // region batch transforms
+
+    /**
+     * Transforms points from the camera frame to the field frame.
+     * The outputs can be the same arrays as the inputs.
+     * @param xs the x coordinates of the points in the camera frame
+     * @param ys the y coordinates of the points in the camera frame
+     * @param zs the z coordinates of the points in the camera frame
+     * @param count the number of points to transform
+     * @param xOut the field x coordinates, at least count long
+     * @param yOut the field y coordinates, at least count long
+     * @param zOut the field z coordinates, at least count long
+     */
+    public void cameraToField(@NonNull float[] xs, @NonNull float[] ys, @NonNull float[] zs, int count,
+                              @NonNull @FieldCoordinates float[] xOut,
+                              @NonNull @FieldCoordinates float[] yOut,
+                              @NonNull @FieldCoordinates float[] zOut) {
+        transformPoints(getCameraToField(), xs, ys, zs, count, xOut, yOut, zOut);
+    }
+
+    /**
+     * Transforms points from the robot frame to the field frame.
+     * The outputs can be the same arrays as the inputs.
+     * See {@link #cameraToField(float[], float[], float[], int, float[], float[], float[])}
+     */
+    public void robotToField(@NonNull float[] xs, @NonNull float[] ys, @NonNull float[] zs, int count,
+                             @NonNull @FieldCoordinates float[] xOut,
+                             @NonNull @FieldCoordinates float[] yOut,
+                             @NonNull @FieldCoordinates float[] zOut) {
+        transformPoints(robotToField, xs, ys, zs, count, xOut, yOut, zOut);
+    }
+
+    /**
+     * Transforms points by a transform.
+     * Each output is read after all inputs for a point are, so the outputs can be the inputs.
+     * @param m the transform, as a column major 4x4 matrix. The bottom row is assumed to be
+     *          {0, 0, 0, 1}, which is true for any rotation and translation.
+     * @param xs the x coordinates of the points
+     * @param ys the y coordinates of the points
+     * @param zs the z coordinates of the points
+     * @param count the number of points to transform
+     * @param xOut the transformed x coordinates
+     * @param yOut the transformed y coordinates
+     * @param zOut the transformed z coordinates
+     */
+    public static void transformPoints(@NonNull float[] m,
+                                       @NonNull float[] xs, @NonNull float[] ys, @NonNull float[] zs, int count,
+                                       @NonNull float[] xOut, @NonNull float[] yOut, @NonNull float[] zOut) {
+        // pulled into locals so the loop doesn't reload them from the array
+        float m00 = m[0], m10 = m[1], m20 = m[2];
+        float m01 = m[4], m11 = m[5], m21 = m[6];
+        float m02 = m[8], m12 = m[9], m22 = m[10];
+        float m03 = m[12], m13 = m[13], m23 = m[14];
+        for (int i = 0; i < count; i++) {
+            float x = xs[i];
+            float y = ys[i];
+            float z = zs[i];
+            xOut[i] = m00 * x + m01 * y + m02 * z + m03;
+            yOut[i] = m10 * x + m11 * y + m12 * z + m13;
+            zOut[i] = m20 * x + m21 * y + m22 * z + m23;
+        }
+    }
+
+    /**
+     * Converts distances from the camera to field positions, the same as
+     * {@link CoordinateUtils#convertDistancesToFieldPosition(OpenGLMatrix, double[])} does for one
+     * point. Each point is moved back by its straight distance and right by its side distance,
+     * then rotated around the camera by the camera's heading.
+     * The outputs can be the same arrays as the inputs.
+     * @param cameraX the camera's x position, in field coordinates
+     * @param cameraY the camera's y position, in field coordinates
+     * @param heading the camera's heading, in radians
+     * @param straights the straight distance to each point
+     * @param sides the side distance to each point
+     * @param count the number of points to convert
+     * @param xOut the field x coordinates
+     * @param yOut the field y coordinates
+     */
+    public static void distancesToField(@FieldCoordinates float cameraX, @FieldCoordinates float cameraY, double heading,
+                                        @NonNull @DistanceValues float[] straights,
+                                        @NonNull @DistanceValues float[] sides, int count,
+                                        @NonNull @FieldCoordinates float[] xOut,
+                                        @NonNull @FieldCoordinates float[] yOut) {
+        float cos = (float) Math.cos(heading);
+        float sin = (float) Math.sin(heading);
+        for (int i = 0; i < count; i++) {
+            float dx = -straights[i];
+            float dy = -sides[i];
+            xOut[i] = cameraX + cos * dx - sin * dy;
+            yOut[i] = cameraY + sin * dx + cos * dy;
+        }
+    }
+
+    // endregion batch transforms
+
+    // region matrix math
+
+    /**
+     * Multiplies two column major 4x4 matrices, so out = a * b.
+     * Out can't be the same array as a or b.
+     * @param a the left matrix
+     * @param b the right matrix
+     * @param out the product
+     */
+    public static void multiply(@NonNull float[] a, @NonNull float[] b, @NonNull float[] out) {
+        for (int col = 0; col < 4; col++) {
+            float b0 = b[col * 4];
+            float b1 = b[col * 4 + 1];
+            float b2 = b[col * 4 + 2];
+            float b3 = b[col * 4 + 3];
+            for (int row = 0; row < 4; row++) {
+                out[col * 4 + row] = a[row] * b0 + a[4 + row] * b1 + a[8 + row] * b2 + a[12 + row] * b3;
+            }
+        }
+    }
+
+    /**
+     * Sets a matrix to a flat pose, which rotates around z and then translates
+     * @param out the matrix to set
+     * @param x the x translation
+     * @param y the y translation
+     * @param heading the rotation around z, in radians
+     */
+    public static void setPlanarPose(@NonNull float[] out, float x, float y, double heading) {
+        float cos = (float) Math.cos(heading);
+        float sin = (float) Math.sin(heading);
+        out[0] = cos;  out[4] = -sin; out[8] = 0;  out[12] = x;
+        out[1] = sin;  out[5] = cos;  out[9] = 0;  out[13] = y;
+        out[2] = 0;    out[6] = 0;    out[10] = 1; out[14] = 0;
+        out[3] = 0;    out[7] = 0;    out[11] = 0; out[15] = 1;
+    }
+
+    /**
+     * Gets the rotation around z of a transform, which is the same as the third angle of its
+     * extrinsic XYZ orientation
+     * @param m the transform, as a column major 4x4 matrix
+     * @return the heading, in radians
+     */
+    public static double getHeading(@NonNull float[] m) {
+        return Math.atan2(m[1], m[0]);
+    }
+
+    @NonNull
+    private static float[] identity() {
+        float[] matrix = new float[16];
+        matrix[0] = matrix[5] = matrix[10] = matrix[15] = 1;
+        return matrix;
+    }
+
+    // endregion matrix math
+}
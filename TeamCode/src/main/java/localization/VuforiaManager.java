@@ -8,6 +8,7 @@ import android.graphics.Bitmap;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.qualcomm.robotcore.hardware.HardwareMap;
 import com.qualcomm.robotcore.util.RobotLog;
@@ -63,6 +64,9 @@ public class VuforiaManager {
 
     private VuforiaLocalizer vuforiaLocalizer;
     private OpenGLMatrix lastLocation = null;
+    // combines the poses from every visible target
+    private final PoseFusion poseFusion = new PoseFusion();
+    private PoseEstimate lastPoseEstimate = null;
     private final HardwareMap hardwareMap;
     private CameraName cameraName;
 
@@ -76,7 +80,6 @@ public class VuforiaManager {
     // constants for robot/field measurements
     private static final float mmPerInch        = 25.4f; // constant for mm to inches
     private static final float mmBotWidth       = inchesBotWidth * mmPerInch; // width of robot to mm
-
     // 0,0 is a coordinate, keep that in mind for testing calculations
     private float mmFieldLength;
 
@@ -286,21 +289,62 @@ public class VuforiaManager {
     }
 
     /**
-     * Gets the position of the robot if there's a new position
-     * @return the updated robot position
+     * Gets the position of the robot, fused from every visible target
+     * @return the updated robot position, or the last position if no target has a new one
      */
     public OpenGLMatrix getUpdatedRobotPosition() {
+        PoseEstimate poseEstimate = getUpdatedPoseEstimate();
+        if (poseEstimate != null) {
+            lastLocation = poseEstimate.toMatrix();
+        }
+        return lastLocation;
+    }
+
+    /**
+     * Gets a new pose estimate from every target with a new robot location.
+     * Each target's pose is weighted by how far away and at what angle the target was seen, and
+     * targets that disagree with the rest are ignored. See {@link PoseFusion}.
+     * @return the fused estimate, or null if no target had a new location
+     */
+    @Nullable
+    public PoseEstimate getUpdatedPoseEstimate() {
+        // vuforia doesn't give the frame time, so guess it from when the poses were read
+        long timestamp = System.nanoTime() - CoordinateUtils.cameraLatency;
+        poseFusion.clear();
         for (ImageTarget item : ImageTarget.cachedValues()) {
-            if (isTrackableVisible(item)) {
-                OpenGLMatrix currentPosition = Objects.requireNonNull(infoMap.get(item))
-                        .getListener().getUpdatedRobotLocation();
-                if (currentPosition != null) {
-                    lastLocation = currentPosition;
-                }
-                break; // stop once we have one
+            TrackableInfo trackableInfo = Objects.requireNonNull(infoMap.get(item));
+            if (!trackableInfo.isVisible()) {
+                continue;
+            }
+            OpenGLMatrix robotLocation = trackableInfo.getListener().getUpdatedRobotLocation();
+            if (robotLocation == null) {
+                continue;
             }
+            float[] robotData = robotLocation.getData();
+            // the image faces out along the target's z axis
+            float[] targetData = trackableInfo.getTrackable().getLocation().getData();
+            poseFusion.addMeasurement(robotData[12], robotData[13], TransformKernel.getHeading(robotData),
+                    targetData[12], targetData[13], targetData[8], targetData[9]);
         }
-        return lastLocation;
+
+        PoseEstimate poseEstimate = poseFusion.fuse(timestamp, lastPoseEstimate);
+        if (poseEstimate != null) {
+            if (poseFusion.getRejectedCount() > 0) {
+                Log.d(TAG, String.format("Rejected %s of %s target poses", poseFusion.getRejectedCount(),
+                        poseFusion.getMeasurementCount()));
+            }
+            lastPoseEstimate = poseEstimate;
+        }
+        return poseEstimate;
+    }
+
+    /**
+     * Gets the last fused pose estimate, which may be old. Check its age before trusting it.
+     * @return the last estimate, or null if there hasn't been one
+     */
+    @Nullable
+    public PoseEstimate getLastPoseEstimate() {
+        return lastPoseEstimate;
     }
 
 
@@ -1,6 +1,7 @@
 package mechanisms;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.acmerobotics.dashboard.config.Config;
 import com.acmerobotics.roadrunner.control.PIDCoefficients;
@@ -35,6 +36,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import RoadRunner.EKFLocalizer;
+import localization.PoseEstimate;
 
 import static RoadRunner.DriveConstants.MAX_ACCEL;
 import static RoadRunner.DriveConstants.MAX_ANG_ACCEL;
@@ -62,6 +65,11 @@ public class RoadRunnerMecanumDrive extends MecanumDrive {
     public static double VY_WEIGHT = 1;
     public static double OMEGA_WEIGHT = 1;
 
+    // fuse the drive encoders with the imu and vision fixes instead of the default localizer.
+    // off until the EKFLocalizer noise constants are tuned, since turning it on changes the
+    // localizer for every auto, teleop and tuner using this drive
+    public static boolean USE_EKF_LOCALIZER = false;
+
     private TrajectorySequenceRunner trajectorySequenceRunner;
 
     private static final TrajectoryVelocityConstraint VEL_CONSTRAINT = getVelocityConstraint(MAX_VEL, MAX_ANG_VEL, TRACK_WIDTH);
@@ -74,6 +82,8 @@ public class RoadRunnerMecanumDrive extends MecanumDrive {
 
     private BNO055IMU imu;
     private VoltageSensor batteryVoltageSensor;
+    @Nullable
+    private EKFLocalizer ekfLocalizer;
 
     public RoadRunnerMecanumDrive(HardwareMap hardwareMap) {
         super(kV, kA, kStatic, TRACK_WIDTH, TRACK_WIDTH, LATERAL_MULTIPLIER);
@@ -146,6 +156,12 @@ public class RoadRunnerMecanumDrive extends MecanumDrive {
 
         // TODO: if desired, use setLocalizer() to change the localization method
         // for instance, setLocalizer(new ThreeTrackingWheelLocalizer(...));
+        // the ekf only takes movement from the localizer it wraps, so this can be swapped for
+        // StandardTrackingWheelLocalizer once the tracking wheels are set up
+        if (USE_EKF_LOCALIZER) {
+            ekfLocalizer = new EKFLocalizer(new MecanumLocalizer(this, false), imu);
+            setLocalizer(ekfLocalizer);
+        }
 
         trajectorySequenceRunner = new TrajectorySequenceRunner(follower, HEADING_PID);
     }
@@ -294,6 +310,22 @@ public class RoadRunnerMecanumDrive extends MecanumDrive {
         rightFront.setPower(v3);
     }
 
+    /**
+     * Gives a vision pose to the localizer, if the ekf localizer is being used. Can be called
+     * from any thread.
+     * @param fix the pose, in field millimeters like vuforia's robot location
+     */
+    public void addVisionFix(@NonNull PoseEstimate fix) {
+        if (ekfLocalizer != null) {
+            ekfLocalizer.addVisionFix(fix);
+        }
+    }
+
+    @Nullable
+    public EKFLocalizer getEkfLocalizer() {
+        return ekfLocalizer;
+    }
+
     @Override
     public double getRawExternalHeading() {
         return imu.getAngularOrientation().firstAngle;
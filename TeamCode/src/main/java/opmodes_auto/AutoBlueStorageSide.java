@@ -202,12 +202,9 @@ public class AutoBlueStorageSide extends LinearOpMode {
         waitForStart();
         if (opModeIsActive()) {
 
-            double cnt = 0;
-            for (int i = 0; i < 20; i++) {
-                cnt += pipeline.getObjLevel();
-            }
-
-            int objLevel = (int) (cnt / 20);
+            // voted on by the last ElementCVPipeline.VOTE_FRAMES frames, so one bad frame doesn't
+            // pick the level
+            int objLevel = pipeline.getVotedObjLevel();
 
             telemetry.addData("Level found", objLevel);
             telemetry.update();
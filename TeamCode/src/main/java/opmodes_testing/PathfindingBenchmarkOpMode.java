@@ -0,0 +1,144 @@
+package opmodes_testing;
+
+import android.util.Log;
+
+import com.qualcomm.robotcore.eventloop.opmode.OpMode;
+import com.qualcomm.robotcore.eventloop.opmode.TeleOp;
+
+import java.util.Random;
+
+import localization.FieldMap;
+import localization.GridPathfinder;
+import localization.SpaceMap;
+import teamcode.GamepadController;
+import teamcode.GamepadController.ButtonState;
+import teamcode.GamepadController.ToggleButton;
+import util.IntList;
+
+/**
+ * Benchmarks the grid pathfinder on the control hub.
+ * Runs a set of warmup searches so the runtime has compiled the search, then times a set of
+ * corner to corner searches on an empty field and on a field cluttered with random obstacles.
+ * Press A to run the empty field benchmark and B to run the cluttered field benchmark.
+ * Results are shown in telemetry and logged.
+ */
+@TeleOp(name="Pathfinding: Benchmark OpMode", group="Testing")
+public class PathfindingBenchmarkOpMode extends OpMode {
+    private static final String TAG = "vuf.test.pf_benchmark";
+    private static final long nanoToMilli = 1000000;
+
+    private static final int fieldLength = 3660; // mm
+    private static final int warmupIterations = 200;
+    private static final int measuredIterations = 1000;
+    private static final double clutterFraction = 0.2; // fraction of spaces that are obstacles
+    private static final long clutterSeed = 6069;
+
+    private GamepadController movementController;
+
+    private SpaceMap emptyMap;
+    private SpaceMap clutteredMap;
+    private GridPathfinder emptyPathfinder;
+    private GridPathfinder clutteredPathfinder;
+    private final IntList path = new IntList(256);
+
+    private String emptyResult = "not run";
+    private String clutteredResult = "not run";
+
+    @Override
+    public void init() {
+        movementController = new GamepadController(gamepad1);
+
+        int mapSize = fieldLength / FieldMap.defaultScale;
+        emptyMap = new SpaceMap(mapSize, mapSize, 1, mapSize-2);
+        emptyMap.setWalls();
+
+        clutteredMap = new SpaceMap(emptyMap);
+        Random random = new Random(clutterSeed);
+        int[] coords = new int[2];
+        for (int r = 1; r < mapSize-1; r++) {
+            for (int c = 1; c < mapSize-1; c++) {
+                if (random.nextDouble() < clutterFraction) {
+                    coords[0] = r;
+                    coords[1] = c;
+                    clutteredMap.setSpace(SpaceMap.Space.OBSTACLE, coords, false);
+                }
+            }
+        }
+        // keep the corners open so there's always somewhere to start and end
+        int[][] corners = getCorners(mapSize);
+        for (int[] corner : corners) {
+            clutteredMap.setSpace(SpaceMap.Space.CLEAR, corner, false);
+        }
+
+        emptyPathfinder = new GridPathfinder(emptyMap);
+        clutteredPathfinder = new GridPathfinder(clutteredMap);
+    }
+
+    @Override
+    public void loop() {
+        movementController.updateButtonStates();
+
+        if (movementController.getButtonState(ToggleButton.A) == ButtonState.KEY_DOWN) {
+            emptyResult = runBenchmark(emptyPathfinder);
+            Log.i(TAG, "Empty field: " + emptyResult);
+        }
+
+        if (movementController.getButtonState(ToggleButton.B) == ButtonState.KEY_DOWN) {
+            clutteredResult = runBenchmark(clutteredPathfinder);
+            Log.i(TAG, "Cluttered field: " + clutteredResult);
+        }
+
+        telemetry.addData("Empty field (A)", emptyResult);
+        telemetry.addData("Cluttered field (B)", clutteredResult);
+        telemetry.update();
+    }
+
+    /**
+     * Runs corner to corner searches with a pathfinder and times them
+     * @param pathfinder the pathfinder to benchmark
+     * @return a summary of the results
+     */
+    private String runBenchmark(GridPathfinder pathfinder) {
+        int mapSize = pathfinder.getSpaceMap().height;
+        int[][] corners = getCorners(mapSize);
+
+        for (int i = 0; i < warmupIterations; i++) {
+            pathfinder.findPath(corners[i % 4], corners[(i + 2) % 4], path);
+        }
+
+        long totalNanos = 0;
+        long maxNanos = 0;
+        int found = 0;
+        long expansions = 0;
+        for (int i = 0; i < measuredIterations; i++) {
+            long startTime = System.nanoTime();
+            boolean success = pathfinder.findPath(corners[i % 4], corners[(i + 2) % 4], path);
+            long duration = System.nanoTime() - startTime;
+            totalNanos += duration;
+            maxNanos = Math.max(maxNanos, duration);
+            expansions += pathfinder.getLastExpansions();
+            if (success) {
+                found++;
+            }
+        }
+
+        double meanMillis = (double) totalNanos / measuredIterations / nanoToMilli;
+        double maxMillis = (double) maxNanos / nanoToMilli;
+        return String.format("mean %.3f ms, max %.3f ms, %d/%d found, %d avg expansions",
+                meanMillis, maxMillis, found, measuredIterations, expansions / measuredIterations);
+    }
+
+    /**
+     * Gets the coordinates just inside each corner of the walls, in clockwise order
+     * @param mapSize the size of the map
+     * @return the corner coordinates
+     */
+    private static int[][] getCorners(int mapSize) {
+        return new int[][] {
+                {1, 1},
+                {1, mapSize-2},
+                {mapSize-2, mapSize-2},
+                {mapSize-2, 1}
+        };
+    }
+}
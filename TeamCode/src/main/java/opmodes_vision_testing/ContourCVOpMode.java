@@ -95,6 +95,7 @@ public class ContourCVOpMode extends OpMode {
      */
     @Override
     public void stop() {
+        cvManager.stopPipeline();
     }
 
 
@@ -6,6 +6,7 @@ import android.util.Log;
 import com.qualcomm.robotcore.eventloop.opmode.OpMode;
 import com.qualcomm.robotcore.eventloop.opmode.TeleOp;
 
+import org.firstinspires.ftc.robotcore.external.Function;
 import org.firstinspires.ftc.robotcore.external.matrices.OpenGLMatrix;
 import teamcode.GamepadController.ButtonState;
 import teamcode.GamepadController.ToggleButton;
@@ -13,10 +14,20 @@ import teamcode.GamepadController.ToggleButton;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import localization.DetectionMapper;
+import localization.DetectionMapper.PotentialDetection;
 import localization.FieldMap;
+import localization.GroundPlaneProjector;
+import localization.PoseEstimate;
+import localization.PoseHistory;
+import localization.RayCaster;
 import localization.SpaceMap;
+import localization.TransformKernel;
 import localization.VuforiaManager;
 import teamcode.GamepadController;
+import vision.CVManager;
+import vision.DetectionFrame;
+import vision.ElementCVPipeline;
 
 
 
@@ -38,6 +49,46 @@ public class FieldmapOpMode extends OpMode {
 
     private static final int fieldLength = 3660;
 
+    // detections from the other webcam, projected onto the floor and mapped. vuforia takes the
+    // second webcam, so the pipeline gets the first
+    private static final String detectionWebcam = "Webcam 1";
+    // c920 at 1280x720. the pitch is a starting guess, measure it on the robot or calibrate the
+    // projector with GroundPlaneProjector.fromCorrespondences
+    private static final double focalLength = 920; // pixels
+    private static final double cameraPitch = Math.toRadians(20);
+    private static final double cameraFieldOfView = 2 * Math.atan(640 / focalLength);
+    // rays cast across the camera's view to find which mapped detections it could have seen
+    private static final int visibilityRays = 64;
+    private CVManager cvManager;
+    private ElementCVPipeline pipeline;
+    private GroundPlaneProjector projector;
+    private final TransformKernel transformKernel = new TransformKernel();
+    // vuforia poses, for looking up where the robot was when each camera frame came in
+    private final PoseHistory poseHistory = new PoseHistory(64);
+    private final DetectionMapper detectionMapper = new DetectionMapper();
+    private final DetectionMapper.UpdateBuffers mapperBuffers = new DetectionMapper.UpdateBuffers();
+    private final ArrayList<PotentialDetection> potentialDetections = new ArrayList<>();
+    private RayCaster rayCaster;
+    // the robot's pose when the current frame was captured, as {x, y, heading}
+    private final double[] framePose = new double[3];
+    private long lastDetectionTime;
+
+    // a mapped detection is gone if nothing in the current frame landed near it
+    private final Function<OpenGLMatrix, Boolean> isDetectionGone = new Function<OpenGLMatrix, Boolean>() {
+        @Override
+        public Boolean apply(OpenGLMatrix fieldPosition) {
+            float[] data = fieldPosition.getData();
+            int range = fieldMap.getScale();
+            for (int i = 0; i < projector.getProjectedCount(); i++) {
+                if (Math.abs(projector.getFieldX(i) - data[12]) <= range
+                        && Math.abs(projector.getFieldY(i) - data[13]) <= range) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
 
     @Override
     public void init() {
@@ -47,6 +98,13 @@ public class FieldmapOpMode extends OpMode {
         HashMap<SpaceMap.Space, ArrayList<OpenGLMatrix>> staticCoordsGL = new HashMap<>();
         staticCoordsGL.put(SpaceMap.Space.IMAGE_TARGET, vuforiaManager.getTrackablePositions());
         fieldMap = new FieldMap(fieldLength, staticCoordsGL, null,true);
+        rayCaster = new RayCaster(fieldMap.getSpaceMap());
+
+        projector = GroundPlaneProjector.fromCameraMounting(focalLength, 640, 360, 0, 0,
+                cameraHeight, cameraPitch);
+        cvManager = new CVManager(hardwareMap, detectionWebcam);
+        pipeline = new ElementCVPipeline(cvManager.getWebcam());
+        cvManager.initializeCamera(pipeline);
     }
 
     @Override
@@ -72,7 +130,16 @@ public class FieldmapOpMode extends OpMode {
         movementController.updateButtonStates();
 
 //        // update map
-        OpenGLMatrix robotPosition = vuforiaManager.getUpdatedRobotPosition();
+        PoseEstimate poseEstimate = vuforiaManager.getUpdatedPoseEstimate();
+        OpenGLMatrix robotPosition = null;
+        if (poseEstimate != null) {
+            robotPosition = poseEstimate.toMatrix();
+            poseHistory.add(poseEstimate.timestamp, poseEstimate.x, poseEstimate.y, poseEstimate.heading);
+        }
+
+        // before the map update, so the detections are in this loop's snapshot
+        mapDetections();
+
         if (robotPosition != null) {
             long startTime = System.nanoTime();
             fieldMap.update(robotPosition);
@@ -120,11 +187,45 @@ public class FieldmapOpMode extends OpMode {
     }
 
 
+    /**
+     * Projects the pipeline's newest boxes onto the field from where the robot was when their
+     * frame was captured, and maps them. Mapped detections the camera could see but didn't find
+     * lose confidence, so a wrong projection is removed after a few frames.
+     * Frames captured too long after the newest vuforia pose are skipped, since the robot could've
+     * moved since then.
+     */
+    private void mapDetections() {
+        DetectionFrame detections = pipeline.getDetections();
+        if (detections.timestamp == lastDetectionTime) {
+            return;
+        }
+        lastDetectionTime = detections.timestamp;
+        projector.clear();
+        projector.addBoxes(detections.boxes);
+        if (projector.project(transformKernel, poseHistory, detections.timestamp) < 0) {
+            // no vuforia pose from around when the frame was captured
+            return;
+        }
+        poseHistory.getPose(detections.timestamp, framePose);
+        int[] cameraPosition = fieldMap.getMatrixPosition(framePose[0], framePose[1]);
+        rayCaster.castFrustum(cameraPosition[0], cameraPosition[1], framePose[2], cameraFieldOfView,
+                visibilityRays, (int) (projector.getMaxRange() / fieldMap.getScale()));
+        detectionMapper.markDisappearances(isDetectionGone, rayCaster);
+
+        potentialDetections.clear();
+        projector.addPotentialDetections(fieldMap, SpaceMap.Space.OBSTACLE, potentialDetections);
+        detectionMapper.update(potentialDetections, mapperBuffers);
+        mapperBuffers.applyTo(fieldMap.getSpaceMap());
+        telemetry.addData("Detections mapped", detectionMapper.getMappedCount());
+    }
+
+
     /*
      * Code to run ONCE after the driver hits STOP
      */
     @Override
     public void stop() {
+        cvManager.stopPipeline();
     }
 
 
@@ -110,6 +110,7 @@ public class IntakeVisionOpMode extends OpMode {
      */
     @Override
     public void stop() {
+        cvManager.stopPipeline();
     }
 
 
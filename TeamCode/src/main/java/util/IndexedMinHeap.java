@@ -0,0 +1,158 @@
+package util;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary min heap of int ids in the range [0, capacity), ordered by long keys.
+ * Each id can only be in the heap once, and its position is tracked so its key can be
+ * changed or it can be removed without searching the heap. This is the open set for the
+ * grid planners, where the ids are space indices.
+ *
+ * Nothing is allocated after construction, and nothing is boxed.
+ */
+public class IndexedMinHeap {
+    private final int[] heap; // heap position -> id
+    private final long[] keys; // id -> key
+    private final int[] positions; // id -> heap position, or -1 if not in the heap
+    private int size;
+
+    /**
+     * Create an empty heap
+     * @param capacity the number of ids the heap can hold. Ids must be less than this.
+     */
+    public IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        keys = new long[capacity];
+        positions = new int[capacity];
+        Arrays.fill(positions, -1);
+    }
+
+    /**
+     * Add an id to the heap, or change its key if it's already in the heap
+     * @param id the id to add or update
+     * @param key the key of the id. Smaller keys are polled first.
+     */
+    public void insertOrUpdate(int id, long key) {
+        int position = positions[id];
+        if (position < 0) {
+            keys[id] = key;
+            heap[size] = id;
+            positions[id] = size;
+            siftUp(size++);
+        } else {
+            long oldKey = keys[id];
+            keys[id] = key;
+            if (key < oldKey) {
+                siftUp(position);
+            } else if (key > oldKey) {
+                siftDown(position);
+            }
+        }
+    }
+
+    /**
+     * Remove an id from the heap if it's in the heap
+     * @param id the id to remove
+     */
+    public void remove(int id) {
+        int position = positions[id];
+        if (position < 0) {
+            return;
+        }
+        positions[id] = -1;
+        size--;
+        if (position != size) {
+            int lastId = heap[size];
+            heap[position] = lastId;
+            positions[lastId] = position;
+            siftDown(position);
+            siftUp(positions[lastId]);
+        }
+    }
+
+    /**
+     * Removes the id with the smallest key
+     * @return the removed id
+     */
+    public int poll() {
+        int id = peekId();
+        remove(id);
+        return id;
+    }
+
+    /**
+     * Gets the id with the smallest key without removing it
+     * @return the id with the smallest key
+     */
+    public int peekId() {
+        if (size == 0) {
+            throw new NoSuchElementException("Heap is empty");
+        }
+        return heap[0];
+    }
+
+    /**
+     * Gets the smallest key in the heap
+     * @return the smallest key, or Long.MAX_VALUE if the heap is empty
+     */
+    public long peekKey() {
+        return (size == 0) ? Long.MAX_VALUE : keys[heap[0]];
+    }
+
+    public boolean contains(int id) { return positions[id] >= 0; }
+    public long getKey(int id) { return keys[id]; }
+    public boolean isEmpty() { return size == 0; }
+    public int size() { return size; }
+
+    /**
+     * Removes all ids from the heap. Only the ids in the heap are touched, so this is cheap
+     * for a heap that only ever held a few ids.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            positions[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int position) {
+        int id = heap[position];
+        long key = keys[id];
+        while (position > 0) {
+            int parentPosition = (position - 1) >>> 1;
+            int parentId = heap[parentPosition];
+            if (keys[parentId] <= key) {
+                break;
+            }
+            heap[position] = parentId;
+            positions[parentId] = position;
+            position = parentPosition;
+        }
+        heap[position] = id;
+        positions[id] = position;
+    }
+
+    private void siftDown(int position) {
+        int id = heap[position];
+        long key = keys[id];
+        int half = size >>> 1;
+        while (position < half) {
+            int childPosition = 2 * position + 1;
+            int childId = heap[childPosition];
+            int rightPosition = childPosition + 1;
+            if (rightPosition < size && keys[heap[rightPosition]] < keys[childId]) {
+                childPosition = rightPosition;
+                childId = heap[childPosition];
+            }
+            if (key <= keys[childId]) {
+                break;
+            }
+            heap[position] = childId;
+            positions[childId] = position;
+            position = childPosition;
+        }
+        heap[position] = id;
+        positions[id] = position;
+    }
+}
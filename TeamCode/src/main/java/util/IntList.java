@@ -0,0 +1,144 @@
+package util;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints.
+ * Used in place of ArrayList<Integer> or ArrayList<int[]> in code that runs every loop, since
+ * it doesn't box its values and doesn't allocate once it's grown to its working size.
+ * Call {@link #clear()} and reuse the same list instead of making a new one each loop.
+ */
+public class IntList {
+    private int[] values;
+    private int size;
+
+    /**
+     * Create an empty list with a default capacity
+     */
+    public IntList() {
+        this(16);
+    }
+
+    /**
+     * Create an empty list
+     * @param initialCapacity the number of values the list can hold before it needs to grow
+     */
+    public IntList(int initialCapacity) {
+        values = new int[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * Add a value to the end of the list
+     * @param value the value to add
+     */
+    public void add(int value) {
+        ensureCapacity(size + 1);
+        values[size++] = value;
+    }
+
+    /**
+     * Add two values to the end of the list, typically a {row, column} coordinate pair
+     * @param first the first value to add
+     * @param second the second value to add
+     */
+    public void addPair(int first, int second) {
+        ensureCapacity(size + 2);
+        values[size++] = first;
+        values[size++] = second;
+    }
+
+    /**
+     * Add every value from another list to the end of this list
+     * @param other the list to add
+     */
+    public void addAll(@NonNull IntList other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return values[index];
+    }
+
+    public void set(int index, int value) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        values[index] = value;
+    }
+
+    /**
+     * Remove the last value from the list
+     * @return the removed value
+     */
+    public int removeLast() {
+        if (size == 0) {
+            throw new IndexOutOfBoundsException("List is empty");
+        }
+        return values[--size];
+    }
+
+    /**
+     * Reverse the order of the values in the list
+     */
+    public void reverse() {
+        for (int i = 0, j = size - 1; i < j; i++, j--) {
+            int temp = values[i];
+            values[i] = values[j];
+            values[j] = temp;
+        }
+    }
+
+    /**
+     * Determines if the list contains a value
+     * @param value the value to look for
+     * @return true if the value is in the list
+     */
+    public boolean contains(int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all values. The backing array is kept so the list can be reused.
+     */
+    public void clear() { size = 0; }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    /**
+     * Gets a copy of the values in the list
+     * @return an array with the list's values
+     */
+    @NonNull
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Grows the backing array if needed
+     * @param capacity the minimum capacity needed
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
@@ -0,0 +1,136 @@
+package util;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Math on 3x3 matrices stored as double[9] in row major order, for filters that run every loop.
+ *
+ * Everything writes into an output array passed in by the caller, so nothing is allocated.
+ * Unless a method says otherwise, the output can't be the same array as an input.
+ */
+public class SmallMatrix {
+
+    private SmallMatrix() {}
+
+    /**
+     * Sets a matrix to the identity
+     * @param out the matrix to set
+     */
+    public static void setIdentity(@NonNull double[] out) {
+        out[0] = 1; out[1] = 0; out[2] = 0;
+        out[3] = 0; out[4] = 1; out[5] = 0;
+        out[6] = 0; out[7] = 0; out[8] = 1;
+    }
+
+    /**
+     * Sets a matrix to a diagonal matrix
+     * @param out the matrix to set
+     */
+    public static void setDiagonal(@NonNull double[] out, double a, double b, double c) {
+        out[0] = a; out[1] = 0; out[2] = 0;
+        out[3] = 0; out[4] = b; out[5] = 0;
+        out[6] = 0; out[7] = 0; out[8] = c;
+    }
+
+    /**
+     * out = a * b
+     */
+    public static void multiply(@NonNull double[] a, @NonNull double[] b, @NonNull double[] out) {
+        for (int r = 0; r < 3; r++) {
+            double a0 = a[r * 3], a1 = a[r * 3 + 1], a2 = a[r * 3 + 2];
+            out[r * 3] = a0 * b[0] + a1 * b[3] + a2 * b[6];
+            out[r * 3 + 1] = a0 * b[1] + a1 * b[4] + a2 * b[7];
+            out[r * 3 + 2] = a0 * b[2] + a1 * b[5] + a2 * b[8];
+        }
+    }
+
+    /**
+     * out = a * b^T
+     */
+    public static void multiplyTransposed(@NonNull double[] a, @NonNull double[] b, @NonNull double[] out) {
+        for (int r = 0; r < 3; r++) {
+            double a0 = a[r * 3], a1 = a[r * 3 + 1], a2 = a[r * 3 + 2];
+            out[r * 3] = a0 * b[0] + a1 * b[1] + a2 * b[2];
+            out[r * 3 + 1] = a0 * b[3] + a1 * b[4] + a2 * b[5];
+            out[r * 3 + 2] = a0 * b[6] + a1 * b[7] + a2 * b[8];
+        }
+    }
+
+    /**
+     * out = a + b. The output can be one of the inputs.
+     */
+    public static void add(@NonNull double[] a, @NonNull double[] b, @NonNull double[] out) {
+        for (int i = 0; i < 9; i++) {
+            out[i] = a[i] + b[i];
+        }
+    }
+
+    /**
+     * out = a - b. The output can be one of the inputs.
+     */
+    public static void subtract(@NonNull double[] a, @NonNull double[] b, @NonNull double[] out) {
+        for (int i = 0; i < 9; i++) {
+            out[i] = a[i] - b[i];
+        }
+    }
+
+    /**
+     * Inverts a matrix
+     * @param a the matrix to invert
+     * @param out the inverse
+     * @return false if the matrix is singular, in which case the output isn't set
+     */
+    public static boolean invert(@NonNull double[] a, @NonNull double[] out) {
+        double c0 = a[4] * a[8] - a[5] * a[7];
+        double c1 = a[5] * a[6] - a[3] * a[8];
+        double c2 = a[3] * a[7] - a[4] * a[6];
+        double determinant = a[0] * c0 + a[1] * c1 + a[2] * c2;
+        if (determinant == 0 || Double.isNaN(determinant)) {
+            return false;
+        }
+        double inverse = 1 / determinant;
+        out[0] = c0 * inverse;
+        out[1] = (a[2] * a[7] - a[1] * a[8]) * inverse;
+        out[2] = (a[1] * a[5] - a[2] * a[4]) * inverse;
+        out[3] = c1 * inverse;
+        out[4] = (a[0] * a[8] - a[2] * a[6]) * inverse;
+        out[5] = (a[2] * a[3] - a[0] * a[5]) * inverse;
+        out[6] = c2 * inverse;
+        out[7] = (a[1] * a[6] - a[0] * a[7]) * inverse;
+        out[8] = (a[0] * a[4] - a[1] * a[3]) * inverse;
+        return true;
+    }
+
+    /**
+     * out = a * v for a vector of 3
+     */
+    public static void multiplyVector(@NonNull double[] a, @NonNull double[] v, @NonNull double[] out) {
+        double v0 = v[0], v1 = v[1], v2 = v[2];
+        out[0] = a[0] * v0 + a[1] * v1 + a[2] * v2;
+        out[1] = a[3] * v0 + a[4] * v1 + a[5] * v2;
+        out[2] = a[6] * v0 + a[7] * v1 + a[8] * v2;
+    }
+
+    /**
+     * Gets v^T * a * v, like a squared mahalanobis distance when a is an inverse covariance
+     */
+    public static double quadraticForm(@NonNull double[] a, @NonNull double[] v) {
+        double v0 = v[0], v1 = v[1], v2 = v[2];
+        return v0 * (a[0] * v0 + a[1] * v1 + a[2] * v2)
+                + v1 * (a[3] * v0 + a[4] * v1 + a[5] * v2)
+                + v2 * (a[6] * v0 + a[7] * v1 + a[8] * v2);
+    }
+
+    /**
+     * Makes a matrix exactly symmetric by averaging it with its transpose, to stop rounding
+     * errors from building up in a covariance. Changes the matrix in place.
+     */
+    public static void symmetrize(@NonNull double[] a) {
+        double m01 = (a[1] + a[3]) / 2;
+        double m02 = (a[2] + a[6]) / 2;
+        double m12 = (a[5] + a[7]) / 2;
+        a[1] = a[3] = m01;
+        a[2] = a[6] = m02;
+        a[5] = a[7] = m12;
+    }
+}
@@ -0,0 +1,184 @@
+package vision;
+
+/**
+ * Combines the barcode level found in each frame into one answer that can be trusted.
+ *
+ * A single frame can be wrong, like when someone walks past the camera or the lighting makes a
+ * second blob look as big as the shipping element. The voter keeps the last few frames' levels in
+ * a ring buffer, along with how sure each frame was: how big the biggest blob was, as a fraction
+ * of the image, and how much bigger it was than the second biggest. Frames with a small or
+ * ambiguous blob still take up a slot, but don't count as a vote for anything.
+ *
+ * While the buffer is full and enough of it agrees on one level, that level is stable. The buffer
+ * keeps sliding, so the stable level follows the last few frames: the shipping element is placed
+ * after init, and a level found before that has to be voted out by the frames after it.
+ *
+ * Votes come from the pipeline's thread and answers are read from the op mode, so every method
+ * is synchronized.
+ */
+public class BarcodeVoter {
+    public static final int levelCount = 3;
+
+    private final int capacity;
+    private final int[] levels;
+    private final double[] areas;
+    private final double[] separations;
+    private final int[] confidentVotes = new int[levelCount];
+    // the slot the next vote goes in
+    private int next;
+    private int size;
+    private int stableLevel = -1;
+
+    private double minArea;
+    private double minSeparation;
+    private int agreementCount;
+
+    /**
+     * Create a barcode voter
+     * @param capacity the number of frames to keep
+     * @param agreement the fraction of the kept frames that have to confidently agree on a level
+     *                  for it to be stable
+     * @param minArea the smallest biggest blob, as a fraction of the image, that counts as a vote
+     * @param minSeparation the smallest separation between the biggest and second biggest blob
+     *                      that counts as a vote, see {@link #addVote(int, double, double)}
+     */
+    public BarcodeVoter(int capacity, double agreement, double minArea, double minSeparation) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+        }
+        this.capacity = capacity;
+        levels = new int[capacity];
+        areas = new double[capacity];
+        separations = new double[capacity];
+        setThresholds(agreement, minArea, minSeparation);
+    }
+
+    /**
+     * Changes the thresholds, like when they're tuned from the dashboard. Votes already in the
+     * buffer are counted again with the new thresholds.
+     * @param agreement the fraction of the kept frames that have to agree
+     * @param minArea the smallest area that counts as a vote
+     * @param minSeparation the smallest separation that counts as a vote
+     */
+    public synchronized void setThresholds(double agreement, double minArea, double minSeparation) {
+        this.agreementCount = Math.max(1, (int) Math.ceil(agreement * capacity));
+        this.minArea = minArea;
+        this.minSeparation = minSeparation;
+        recount();
+    }
+
+    // region voting
+
+    /**
+     * Adds the level found in a frame, replacing the oldest frame if the buffer is full
+     * @param level the level, from 0 to 2, or -1 if nothing was found
+     * @param area the area of the biggest blob, as a fraction of the image
+     * @param separation how much bigger the biggest blob was than the second biggest, as
+     *                   1 - second / biggest. 1 if there was only one blob.
+     * @return true if the level is stable
+     */
+    public synchronized boolean addVote(int level, double area, double separation) {
+        if (size == capacity) {
+            removeVote(next);
+        } else {
+            size++;
+        }
+        levels[next] = level;
+        areas[next] = area;
+        separations[next] = separation;
+        if (isConfident(next)) {
+            confidentVotes[level]++;
+        }
+        next = (next + 1) % capacity;
+        updateStable();
+        return stableLevel != -1;
+    }
+
+    /**
+     * Clears every vote, so nothing is stable until the buffer fills up again
+     */
+    public synchronized void reset() {
+        next = 0;
+        size = 0;
+        stableLevel = -1;
+        for (int level = 0; level < levelCount; level++) {
+            confidentVotes[level] = 0;
+        }
+    }
+
+    private void removeVote(int slot) {
+        if (isConfident(slot)) {
+            confidentVotes[levels[slot]]--;
+        }
+    }
+
+    private boolean isConfident(int slot) {
+        return levels[slot] >= 0 && levels[slot] < levelCount
+                && areas[slot] >= minArea && separations[slot] >= minSeparation;
+    }
+
+    private void recount() {
+        for (int level = 0; level < levelCount; level++) {
+            confidentVotes[level] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            int slot = (next - size + i + capacity) % capacity;
+            if (isConfident(slot)) {
+                confidentVotes[levels[slot]]++;
+            }
+        }
+        updateStable();
+    }
+
+    private void updateStable() {
+        int leader = getLeadingLevel();
+        if (size == capacity && leader != -1 && confidentVotes[leader] >= agreementCount) {
+            stableLevel = leader;
+        } else {
+            stableLevel = -1;
+        }
+    }
+
+    // endregion voting
+
+    // region answers
+
+    /**
+     * Gets the level with the most confident votes
+     * @return the level, or -1 if there aren't any confident votes
+     */
+    public synchronized int getLeadingLevel() {
+        int leader = -1;
+        for (int level = 0; level < levelCount; level++) {
+            if (confidentVotes[level] > 0 && (leader == -1 || confidentVotes[level] > confidentVotes[leader])) {
+                leader = level;
+            }
+        }
+        return leader;
+    }
+
+    /**
+     * Gets the best answer so far: the stable level if there is one, or else the level with the
+     * most confident votes
+     * @return the level, or -1 if there aren't any confident votes
+     */
+    public synchronized int getBestLevel() {
+        return stableLevel != -1 ? stableLevel : getLeadingLevel();
+    }
+
+    /**
+     * Gets the fraction of the kept frames that confidently voted for a level
+     * @param level the level
+     * @return the fraction, from 0 to 1
+     */
+    public synchronized double getAgreement(int level) {
+        return size == 0 ? 0 : (double) confidentVotes[level] / size;
+    }
+
+    public synchronized boolean isStable() { return stableLevel != -1; }
+    public synchronized int getStableLevel() { return stableLevel; }
+    public synchronized int getVoteCount() { return size; }
+    public int getCapacity() { return capacity; }
+
+    // endregion answers
+}
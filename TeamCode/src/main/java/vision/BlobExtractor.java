@@ -0,0 +1,302 @@
+package vision;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+import annotations.ImageCoordinates;
+
+/**
+ * Finds blobs of connected pixels in a label image or a black and white mask, along with each
+ * blob's area, bounding box and centroid, in one pass over the image.
+ *
+ * A label image has a class for each pixel, with 0 for pixels that aren't anything. Pixels are
+ * only connected to neighbors with the same label, including diagonal neighbors, so blobs of
+ * different classes that touch stay separate.
+ *
+ * Each row is split into runs of pixels with the same label. A run is joined with every run of
+ * the same label touching it in the row above, using a union find over the runs. Once every row
+ * is done, each run's stats are added to the blob at the root of its set. Only runs are touched
+ * after the first pass, so the work beyond reading the image depends on how many runs there are,
+ * not how many pixels.
+ *
+ * Masks go through OpenCV's connectedComponentsWithStats instead, which already gives the stats
+ * of every blob, so they just have to be copied out. Either way, the pipelines get their blobs
+ * straight from the mask instead of going through edges, contours and polygons to get the same
+ * bounding boxes.
+ *
+ * Runs and blobs are kept in primitive arrays that only grow, so once they're big enough for a
+ * typical frame, nothing is allocated.
+ */
+public class BlobExtractor {
+    private static final int startingCapacity = 256;
+
+    // runs, in order of row then column
+    private int runCount;
+    private int[] runRows = new int[startingCapacity];
+    private int[] runStarts = new int[startingCapacity];
+    private int[] runEnds = new int[startingCapacity]; // exclusive
+    private byte[] runLabels = new byte[startingCapacity];
+    private int[] runParents = new int[startingCapacity];
+    private int[] runBlobs = new int[startingCapacity];
+
+    // blobs
+    private int blobCount;
+    private int[] blobLabels = new int[startingCapacity];
+    private int[] areas = new int[startingCapacity];
+    private int[] lefts = new int[startingCapacity];
+    private int[] tops = new int[startingCapacity];
+    private int[] rights = new int[startingCapacity]; // inclusive
+    private int[] bottoms = new int[startingCapacity]; // inclusive
+    // the sums of x and y while extracting, then divided by the area
+    private double[] centroidsX = new double[startingCapacity];
+    private double[] centroidsY = new double[startingCapacity];
+
+    // stats copied out of connectedComponentsWithStats
+    private int[] componentStats = new int[startingCapacity * 5];
+    private double[] componentCentroids = new double[startingCapacity * 2];
+
+    // region extraction
+
+    /**
+     * Finds the blobs in a label image
+     * @param labels the label of each pixel, row by row. 0 means no class.
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param offsetX added to every x coordinate, for images that are a crop of a bigger one
+     * @param offsetY added to every y coordinate
+     */
+    public void extract(@NonNull byte[] labels, int width, int height, int offsetX, int offsetY) {
+        runCount = 0;
+        blobCount = 0;
+
+        // runs in the row above are [previousStart, previousEnd)
+        int previousStart = 0;
+        int previousEnd = 0;
+        for (int row = 0; row < height; row++) {
+            int rowOffset = row * width;
+            int rowStart = runCount;
+            int x = 0;
+            // the run in the row above that the next run could touch, since runs are in order
+            int above = previousStart;
+            while (x < width) {
+                byte label = labels[rowOffset + x];
+                if (label == 0) {
+                    x++;
+                    continue;
+                }
+                int start = x;
+                while (x < width && labels[rowOffset + x] == label) {
+                    x++;
+                }
+                int run = addRun(row, start, x, label);
+
+                // runs above touch this one, including diagonally, if they overlap [start - 1, x + 1)
+                while (above < previousEnd && runEnds[above] < start) {
+                    above++;
+                }
+                for (int i = above; i < previousEnd && runStarts[i] <= x; i++) {
+                    if (runLabels[i] == label) {
+                        union(run, i);
+                    }
+                }
+            }
+            previousStart = rowStart;
+            previousEnd = runCount;
+        }
+
+        // give every set of runs a blob and add up each blob's stats
+        for (int run = 0; run < runCount; run++) {
+            int root = find(run);
+            int blob;
+            if (root == run) {
+                blob = addBlob(runLabels[run]);
+                runBlobs[run] = blob;
+            } else {
+                // roots always come before the runs joined to them, see union
+                blob = runBlobs[root];
+            }
+            int row = runRows[run];
+            int start = runStarts[run];
+            int end = runEnds[run];
+            int length = end - start;
+            areas[blob] += length;
+            lefts[blob] = Math.min(lefts[blob], start);
+            rights[blob] = Math.max(rights[blob], end - 1);
+            tops[blob] = Math.min(tops[blob], row);
+            bottoms[blob] = Math.max(bottoms[blob], row);
+            // sum of start..end-1
+            centroidsX[blob] += (start + end - 1) * length / 2.0;
+            centroidsY[blob] += (double) row * length;
+        }
+
+        for (int blob = 0; blob < blobCount; blob++) {
+            lefts[blob] += offsetX;
+            rights[blob] += offsetX;
+            tops[blob] += offsetY;
+            bottoms[blob] += offsetY;
+            centroidsX[blob] = centroidsX[blob] / areas[blob] + offsetX;
+            centroidsY[blob] = centroidsY[blob] / areas[blob] + offsetY;
+        }
+    }
+
+    /**
+     * Finds the blobs in a black and white mask, like the output of Core.inRange. Every blob
+     * gets label 1.
+     * @param mask the mask, as CV_8UC1. Any pixel that isn't 0 is part of a blob.
+     * @param pool the pool of the pipeline, for OpenCV's outputs
+     */
+    public void extract(@NonNull Mat mask, @NonNull MatPool pool) {
+        runCount = 0;
+        blobCount = 0;
+        Mat labels = pool.get(mask.rows(), mask.cols(), CvType.CV_32SC1);
+        Mat stats = pool.get();
+        Mat centroids = pool.get();
+        int count = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids, 8, CvType.CV_32S);
+        if (componentStats.length < count * 5) {
+            componentStats = new int[count * 10];
+            componentCentroids = new double[count * 4];
+        }
+        stats.get(0, 0, componentStats);
+        centroids.get(0, 0, componentCentroids);
+
+        // component 0 is the background
+        for (int component = 1; component < count; component++) {
+            int blob = addBlob(1);
+            int left = componentStats[component * 5 + Imgproc.CC_STAT_LEFT];
+            int top = componentStats[component * 5 + Imgproc.CC_STAT_TOP];
+            lefts[blob] = left;
+            tops[blob] = top;
+            rights[blob] = left + componentStats[component * 5 + Imgproc.CC_STAT_WIDTH] - 1;
+            bottoms[blob] = top + componentStats[component * 5 + Imgproc.CC_STAT_HEIGHT] - 1;
+            areas[blob] = componentStats[component * 5 + Imgproc.CC_STAT_AREA];
+            centroidsX[blob] = componentCentroids[component * 2];
+            centroidsY[blob] = componentCentroids[component * 2 + 1];
+        }
+    }
+
+    private int addRun(int row, int start, int end, byte label) {
+        if (runCount == runRows.length) {
+            int capacity = runCount * 2;
+            runRows = Arrays.copyOf(runRows, capacity);
+            runStarts = Arrays.copyOf(runStarts, capacity);
+            runEnds = Arrays.copyOf(runEnds, capacity);
+            runLabels = Arrays.copyOf(runLabels, capacity);
+            runParents = Arrays.copyOf(runParents, capacity);
+            runBlobs = Arrays.copyOf(runBlobs, capacity);
+        }
+        runRows[runCount] = row;
+        runStarts[runCount] = start;
+        runEnds[runCount] = end;
+        runLabels[runCount] = label;
+        runParents[runCount] = runCount;
+        return runCount++;
+    }
+
+    private int addBlob(int label) {
+        if (blobCount == areas.length) {
+            int capacity = blobCount * 2;
+            blobLabels = Arrays.copyOf(blobLabels, capacity);
+            areas = Arrays.copyOf(areas, capacity);
+            lefts = Arrays.copyOf(lefts, capacity);
+            tops = Arrays.copyOf(tops, capacity);
+            rights = Arrays.copyOf(rights, capacity);
+            bottoms = Arrays.copyOf(bottoms, capacity);
+            centroidsX = Arrays.copyOf(centroidsX, capacity);
+            centroidsY = Arrays.copyOf(centroidsY, capacity);
+        }
+        blobLabels[blobCount] = label;
+        areas[blobCount] = 0;
+        lefts[blobCount] = Integer.MAX_VALUE;
+        tops[blobCount] = Integer.MAX_VALUE;
+        rights[blobCount] = Integer.MIN_VALUE;
+        bottoms[blobCount] = Integer.MIN_VALUE;
+        centroidsX[blobCount] = 0;
+        centroidsY[blobCount] = 0;
+        return blobCount++;
+    }
+
+    private int find(int run) {
+        int root = run;
+        while (runParents[root] != root) {
+            root = runParents[root];
+        }
+        // point everything on the way straight at the root
+        while (runParents[run] != root) {
+            int next = runParents[run];
+            runParents[run] = root;
+            run = next;
+        }
+        return root;
+    }
+
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        // the earlier run stays the root, so roots are always reached first when adding up stats
+        if (rootA < rootB) {
+            runParents[rootB] = rootA;
+        } else if (rootB < rootA) {
+            runParents[rootA] = rootB;
+        }
+    }
+
+    // endregion extraction
+
+    // region results
+
+    /**
+     * Finds the blob of a class with the biggest area
+     * @param label the class to look for
+     * @return the index of the blob, or -1 if there aren't any blobs of the class
+     */
+    public int findLargest(int label) {
+        int largest = -1;
+        for (int blob = 0; blob < blobCount; blob++) {
+            if (blobLabels[blob] == label && (largest == -1 || areas[blob] > areas[largest])) {
+                largest = blob;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Copies a blob's bounding box into a rect
+     * @param blob the index of the blob
+     * @param rectOut the rect to set
+     */
+    public void getBoundingRect(int blob, @NonNull @ImageCoordinates Rect rectOut) {
+        rectOut.x = lefts[blob];
+        rectOut.y = tops[blob];
+        rectOut.width = getWidth(blob);
+        rectOut.height = getHeight(blob);
+    }
+
+    /**
+     * Gets the area of a blob's bounding box, which is what the pipelines have always compared
+     * against their thresholds
+     * @param blob the index of the blob
+     * @return the area of the box, in pixels
+     */
+    public int getBoxArea(int blob) {
+        return getWidth(blob) * getHeight(blob);
+    }
+
+    public int getBlobCount() { return blobCount; }
+    public int getRunCount() { return runCount; }
+    public int getLabel(int blob) { return blobLabels[blob]; }
+    public int getArea(int blob) { return areas[blob]; }
+    public int getLeft(int blob) { return lefts[blob]; }
+    public int getTop(int blob) { return tops[blob]; }
+    public int getWidth(int blob) { return rights[blob] - lefts[blob] + 1; }
+    public int getHeight(int blob) { return bottoms[blob] - tops[blob] + 1; }
+    public double getCentroidX(int blob) { return centroidsX[blob]; }
+    public double getCentroidY(int blob) { return centroidsY[blob]; }
+
+    // endregion results
+}
@@ -29,17 +29,13 @@ import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.core.Core;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.CvType;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.openftc.easyopencv.OpenCvPipeline;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.opencv.imgproc.Imgproc;
 import org.openftc.easyopencv.OpenCvCamera;
 import org.openftc.easyopencv.OpenCvCameraFactory;
@@ -47,13 +43,18 @@ import org.openftc.easyopencv.OpenCvCameraRotation;
 import org.openftc.easyopencv.OpenCvPipeline;
 import org.openftc.easyopencv.OpenCvWebcam;
 
-public class BlueCVPipeline extends OpenCvPipeline {
+public class BlueCVPipeline extends OpenCvPipeline implements PooledPipeline {
     public boolean viewportPaused;
     private int objLevel = -1;
     private int location;
     private int width;
     private OpenCvCamera webcam;
     private Mat mat;
+    // every intermediate mat, reused between frames
+    private final MatPool pool = new MatPool("blue");
+    // blobs in the mask, from the last frame
+    private final BlobExtractor blobs = new BlobExtractor();
+    private final Rect drawRect = new Rect();
     public int biggestRectCenter;
     public int secondBiggestRectCenter;
 
@@ -93,13 +94,15 @@ public class BlueCVPipeline extends OpenCvPipeline {
          * index from 0 to 2.
          */
 
-        mat = new Mat();
+        pool.beginFrame();
+        mat = pool.get(input.rows(), input.cols(), CvType.CV_8UC3);
 
         Imgproc.cvtColor(input, mat, Imgproc.COLOR_RGB2HSV);
 
         // if something is wrong, we assume there's no skystone
         if (mat.empty()) {
             location = -1;
+            pool.endFrame();
             return input;
         }
 
@@ -111,7 +114,7 @@ public class BlueCVPipeline extends OpenCvPipeline {
         // them
         Scalar lowHSV1 = new Scalar(0, 120, 120); // lower bound HSV #1 for blue
         Scalar highHSV1 = new Scalar(255, 255, 255); // higher bound HSV for blue
-        Mat thresh = new Mat();
+        Mat thresh = pool.get(input.rows(), input.cols(), CvType.CV_8UC1);
 
         // We'll get a black and white image. The white regions represent the regular
         // stones.
@@ -122,27 +125,10 @@ public class BlueCVPipeline extends OpenCvPipeline {
         // Imgproc.GaussianBlur(thresh, thresh, new Size(9, 9), 2, 2); // should smooth
         // out some stuff; if not then it should be caught later
 
-        // Use Canny Edge Detection to find edges
-        // you might have to tune the thresholds for hysteresis
-        Mat edges = new Mat();
-        Imgproc.Canny(thresh, edges, 100, 300);
-
-        // https://docs.opencv.org/3.4/da/d0c/tutorial_bounding_rects_circles.html
-        // Oftentimes the edges are disconnected. findContours connects these edges.
-        // We then find the bounding rectangles of those contours
-        List<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
-        Imgproc.findContours(edges, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-
-        int sz = contours.size();
-        System.out.println("Contours: " + sz);
-        MatOfPoint2f[] contoursPoly = new MatOfPoint2f[sz];
-        Rect[] boundRect = new Rect[sz]; // contains bounding rectangles for each coutour (object in 2d form)
-        for (int i = 0; i < sz; i++) {
-            contoursPoly[i] = new MatOfPoint2f();
-            Imgproc.approxPolyDP(new MatOfPoint2f(contours.get(i).toArray()), contoursPoly[i], 3, true);
-            boundRect[i] = Imgproc.boundingRect(new MatOfPoint(contoursPoly[i].toArray()));
-        }
+        // each blob of white pixels is a shape, with its bounding box and area straight from the mask
+        blobs.extract(thresh, pool);
+
+        int sz = blobs.getBlobCount();
 
         // now what we're planning to do is looking at the relative positions of the
         // contours we've found
@@ -157,15 +143,15 @@ public class BlueCVPipeline extends OpenCvPipeline {
         double thirdBiggestArea = 0;
 
         for (int i = 0; i < sz; i++) {
-            if (boundRect[i].area() >= biggestArea) {
+            if (blobs.getBoxArea(i) >= biggestArea) {
                 thirdBiggestArea = secondBiggestArea;
                 secondBiggestArea = biggestArea;
-                biggestArea = boundRect[i].area();
-            } else if (boundRect[i].area() >= secondBiggestArea) {
+                biggestArea = blobs.getBoxArea(i);
+            } else if (blobs.getBoxArea(i) >= secondBiggestArea) {
                 thirdBiggestArea = secondBiggestArea;
-                secondBiggestArea = boundRect[i].area();
-            } else if (boundRect[i].area() >= thirdBiggestArea) {
-                thirdBiggestArea = boundRect[i].area();
+                secondBiggestArea = blobs.getBoxArea(i);
+            } else if (blobs.getBoxArea(i) >= thirdBiggestArea) {
+                thirdBiggestArea = blobs.getBoxArea(i);
             }
         }
         if (thirdBiggestArea < secondBiggestArea/2) {
@@ -177,19 +163,21 @@ public class BlueCVPipeline extends OpenCvPipeline {
         double imgWidth = input.cols();
         for (int i = 0; i < sz; i++) {
 
-            if ((int) boundRect[i].area() != (int) secondBiggestArea
-                    && (int) boundRect[i].area() != (int) biggestArea
-                    && (int) boundRect[i].area() != (int) thirdBiggestArea) { // incorrectly detected
+            if ((int) blobs.getBoxArea(i) != (int) secondBiggestArea
+                    && (int) blobs.getBoxArea(i) != (int) biggestArea
+                    && (int) blobs.getBoxArea(i) != (int) thirdBiggestArea) { // incorrectly detected
                 continue;
             }
 
-            Imgproc.rectangle(input, boundRect[i], new Scalar(255, 0, 0), 4);
+            blobs.getBoundingRect(i, drawRect);
+
+            Imgproc.rectangle(input, drawRect, new Scalar(255, 0, 0), 4);
 
             // look at center of each bounding rectangle, see which thirds of the picture
             // they should be in
 
             // rectangle is represented in terms of top left point, width, and height
-            int rectCenterX = boundRect[i].x + boundRect[i].width / 2;
+            int rectCenterX = blobs.getLeft(i) + blobs.getWidth(i) / 2;
             if (rectCenterX < imgWidth / 3) { // leftmost third
                 isFirst = 0;
             } else if (rectCenterX >= imgWidth / 3 && rectCenterX <= (2 * imgWidth) / 3) { // middle third
@@ -198,7 +186,7 @@ public class BlueCVPipeline extends OpenCvPipeline {
                 isThird = 0;
             }
 
-            if ((int) boundRect[i].area() == (int) biggestArea) {
+            if ((int) blobs.getBoxArea(i) == (int) biggestArea) {
                 biggestRectCenter = rectCenterX;
             } else {
                 secondBiggestRectCenter = rectCenterX;
@@ -223,10 +211,7 @@ public class BlueCVPipeline extends OpenCvPipeline {
             objLevel = 2;
         }
 
-        mat.release();
-        thresh.release();
-        hierarchy.release();
-        edges.release();
+        pool.endFrame();
 
         /**
          * NOTE: to see how to get data from your pipeline to your OpMode as well as how
@@ -237,6 +222,14 @@ public class BlueCVPipeline extends OpenCvPipeline {
         return input;
     }
 
+    /**
+     * Releases every mat the pipeline holds. Call once the camera has stopped streaming.
+     */
+    @Override
+    public void release() {
+        pool.release();
+    }
+
     @Override
     public void onViewportTapped() {
         /*
@@ -12,6 +12,9 @@ import org.openftc.easyopencv.OpenCvWebcam;
 public class CVManager {
 
     private OpenCvWebcam webcam;
+    private OpenCvPipeline pipeline;
+    private int streamWidth = 1280;
+    private int streamHeight = 720;
 
     /**
      * Initialize the CV manager with the provided hardware map.
@@ -39,11 +42,23 @@ public class CVManager {
         this(hardwareMap, webcamName, false);
     }
 
+    /**
+     * Set the resolution to stream at. Has to be called before the camera is initialized, and
+     * has to be a resolution the camera supports.
+     * @param width the width of the stream
+     * @param height the height of the stream
+     */
+    public void setStreamSize(int width, int height) {
+        streamWidth = width;
+        streamHeight = height;
+    }
+
     /**
      * Initialize the cv manager
      * @param pipeline the pipeline to use
      */
     public void initializeCamera(OpenCvPipeline pipeline) {
+        this.pipeline = pipeline;
         webcam.setPipeline(pipeline);
         webcam.setMillisecondsPermissionTimeout(2500); // Timeout for obtaining permission is configurable. Set before opening.
         webcam.openCameraDeviceAsync(new OpenCvCamera.AsyncCameraOpenListener()
@@ -55,7 +70,7 @@ public class CVManager {
                     Tell the webcam to start streaming at the specified resolution (must be supported by the camera)
                     and at the specified rotation. See original OpenCV comments for more.
                  */
-                webcam.startStreaming(1280, 720, OpenCvCameraRotation.UPRIGHT);
+                webcam.startStreaming(streamWidth, streamHeight, OpenCvCameraRotation.UPRIGHT);
             }
 
             @Override
@@ -69,10 +84,15 @@ public class CVManager {
     }
 
     /**
-     * Stop the current pipeline
+     * Stop the current pipeline. Once the stream stops, the pipeline's mats are released if
+     * it's a {@link PooledPipeline}.
      */
     public void stopPipeline() {
         webcam.stopStreaming();
+        // no more frames come in once stopStreaming returns, so nothing is using the mats
+        if (pipeline instanceof PooledPipeline) {
+            ((PooledPipeline) pipeline).release();
+        }
     }
 
     /**
@@ -0,0 +1,131 @@
+package vision;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Sorts every pixel of a frame into color classes in one pass, and finds the blobs of each class.
+ *
+ * Each class is an HSV range like the ones passed to Core.inRange. Instead of converting to HSV
+ * and thresholding once per class, the frame is converted to HSV once and every pixel is checked
+ * against every class at once: a table for each channel gives a bit for each class whose range
+ * has that channel value, and a pixel is in a class if its bit is set in all 3 tables. The pixel
+ * gets the label of the first class it's in, or 0 if it isn't in any, and the label image then
+ * goes through a {@link BlobExtractor} to get the blobs of every class in one more pass.
+ *
+ * Up to 8 classes are supported, since the class bits are kept in a byte. Hue ranges can wrap,
+ * so a range from 170 to 10 covers the reds on both ends.
+ */
+public class ColorSegmenter {
+    public static final int maxClasses = 8;
+
+    private final MatPool pool;
+    private final BlobExtractor blobExtractor = new BlobExtractor();
+    // bit n of each entry is set if class n + 1 includes that channel value
+    private final byte[] hueBits = new byte[256];
+    private final byte[] saturationBits = new byte[256];
+    private final byte[] valueBits = new byte[256];
+    // the label of the lowest class in each combination of bits
+    private final byte[] firstLabels = new byte[256];
+    private int classCount;
+
+    private byte[] hsvPixels = new byte[0];
+    private byte[] labels = new byte[0];
+    private int width;
+    private int height;
+
+    /**
+     * Create a color segmenter
+     * @param pool the pool of the pipeline using the segmenter, for the HSV buffer
+     */
+    public ColorSegmenter(@NonNull MatPool pool) {
+        this.pool = pool;
+        for (int bits = 1; bits < 256; bits++) {
+            firstLabels[bits] = (byte) (Integer.numberOfTrailingZeros(bits) + 1);
+        }
+    }
+
+    /**
+     * Adds a color class. Pixels in more than one class get the one added first.
+     * @param low the lowest HSV values in the class, like for Core.inRange. A hue higher than
+     *            the high hue wraps around.
+     * @param high the highest HSV values in the class
+     * @return the label pixels in the class get, starting from 1
+     */
+    public int addClass(@NonNull Scalar low, @NonNull Scalar high) {
+        if (classCount == maxClasses) {
+            throw new IllegalStateException("Can't have more than " + maxClasses + " classes");
+        }
+        int bit = 1 << classCount;
+        setBits(hueBits, (int) low.val[0], (int) high.val[0], bit, true);
+        setBits(saturationBits, (int) low.val[1], (int) high.val[1], bit, false);
+        setBits(valueBits, (int) low.val[2], (int) high.val[2], bit, false);
+        return ++classCount;
+    }
+
+    private static void setBits(byte[] table, int low, int high, int bit, boolean wraps) {
+        low = Math.max(low, 0);
+        high = Math.min(high, 255);
+        for (int value = 0; value < 256; value++) {
+            boolean inRange = low <= high
+                    ? value >= low && value <= high
+                    : wraps && (value >= low || value <= high);
+            if (inRange) {
+                table[value] |= bit;
+            }
+        }
+    }
+
+    /**
+     * Labels every pixel in a frame and finds the blobs of each class
+     * @param rgb the frame or part of a frame, in RGB or RGBA
+     * @param offsetX the x of the region in the full frame, so blob coordinates are in the frame
+     * @param offsetY the y of the region in the full frame
+     */
+    public void segment(@NonNull Mat rgb, int offsetX, int offsetY) {
+        width = rgb.cols();
+        height = rgb.rows();
+        int pixelCount = width * height;
+        if (labels.length < pixelCount) {
+            labels = new byte[pixelCount];
+            hsvPixels = new byte[pixelCount * 3];
+        }
+
+        Mat hsv = pool.get(height, width, CvType.CV_8UC3);
+        Imgproc.cvtColor(rgb, hsv, Imgproc.COLOR_RGB2HSV);
+        hsv.get(0, 0, hsvPixels);
+
+        for (int i = 0, j = 0; i < pixelCount; i++, j += 3) {
+            int bits = hueBits[hsvPixels[j] & 0xff]
+                    & saturationBits[hsvPixels[j + 1] & 0xff]
+                    & valueBits[hsvPixels[j + 2] & 0xff];
+            labels[i] = firstLabels[bits & 0xff];
+        }
+        blobExtractor.extract(labels, width, height, offsetX, offsetY);
+    }
+
+    /**
+     * Copies the last label image into a mat, for showing what was classified
+     * @param labelsOut the mat to copy into, as CV_8UC1. Labels are small numbers, so scale it
+     *                  before displaying.
+     */
+    public void getLabelImage(@NonNull Mat labelsOut) {
+        labelsOut.create(height, width, CvType.CV_8UC1);
+        labelsOut.put(0, 0, labels);
+    }
+
+    /**
+     * Gets the blobs from the last segment
+     * @return the blob extractor holding the blobs. Reused by the next segment.
+     */
+    @NonNull
+    public BlobExtractor getBlobs() {
+        return blobExtractor;
+    }
+
+    public int getClassCount() { return classCount; }
+}
@@ -0,0 +1,34 @@
+package vision;
+
+import androidx.annotation.NonNull;
+
+import annotations.ImageCoordinates;
+
+/**
+ * The bounding boxes a pipeline found in one frame, along with when the frame was captured.
+ *
+ * The boxes and the time are published together, so a reader on another thread always gets a
+ * time that goes with its boxes. Frames never change once made, so they can be handed between
+ * threads.
+ */
+public final class DetectionFrame {
+    // estimated System.nanoTime() the frame was captured at: when it reached the pipeline, minus
+    // CoordinateUtils.cameraLatency. the same clock as vuforia's poses in a pose history
+    public final long timestamp;
+    // every box as {x, y, width, height}, in full frame pixels. shouldn't be modified
+    @ImageCoordinates
+    public final int[] boxes;
+
+    /**
+     * Create a detection frame
+     * @param timestamp the estimated System.nanoTime() the frame was captured at
+     * @param boxes the boxes as {x, y, width, height} for each box. Not copied, so it shouldn't
+     *              be modified after.
+     */
+    public DetectionFrame(long timestamp, @NonNull @ImageCoordinates int[] boxes) {
+        this.timestamp = timestamp;
+        this.boxes = boxes;
+    }
+
+    public int getBoxCount() { return boxes.length / 4; }
+}
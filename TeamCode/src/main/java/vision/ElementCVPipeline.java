@@ -21,6 +21,9 @@
 
 package vision;
 
+import androidx.annotation.NonNull;
+
+import com.acmerobotics.dashboard.config.Config;
 import com.qualcomm.robotcore.eventloop.opmode.LinearOpMode;
 import com.qualcomm.robotcore.eventloop.opmode.TeleOp;
 
@@ -29,16 +32,14 @@ import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.core.Core;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.CvType;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.openftc.easyopencv.OpenCvPipeline;
 
-import java.util.ArrayList;
-import java.util.List;
+import localization.CoordinateUtils;
 
 import org.opencv.imgproc.Imgproc;
 import org.openftc.easyopencv.OpenCvCamera;
@@ -47,12 +48,45 @@ import org.openftc.easyopencv.OpenCvCameraRotation;
 import org.openftc.easyopencv.OpenCvPipeline;
 import org.openftc.easyopencv.OpenCvWebcam;
 
-public class ElementCVPipeline extends OpenCvPipeline {
+@Config
+public class ElementCVPipeline extends OpenCvPipeline implements PooledPipeline {
+    // the frame is cropped to the region and shrunk to the working size before it's processed.
+    // the region is in fractions of the frame, and the working size is what the whole frame
+    // would be shrunk to
+    public static boolean USE_WORKING_REGION = true;
+    public static int WORKING_WIDTH = 320;
+    public static int WORKING_HEIGHT = 180;
+    public static double REGION_LEFT = 0;
+    public static double REGION_TOP = 0;
+    public static double REGION_RIGHT = 1;
+    public static double REGION_BOTTOM = 1;
+    // every frame's level is voted on, see BarcodeVoter. the number of frames is only read when
+    // the pipeline is made. after startThrottling, only one of every STABLE_FRAME_INTERVAL
+    // frames is processed while the vote is stable
+    public static int VOTE_FRAMES = 15;
+    public static double VOTE_AGREEMENT = 0.8;
+    public static double MIN_VOTE_AREA = 0.002;
+    public static double MIN_VOTE_SEPARATION = 0.3;
+    public static int STABLE_FRAME_INTERVAL = 5;
+
     public boolean viewportPaused;
     private int objLevel = -1;
     private OpenCvCamera webcam;
     private Mat mat;
+    // every intermediate mat, reused between frames
+    private final MatPool pool = new MatPool("element");
+    // blobs in the mask, from the last frame
+    private final BlobExtractor blobs = new BlobExtractor();
+    private final Rect drawRect = new Rect();
+    private final WorkingRegion workingRegion = new WorkingRegion(pool);
+    private final BarcodeVoter voter = new BarcodeVoter(VOTE_FRAMES, VOTE_AGREEMENT, MIN_VOTE_AREA, MIN_VOTE_SEPARATION);
+    private int skippedFrames;
+    private volatile boolean throttling;
     public int biggestRectCenter;
+    // every bounding box from the last frame and when the frame was captured, for projecting
+    // onto the field with a GroundPlaneProjector. replaced as a whole each frame, so it's safe to
+    // read from the loop
+    private volatile DetectionFrame detections = new DetectionFrame(0, new int[0]);
 
     public ElementCVPipeline(OpenCvCamera webcam) {
         this.webcam = webcam;
@@ -70,6 +104,17 @@ public class ElementCVPipeline extends OpenCvPipeline {
 
     @Override
     public Mat processFrame(Mat input) {
+        // the frame was captured a bit before it got here, see CoordinateUtils.cameraLatency
+        long frameTime = System.nanoTime() - CoordinateUtils.cameraLatency;
+        // once the match has started and the vote is stable there's no need to look at every
+        // frame, which leaves more of the cpu and usb bandwidth for the other camera. the frames
+        // that are still processed keep voting, so a change still gets noticed
+        if (throttling && voter.isStable() && STABLE_FRAME_INTERVAL > 1) {
+            if (++skippedFrames < STABLE_FRAME_INTERVAL) {
+                return input;
+            }
+            skippedFrames = 0;
+        }
         /*
          * IMPORTANT NOTE: the input Mat that is passed in as a parameter to this method
          * will only dereference to the same image for the duration of this particular
@@ -90,9 +135,17 @@ public class ElementCVPipeline extends OpenCvPipeline {
          * index from 0 to 2.
          */
 
-        mat = new Mat();
+        pool.beginFrame();
+        Mat working;
+        if (USE_WORKING_REGION) {
+            working = workingRegion.prepare(input, REGION_LEFT, REGION_TOP, REGION_RIGHT, REGION_BOTTOM,
+                    WORKING_WIDTH, WORKING_HEIGHT);
+        } else {
+            working = workingRegion.prepare(input, 0, 0, 1, 1, input.cols(), input.rows());
+        }
+        mat = pool.get(working.rows(), working.cols(), CvType.CV_8UC3);
 
-        Imgproc.cvtColor(input, mat, Imgproc.COLOR_RGB2HSV);
+        Imgproc.cvtColor(working, mat, Imgproc.COLOR_RGB2HSV);
 
         // We create a HSV range for yellow to detect regular stones
         // NOTE: In OpenCV's implementation,
@@ -106,7 +159,7 @@ public class ElementCVPipeline extends OpenCvPipeline {
 
         Scalar lowHSV1 = new Scalar(70, 140, 100); // lower bound HSV #1 for team shipping element
         Scalar highHSV1 = new Scalar(140, 230, 210); // higher bound HSV for team shipping element
-        Mat thresh = new Mat();
+        Mat thresh = pool.get(working.rows(), working.cols(), CvType.CV_8UC1);
 
         // We'll get a black and white image. The white regions represent the regular
         // stones.
@@ -117,45 +170,44 @@ public class ElementCVPipeline extends OpenCvPipeline {
         // Imgproc.GaussianBlur(thresh, thresh, new Size(9, 9), 2, 2); // should smooth
         // out some stuff; if not then it should be caught later
 
-        // Use Canny Edge Detection to find edges
-        // you might have to tune the thresholds for hysteresis
-        Mat edges = new Mat();
-        Imgproc.Canny(thresh, edges, 100, 300);
-
-        // https://docs.opencv.org/3.4/da/d0c/tutorial_bounding_rects_circles.html
-        // Oftentimes the edges are disconnected. findContours connects these edges.
-        // We then find the bounding rectangles of those contours
-        List<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
-        Imgproc.findContours(edges, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-
-        int sz = contours.size();
-        System.out.println("Contours: " + sz);
-        MatOfPoint2f[] contoursPoly = new MatOfPoint2f[sz];
-        Rect[] boundRect = new Rect[sz]; // contains bounding rectangles for each coutour (object in 2d form)
+        // each blob of white pixels is a shape, with its bounding box and area straight from the mask
+        blobs.extract(thresh, pool);
+
+        int sz = blobs.getBlobCount();
+
+        // blobs are in the working image, so boxes are mapped back to the full frame
+        int[] boxes = new int[sz * 4];
         for (int i = 0; i < sz; i++) {
-            contoursPoly[i] = new MatOfPoint2f();
-            Imgproc.approxPolyDP(new MatOfPoint2f(contours.get(i).toArray()), contoursPoly[i], 3, true);
-            boundRect[i] = Imgproc.boundingRect(new MatOfPoint(contoursPoly[i].toArray()));
+            workingRegion.toFrameRect(blobs, i, drawRect);
+            boxes[i * 4] = drawRect.x;
+            boxes[i * 4 + 1] = drawRect.y;
+            boxes[i * 4 + 2] = drawRect.width;
+            boxes[i * 4 + 3] = drawRect.height;
         }
+        detections = new DetectionFrame(frameTime, boxes);
 
         // just look at which third the shipping element is in
 
         double biggestArea = 0;
+        double secondBiggestArea = 0;
         for (int i = 0; i < sz; i++) {
-            if (boundRect[i].area() >= biggestArea) {
-                biggestArea = boundRect[i].area();
+            if (blobs.getBoxArea(i) >= biggestArea) {
+                secondBiggestArea = biggestArea;
+                biggestArea = blobs.getBoxArea(i);
+            } else if (blobs.getBoxArea(i) >= secondBiggestArea) {
+                secondBiggestArea = blobs.getBoxArea(i);
             }
         }
         double imgWidth = input.cols();
         for (int i = 0; i < sz; i++) {
-            if ((int) boundRect[i].area() == (int) biggestArea) { // incorrectly detected
-                Imgproc.rectangle(input, boundRect[i], new Scalar(255, 0, 0), 4);
+            if ((int) blobs.getBoxArea(i) == (int) biggestArea) { // incorrectly detected
+                workingRegion.toFrameRect(blobs, i, drawRect);
+                Imgproc.rectangle(input, drawRect, new Scalar(255, 0, 0), 4);
 
                 // look at center of bounding rectangle, see which third of the picture
 
                 // rectangle is represented in terms of top left point, width, and height
-                int rectCenterX = boundRect[i].x + boundRect[i].width / 2;
+                int rectCenterX = drawRect.x + drawRect.width / 2;
                 if (rectCenterX < imgWidth / 3) { // leftmost third
                     objLevel = 0;
                 } else if (rectCenterX >= imgWidth / 3 && rectCenterX <= (2 * imgWidth) / 3) { // middle third
@@ -168,14 +220,21 @@ public class ElementCVPipeline extends OpenCvPipeline {
             }
         }
 
-        double[] values = mat.get(input.rows()/2, input.cols()/2);
+        // vote with how big the biggest box was and how far ahead of the next one it was,
+        // so frames with nothing clear in them don't count
+        voter.setThresholds(VOTE_AGREEMENT, MIN_VOTE_AREA, MIN_VOTE_SEPARATION);
+        if (sz > 0) {
+            voter.addVote(objLevel, biggestArea / (working.rows() * working.cols()),
+                    1 - secondBiggestArea / biggestArea);
+        } else {
+            voter.addVote(-1, 0, 0);
+        }
+
+        double[] values = mat.get(mat.rows()/2, mat.cols()/2);
         System.out.println("HSV: " + values[0] + ", " + values[1]+ ", " + values[2]);
         System.out.println("Object Level: " + getObjLevel());
 
-        mat.release();
-        thresh.release();
-        hierarchy.release();
-        edges.release();
+        pool.endFrame();
 
         /**
          * NOTE: to see how to get data from your pipeline to your OpMode as well as how
@@ -186,6 +245,15 @@ public class ElementCVPipeline extends OpenCvPipeline {
         return input;
     }
 
+    /**
+     * Releases every mat the pipeline holds. Call once the camera has stopped streaming.
+     */
+    @Override
+    public void release() {
+        workingRegion.releaseCrop();
+        pool.release();
+    }
+
     @Override
     public void onViewportTapped() {
         /*
@@ -216,4 +284,53 @@ public class ElementCVPipeline extends OpenCvPipeline {
         // return objLevel;
         return objLevel;
     }
+
+    /**
+     * Gets the level voted on over the last few frames, see {@link BarcodeVoter}. This is the
+     * stable level if there is one, or else the level with the most votes so far.
+     * @return the level from 0 to 2. Falls back to the last frame's level if no frame was
+     *         confident yet.
+     */
+    public int getVotedObjLevel() {
+        int level = voter.getBestLevel();
+        return level != -1 ? level : objLevel;
+    }
+
+    /**
+     * Checks whether enough frames agreed on a level to trust it
+     * @return true if the voted level is stable
+     */
+    public boolean isObjLevelStable() {
+        return voter.isStable();
+    }
+
+    /**
+     * Clears the votes, like when the robot was moved in init
+     */
+    public void resetVotes() {
+        voter.reset();
+    }
+
+    /**
+     * Lets the pipeline skip frames while the vote is stable, see STABLE_FRAME_INTERVAL. Only call
+     * after waitForStart, since the shipping element isn't placed until after init.
+     * The autos stop the stream as soon as they've read the level, so this is for op modes that
+     * keep the barcode stream running after the start.
+     */
+    public void startThrottling() {
+        throttling = true;
+    }
+
+    public BarcodeVoter getVoter() {
+        return voter;
+    }
+
+    /**
+     * Gets the bounding boxes found in the last frame, along with when that frame came in
+     * @return the last frame's detections
+     */
+    @NonNull
+    public DetectionFrame getDetections() {
+        return detections;
+    }
 }
\ No newline at end of file
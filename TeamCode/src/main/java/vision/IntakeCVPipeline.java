@@ -28,18 +28,12 @@ import org.firstinspires.ftc.robotcore.external.hardware.camera.WebcamName;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
-import org.opencv.core.Core;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.openftc.easyopencv.OpenCvPipeline;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.opencv.imgproc.Imgproc;
 import org.openftc.easyopencv.OpenCvCamera;
 import org.openftc.easyopencv.OpenCvCameraFactory;
@@ -47,13 +41,31 @@ import org.openftc.easyopencv.OpenCvCameraRotation;
 import org.openftc.easyopencv.OpenCvPipeline;
 import org.openftc.easyopencv.OpenCvWebcam;
 
-public class IntakeCVPipeline extends OpenCvPipeline {
+public class IntakeCVPipeline extends OpenCvPipeline implements PooledPipeline {
     public boolean viewportPaused;
     private OpenCvCamera webcam;
-    private Mat matBlockBucket;
-    private Mat matBallBucket;
-    private Mat matBallGap;
-    private Mat matBlockGap;
+    // every intermediate mat, reused between frames
+    private final MatPool pool = new MatPool("intake");
+    private final ColorSegmenter segmenter = new ColorSegmenter(pool);
+    private final int blockLabel;
+    private final int ballLabel;
+    private final Rect biggestRectBlock = new Rect();
+    private final Rect biggestRectBall = new Rect();
+    private final Rect biggestRectBlockGap = new Rect();
+    private final Rect biggestRectBallGap = new Rect();
+    // views into the input, kept until the next frame since the gap is what gets displayed
+    private Mat bucket;
+    private Mat gap;
+
+    // We create a HSV range for yellow to detect regular stones
+    // NOTE: In OpenCV's implementation,
+    // Hue values are half the real value
+    //Cube Color Values
+    private static final Scalar lowHSVBlock = new Scalar(10, 70, 200);
+    private static final Scalar highHSVBlock = new Scalar(40, 150, 255);
+    private static final Scalar lowHSVBall = new Scalar(55, 0, 240); // lower bound HSV #1 for team shipping element
+    private static final Scalar highHSVBall = new Scalar(70, 5,  255);
+    private static final Scalar boxColor = new Scalar(255, 0, 0);
     private boolean blockExists = false;
     private boolean ballExists = false;
     private boolean freightInGap = false;
@@ -61,6 +73,8 @@ public class IntakeCVPipeline extends OpenCvPipeline {
 
     public IntakeCVPipeline(OpenCvCamera webcam) {
         this.webcam = webcam;
+        blockLabel = segmenter.addClass(lowHSVBlock, highHSVBlock);
+        ballLabel = segmenter.addClass(lowHSVBall, highHSVBall);
     }
 
     /*
@@ -94,181 +108,37 @@ public class IntakeCVPipeline extends OpenCvPipeline {
          * we'll just return the location of the shipping element in the form of an
          * index from 0 to 2.
          */
-        int x = input.rows()/3;
         int y = input.cols()/3;
 
-        Mat bucket = input.submat(0, input.rows() - 1, y , input.cols() - 1);
-        Mat gap = input.submat(0, input.rows() - 1, 0, y - 1);
-        matBlockBucket = new Mat();
-        matBallBucket = new Mat();
-        matBlockGap = new Mat();
-        matBallGap = new Mat();
-
-        Imgproc.cvtColor(bucket, matBlockBucket, Imgproc.COLOR_RGB2HSV);
-        Imgproc.cvtColor(bucket, matBallBucket, Imgproc.COLOR_RGB2HSV);
-        Imgproc.cvtColor(gap, matBallGap, Imgproc.COLOR_RGB2HSV);
-        Imgproc.cvtColor(gap, matBlockGap, Imgproc.COLOR_RGB2HSV);
-
-        // We create a HSV range for yellow to detect regular stones
-        // NOTE: In OpenCV's implementation,
-        // Hue values are half the real value
-
-        // red hsvs wrap around from 170 to 10 so we need to create 2 and kinda merge
-        // them
-        Scalar lowHSVBlock;
-        Scalar highHSVBlock;
-        Scalar lowHSVBall;
-        Scalar highHSVBall;
-
-        //Cube Color Values
-        lowHSVBlock = new Scalar(10, 70, 200);
-        highHSVBlock = new Scalar(40, 150, 255);
-        lowHSVBall = new Scalar(55, 0, 240); // lower bound HSV #1 for team shipping element
-        highHSVBall= new Scalar(70, 5,  255);
-        Mat threshBlock = new Mat();
-        Mat threshBall = new Mat();
-        Mat threshBlockGap = new Mat();
-        Mat threshBallGap = new Mat();
-
-        // We'll get a black and white image. The white regions represent the regular
-        // stones.
-        // inRange(): thresh[i][j] = {255,255,255} if mat[i][i] is within the range
-        Core.inRange(matBlockBucket, lowHSVBlock, highHSVBlock, threshBlock); // goes through image, filters out color based on low&high hsv's
-        Core.inRange(matBallBucket, lowHSVBall, highHSVBall, threshBall);
-        Core.inRange(matBlockGap, lowHSVBlock, highHSVBlock, threshBlockGap); // goes through image, filters out color based on low&high hsv's
-        Core.inRange(matBallGap, lowHSVBall, highHSVBall, threshBallGap);
-
-        // Core.addWeighted(thresh2, 1, thresh1, 1, 0, thresh);
-        // Imgproc.GaussianBlur(thresh, thresh, new Size(9, 9), 2, 2); // should smooth
-        // out some stuff; if not then it should be caught later
-
-        // Use Canny Edge Detection to find edges
-        // you might have to tune the thresholds for hysteresis
-        Mat edgesBlock = new Mat();
-        Mat edgesBall = new Mat();
-        Mat edgesBlockGap = new Mat();
-        Mat edgesBallGap = new Mat();
-        Imgproc.Canny(threshBlock, edgesBlock, 100, 300);
-        Imgproc.Canny(threshBall, edgesBall, 100, 300);
-        Imgproc.Canny(threshBlockGap, edgesBlockGap, 100, 300);
-        Imgproc.Canny(threshBallGap, edgesBallGap, 100, 300);
-
-        // https://docs.opencv.org/3.4/da/d0c/tutorial_bounding_rects_circles.html
-        // Oftentimes the edges are disconnected. findContours connects these edges.
-        // We then find the bounding rectangles of those contours
-        List<MatOfPoint> contoursBlock = new ArrayList<>();
-        Mat hierarchyBlock = new Mat();
-        Imgproc.findContours(edgesBlock, contoursBlock, hierarchyBlock, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-
-        List<MatOfPoint> contoursBall = new ArrayList<>();
-        Mat hierarchyBall = new Mat();
-        Imgproc.findContours(edgesBall, contoursBall, hierarchyBall, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-
-        List<MatOfPoint> contoursBlockGap = new ArrayList<>();
-        Mat hierarchyBlockGap = new Mat();
-        Imgproc.findContours(edgesBlockGap, contoursBlockGap, hierarchyBlockGap, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-
-        List<MatOfPoint> contoursBallGap = new ArrayList<>();
-        Mat hierarchyBallGap = new Mat();
-        Imgproc.findContours(edgesBallGap, contoursBallGap, hierarchyBallGap, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-
-
-        int sz = contoursBlock.size();
-        MatOfPoint2f[] contoursPolyBlock = new MatOfPoint2f[sz];
-        Rect[] boundRectBlock = new Rect[sz]; // contains bounding rectangles for each coutour (object in 2d form)
-        for (int i = 0; i < sz; i++) {
-            contoursPolyBlock[i] = new MatOfPoint2f();
-            Imgproc.approxPolyDP(new MatOfPoint2f(contoursBlock.get(i).toArray()), contoursPolyBlock[i], 3, true);
-            boundRectBlock[i] = Imgproc.boundingRect(new MatOfPoint(contoursPolyBlock[i].toArray()));
-        }
-
-
-        int sz2 = contoursBall.size();
-        MatOfPoint2f[] contoursPolyBall = new MatOfPoint2f[sz2];
-        Rect[] boundRectBall = new Rect[sz2]; // contains bounding rectangles for each coutour (object in 2d form)
-        for (int i = 0; i < sz2; i++) {
-            contoursPolyBall[i] = new MatOfPoint2f();
-            Imgproc.approxPolyDP(new MatOfPoint2f(contoursBall.get(i).toArray()), contoursPolyBall[i], 3, true);
-            boundRectBall[i] = Imgproc.boundingRect(new MatOfPoint(contoursPolyBall[i].toArray()));
-        }
-
-        int sz3 = contoursBlockGap.size();
-        MatOfPoint2f[] contoursPolyBlockGap = new MatOfPoint2f[sz3];
-        Rect[] boundRectBlockGap = new Rect[sz3]; // contains bounding rectangles for each coutour (object in 2d form)
-        for (int i = 0; i < sz3; i++) {
-            contoursPolyBlockGap[i] = new MatOfPoint2f();
-            Imgproc.approxPolyDP(new MatOfPoint2f(contoursBlockGap.get(i).toArray()), contoursPolyBlockGap[i], 3, true);
-            boundRectBlockGap[i] = Imgproc.boundingRect(new MatOfPoint(contoursPolyBlockGap[i].toArray()));
-        }
-
-
-        int sz4 = contoursBallGap.size();
-        MatOfPoint2f[] contoursPolyBallGap = new MatOfPoint2f[sz4];
-        Rect[] boundRectBallGap = new Rect[sz4]; // contains bounding rectangles for each coutour (object in 2d form)
-        for (int i = 0; i < sz4; i++) {
-            contoursPolyBallGap[i] = new MatOfPoint2f();
-            Imgproc.approxPolyDP(new MatOfPoint2f(contoursBallGap.get(i).toArray()), contoursPolyBallGap[i], 3, true);
-            boundRectBallGap[i] = Imgproc.boundingRect(new MatOfPoint(contoursPolyBallGap[i].toArray()));
-        }
-        // just look at which third the shipping element is in
-        double biggestAreaBlock = 0;
-        Rect biggestRectBlock = new Rect();
-        for (int i = 0; i < sz; i++) {
-            if (boundRectBlock[i].area() >= biggestAreaBlock) {
-                biggestAreaBlock = boundRectBlock[i].area();
-                biggestRectBlock = boundRectBlock[i];
-            }
-        }
-
-
-
-        double biggestAreaBall = 0;
-        Rect biggestRectBall = new Rect();
-        for (int i = 0; i < sz2; i++) {
-            if (boundRectBall[i].area() >= biggestAreaBall) {
-                biggestAreaBall = boundRectBall[i].area();
-                biggestRectBall = boundRectBall[i];
-            }
-        }
-
-
-        double biggestAreaBlockGap = 0;
-        Rect biggestRectBlockGap = new Rect();
-        for (int i = 0; i < sz3; i++) {
-            if (boundRectBlockGap[i].area() >= biggestAreaBlockGap) {
-                biggestAreaBlockGap = boundRectBlockGap[i].area();
-                biggestRectBlockGap = boundRectBlockGap[i];
-            }
-        }
-
-
-
-        double biggestAreaBallGap = 0;
-        Rect biggestRectBallGap = new Rect();
-        for (int i = 0; i < sz4; i++) {
-            if (boundRectBallGap[i].area() >= biggestAreaBallGap) {
-                biggestAreaBallGap = boundRectBallGap[i].area();
-                biggestRectBallGap = boundRectBallGap[i];
-            }
-        }
-
+        pool.beginFrame();
+        // the submats from last frame are done being displayed by now
+        releaseRegions();
+        bucket = input.submat(0, input.rows() - 1, y , input.cols() - 1);
+        gap = input.submat(0, input.rows() - 1, 0, y - 1);
+        // one HSV conversion and one labeling pass per region covers both colors
+        segmenter.segment(bucket, 0, 0);
+        double biggestAreaBlock = findBiggestRect(blockLabel, biggestRectBlock);
+        double biggestAreaBall = findBiggestRect(ballLabel, biggestRectBall);
+        segmenter.segment(gap, 0, 0);
+        double biggestAreaBlockGap = findBiggestRect(blockLabel, biggestRectBlockGap);
+        double biggestAreaBallGap = findBiggestRect(ballLabel, biggestRectBallGap);
 
         blockExists = (biggestAreaBlock >= 17000);
         ballExists = biggestAreaBall >= 17000;
         freightInGap = (biggestAreaBlockGap >=10000) || (biggestAreaBallGap >= 10000);
         if(ballExists){
-            Imgproc.rectangle(bucket, biggestRectBall, new Scalar(255, 0, 0), 4);
+            Imgproc.rectangle(bucket, biggestRectBall, boxColor, 4);
             frameCount++;
         }
 
         if(blockExists){
-            Imgproc.rectangle(bucket, biggestRectBlock, new Scalar(255, 0, 0), 4);
+            Imgproc.rectangle(bucket, biggestRectBlock, boxColor, 4);
             frameCount++;
         }
 
         if(freightInGap){
-            Imgproc.rectangle(gap, biggestRectBlockGap, new Scalar(255, 0, 0), 4);
-            Imgproc.rectangle(gap, biggestRectBallGap, new Scalar(255, 0, 0), 4);
+            Imgproc.rectangle(gap, biggestRectBlockGap, boxColor, 4);
+            Imgproc.rectangle(gap, biggestRectBallGap, boxColor, 4);
             frameCount++;
         }
 
@@ -276,35 +146,7 @@ public class IntakeCVPipeline extends OpenCvPipeline {
             frameCount = 0;
         }
 
-
-
-//        double[] values = mat.get(input.rows()/2, input.cols()/2);
-//        System.out.println("HSV: " + values[0] + ", " + values[1]+ ", " + values[2]);
-        // should be at least 200x200 pixels
-//        double[] values = matBlock.get(input.rows()/2, input.cols()/2);
-//        System.out.println("Block HSV: " + values[0] + ", " + values[1]+ ", " + values[2]);
-//
-//        double[] values2 = matBall.get(input.rows()/2, input.cols()/2);
-//        System.out.println("Block HSV: " + values2[0] + ", " + values2[1]+ ", " + values2[2]);
-
-
-        matBlockBucket.release();
-        matBlockGap.release();
-        threshBlock.release();
-        hierarchyBlock.release();
-        edgesBlockGap.release();
-        threshBlockGap.release();
-        hierarchyBlockGap.release();
-        edgesBlockGap.release();
-
-        matBallBucket.release();
-        matBallGap.release();
-        threshBall.release();
-        hierarchyBall.release();
-        edgesBall.release();
-        threshBallGap.release();
-        hierarchyBallGap.release();
-        edgesBallGap.release();
+        pool.endFrame();
 
         /**
          * NOTE: to see how to get data from your pipeline to your OpMode as well as how
@@ -315,6 +157,44 @@ public class IntakeCVPipeline extends OpenCvPipeline {
         return gap;
     }
 
+    /**
+     * Finds the biggest bounding box of a color in the last region segmented
+     * @param label the label of the color
+     * @param biggestRect set to the biggest box in the region's coordinates, or an empty box if
+     *                    there aren't any
+     * @return the area of the biggest box
+     */
+    private double findBiggestRect(int label, Rect biggestRect) {
+        BlobExtractor blobs = segmenter.getBlobs();
+        biggestRect.x = biggestRect.y = biggestRect.width = biggestRect.height = 0;
+        double biggestArea = 0;
+        for (int i = 0; i < blobs.getBlobCount(); i++) {
+            if (blobs.getLabel(i) == label && blobs.getBoxArea(i) >= biggestArea) {
+                biggestArea = blobs.getBoxArea(i);
+                blobs.getBoundingRect(i, biggestRect);
+            }
+        }
+        return biggestArea;
+    }
+
+    private void releaseRegions() {
+        if (bucket != null) {
+            bucket.release();
+            gap.release();
+        }
+    }
+
+    /**
+     * Releases every mat the pipeline holds. Call once the camera has stopped streaming.
+     */
+    @Override
+    public void release() {
+        releaseRegions();
+        bucket = null;
+        gap = null;
+        pool.release();
+    }
+
     @Override
     public void onViewportTapped() {
         /*
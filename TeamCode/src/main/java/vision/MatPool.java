@@ -0,0 +1,192 @@
+package vision;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.firstinspires.ftc.teamcode.BuildConfig;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds every intermediate mat a pipeline uses, so they're allocated once and reused every frame
+ * instead of being made and released (or forgotten) each frame.
+ *
+ * Buffers are handed out in order: the first {@link #get()} in a frame always gets the first
+ * buffer, the second gets the second, and so on. Since a pipeline does the same steps every frame,
+ * each step ends up with the same buffer each time. OpenCV only reallocates a mat when it's asked
+ * to hold a different size or type, so once the first frame has run, nothing is allocated as long
+ * as the stream size doesn't change. Calling {@link #preallocate(int, int, int, int)} from the
+ * pipeline's init moves that first allocation out of the first frame.
+ *
+ * In debug builds, the pool checks its own use at the end of each frame, and logs when a frame
+ * used a different number of buffers than the last one, a buffer was reallocated after the first
+ * frame, or a pooled buffer was released by the pipeline.
+ *
+ * Mats from the pool belong to the pool, so pipelines shouldn't release them. Call
+ * {@link #release()} once the pipeline is done for good.
+ */
+public class MatPool {
+    private static final String TAG = "vuf.test.matpool";
+    // checking costs a bit each frame, so only do it in debug builds
+    public static boolean checkLeaks = BuildConfig.DEBUG;
+
+    private final String name;
+    private final List<Mat> mats = new ArrayList<>();
+    private int matsUsed;
+
+    // for leak checks. only buffers given a size are checked, since OpenCV resizes the others to
+    // fit whatever it puts in them
+    private long[] dataAddresses = new long[8];
+    private boolean[] sized = new boolean[8];
+    private int lastMatsUsed = -1;
+    private int frameCount;
+    private int reallocations;
+    private boolean inFrame;
+
+    /**
+     * Create a mat pool
+     * @param name the name of the pipeline using the pool, for logging
+     */
+    public MatPool(@NonNull String name) {
+        this.name = name;
+    }
+
+    // region frames
+
+    /**
+     * Starts a frame, so the next buffer handed out is the first one again
+     */
+    public void beginFrame() {
+        if (checkLeaks && inFrame) {
+            Log.w(TAG, name + ": frame started before the last one ended");
+        }
+        matsUsed = 0;
+        inFrame = true;
+    }
+
+    /**
+     * Ends a frame, checking the pool's use if leak checks are on
+     */
+    public void endFrame() {
+        inFrame = false;
+        if (checkLeaks) {
+            checkFrame();
+        }
+        frameCount++;
+    }
+
+    // endregion frames
+
+    // region buffers
+
+    /**
+     * Gets the next buffer without setting its size, for outputs OpenCV sizes itself
+     * @return the buffer
+     */
+    @NonNull
+    public Mat get() {
+        if (matsUsed == mats.size()) {
+            mats.add(new Mat());
+            if (mats.size() > sized.length) {
+                sized = Arrays.copyOf(sized, sized.length * 2);
+                dataAddresses = Arrays.copyOf(dataAddresses, dataAddresses.length * 2);
+            }
+        }
+        sized[matsUsed] = false;
+        return mats.get(matsUsed++);
+    }
+
+    /**
+     * Gets the next buffer with a size and type. The buffer is only reallocated if its size or
+     * type changed since it was last used.
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @param type the OpenCV type, like CvType.CV_8UC1
+     * @return the buffer. Its contents are whatever was left in it last frame.
+     */
+    @NonNull
+    public Mat get(int rows, int cols, int type) {
+        Mat mat = get();
+        sized[matsUsed - 1] = true;
+        mat.create(rows, cols, type);
+        return mat;
+    }
+
+    /**
+     * Gets the next buffer with the same size and type as another mat
+     * @param like the mat to match
+     * @return the buffer
+     */
+    @NonNull
+    public Mat getLike(@NonNull Mat like) {
+        return get(like.rows(), like.cols(), like.type());
+    }
+
+    /**
+     * Allocates buffers ahead of time, so the first frame doesn't have to. Buffers are made in
+     * the order they'll be handed out, so this should match the order of the first gets in a frame.
+     * @param count the number of buffers to allocate
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @param type the OpenCV type
+     */
+    public void preallocate(int count, int rows, int cols, int type) {
+        for (int i = 0; i < count; i++) {
+            get(rows, cols, type);
+        }
+    }
+
+    /**
+     * Releases every buffer in the pool. The pool can still be used after,
+     * it'll just allocate again.
+     */
+    public void release() {
+        for (int i = 0; i < mats.size(); i++) {
+            mats.get(i).release();
+        }
+        mats.clear();
+        matsUsed = 0;
+        lastMatsUsed = -1;
+        frameCount = 0;
+        Arrays.fill(dataAddresses, 0);
+    }
+
+    // endregion buffers
+
+    // region leak checks
+
+    /**
+     * Checks that the frame used the pool the same way as the last one
+     */
+    private void checkFrame() {
+        if (lastMatsUsed != -1 && matsUsed != lastMatsUsed) {
+            Log.w(TAG, String.format("%s: used %s buffers this frame but %s last frame",
+                    name, matsUsed, lastMatsUsed));
+        }
+        lastMatsUsed = matsUsed;
+
+        for (int i = 0; i < matsUsed; i++) {
+            if (!sized[i]) {
+                continue;
+            }
+            Mat mat = mats.get(i);
+            long address = mat.dataAddr();
+            if (address == 0) {
+                Log.w(TAG, String.format("%s: pooled buffer %s was released", name, i));
+            } else if (frameCount > 0 && dataAddresses[i] != 0 && address != dataAddresses[i]) {
+                reallocations++;
+                Log.w(TAG, String.format("%s: buffer %s was reallocated to %sx%s", name, i, mat.cols(), mat.rows()));
+            }
+            dataAddresses[i] = address;
+        }
+    }
+
+    // endregion leak checks
+
+    public int getBufferCount() { return mats.size(); }
+    public int getReallocations() { return reallocations; }
+}
@@ -29,17 +29,13 @@ import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.core.Core;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.CvType;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.openftc.easyopencv.OpenCvPipeline;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.opencv.imgproc.Imgproc;
 import org.openftc.easyopencv.OpenCvCamera;
 import org.openftc.easyopencv.OpenCvCameraFactory;
@@ -47,12 +43,16 @@ import org.openftc.easyopencv.OpenCvCameraRotation;
 import org.openftc.easyopencv.OpenCvPipeline;
 import org.openftc.easyopencv.OpenCvWebcam;
 
-public class ObjectCVPipeline extends OpenCvPipeline {
+public class ObjectCVPipeline extends OpenCvPipeline implements PooledPipeline {
     public boolean viewportPaused;
     private boolean objExists = false;
     private OpenCvCamera webcam;
     private Mat mat;
     boolean isCube = false;
+    // every intermediate mat, reused between frames
+    private final MatPool pool = new MatPool("object");
+    private final BlobExtractor blobs = new BlobExtractor();
+    private final Rect biggestRect = new Rect();
 
     public ObjectCVPipeline(OpenCvCamera webcam) {
         this.webcam = webcam;
@@ -90,8 +90,8 @@ public class ObjectCVPipeline extends OpenCvPipeline {
          * index from 0 to 2.
          */
 
-        mat = new Mat();
-
+        pool.beginFrame();
+        mat = pool.get(input.rows(), input.cols(), CvType.CV_8UC3);
         Imgproc.cvtColor(input, mat, Imgproc.COLOR_RGB2HSV);
 
         // We create a HSV range for yellow to detect regular stones
@@ -117,7 +117,7 @@ public class ObjectCVPipeline extends OpenCvPipeline {
             lowHSV1 = new Scalar(0, 0, 168); // lower bound HSV #1 for team shipping element
             highHSV1 = new Scalar(172, 111, 255); // higher bound HSV for team shipping element
         }
-        Mat thresh = new Mat();
+        Mat thresh = pool.get(input.rows(), input.cols(), CvType.CV_8UC1);
 
         // We'll get a black and white image. The white regions represent the regular
         // stones.
@@ -128,36 +128,22 @@ public class ObjectCVPipeline extends OpenCvPipeline {
         // Imgproc.GaussianBlur(thresh, thresh, new Size(9, 9), 2, 2); // should smooth
         // out some stuff; if not then it should be caught later
 
-        // Use Canny Edge Detection to find edges
-        // you might have to tune the thresholds for hysteresis
-        Mat edges = new Mat();
-        Imgproc.Canny(thresh, edges, 100, 300);
-
-        // https://docs.opencv.org/3.4/da/d0c/tutorial_bounding_rects_circles.html
-        // Oftentimes the edges are disconnected. findContours connects these edges.
-        // We then find the bounding rectangles of those contours
-        List<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
-        Imgproc.findContours(edges, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-
-        int sz = contours.size();
-        System.out.println("Contours: " + sz);
-        MatOfPoint2f[] contoursPoly = new MatOfPoint2f[sz];
-        Rect[] boundRect = new Rect[sz]; // contains bounding rectangles for each coutour (object in 2d form)
-        for (int i = 0; i < sz; i++) {
-            contoursPoly[i] = new MatOfPoint2f();
-            Imgproc.approxPolyDP(new MatOfPoint2f(contours.get(i).toArray()), contoursPoly[i], 3, true);
-            boundRect[i] = Imgproc.boundingRect(new MatOfPoint(contoursPoly[i].toArray()));
-        }
+        // each blob of white pixels is a shape, with its bounding box and area straight from the mask
+        blobs.extract(thresh, pool);
+
+        int sz = blobs.getBlobCount();
 
         // just look at which third the shipping element is in
 
         double biggestArea = 0;
-        Rect biggestRect = new Rect();
+        biggestRect.x = 0;
+        biggestRect.y = 0;
+        biggestRect.width = 0;
+        biggestRect.height = 0;
         for (int i = 0; i < sz; i++) {
-            if (boundRect[i].area() >= biggestArea) {
-                biggestArea = boundRect[i].area();
-                biggestRect = boundRect[i];
+            if (blobs.getBoxArea(i) >= biggestArea) {
+                biggestArea = blobs.getBoxArea(i);
+                blobs.getBoundingRect(i, biggestRect);
             }
         }
 
@@ -165,11 +151,7 @@ public class ObjectCVPipeline extends OpenCvPipeline {
 
         objExists = (biggestArea >= 5000); // should be at least 200x200 pixels
 
-
-        mat.release();
-        thresh.release();
-        hierarchy.release();
-        edges.release();
+        pool.endFrame();
 
         /**
          * NOTE: to see how to get data from your pipeline to your OpMode as well as how
@@ -180,6 +162,14 @@ public class ObjectCVPipeline extends OpenCvPipeline {
         return input;
     }
 
+    /**
+     * Releases every mat the pipeline holds. Call once the camera has stopped streaming.
+     */
+    @Override
+    public void release() {
+        pool.release();
+    }
+
     @Override
     public void onViewportTapped() {
         /*
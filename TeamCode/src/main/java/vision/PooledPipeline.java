@@ -0,0 +1,14 @@
+package vision;
+
+/**
+ * A pipeline that holds native buffers, like the mats in a {@link MatPool}, that have to be
+ * released once it's done instead of waiting on the garbage collector.
+ * {@link CVManager#stopPipeline()} releases them once the stream has stopped.
+ */
+public interface PooledPipeline {
+
+    /**
+     * Releases every mat the pipeline holds. Only call once frames have stopped coming in.
+     */
+    void release();
+}
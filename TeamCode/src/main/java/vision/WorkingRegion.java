@@ -0,0 +1,158 @@
+package vision;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import annotations.ImageCoordinates;
+
+/**
+ * Crops a frame to a region of interest and shrinks it to a working resolution, so a pipeline
+ * only processes as many pixels as it needs, then maps what it finds back to the full frame.
+ *
+ * The region is given as fractions of the frame, so it stays in the same place if the stream size
+ * changes. The working size is the size the whole frame would be shrunk to, like 320x180 for a
+ * 1280x720 stream, and the region is shrunk by the same amount, keeping its shape. Shrinking is
+ * done by halving with pyrDown as many times as it can, since each halving blurs first and doesn't
+ * skip pixels, then one resize with INTER_AREA for whatever's left.
+ *
+ * Every buffer comes from the pipeline's {@link MatPool}. The crop itself is a submat of the frame,
+ * so it's released at the start of the next frame, like the regions in {@link IntakeCVPipeline}.
+ */
+public class WorkingRegion {
+    private final MatPool pool;
+    @ImageCoordinates
+    private final Rect region = new Rect();
+    private final Size size = new Size();
+    private Mat crop;
+    private double scaleX = 1;
+    private double scaleY = 1;
+
+    /**
+     * Create a working region
+     * @param pool the pool of the pipeline using the region, for the shrunk images
+     */
+    public WorkingRegion(@NonNull MatPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Crops and shrinks a frame
+     * @param frame the full frame
+     * @param left the left edge of the region, as a fraction of the frame's width
+     * @param top the top edge of the region, as a fraction of the frame's height
+     * @param right the right edge of the region, as a fraction of the frame's width
+     * @param bottom the bottom edge of the region, as a fraction of the frame's height
+     * @param workingWidth the width the whole frame would be shrunk to. Frames are never grown.
+     * @param workingHeight the height the whole frame would be shrunk to
+     * @return the cropped and shrunk region. It belongs to the pool or the frame, so don't
+     *         release it.
+     */
+    @NonNull
+    public Mat prepare(@NonNull Mat frame, double left, double top, double right, double bottom,
+                       int workingWidth, int workingHeight) {
+        releaseCrop();
+        int cols = frame.cols();
+        int rows = frame.rows();
+        region.x = clamp((int) Math.round(left * cols), 0, cols - 1);
+        region.y = clamp((int) Math.round(top * rows), 0, rows - 1);
+        region.width = clamp((int) Math.round(right * cols), region.x + 1, cols) - region.x;
+        region.height = clamp((int) Math.round(bottom * rows), region.y + 1, rows) - region.y;
+
+        Mat working;
+        if (region.width == cols && region.height == rows) {
+            working = frame;
+        } else {
+            crop = frame.submat(region);
+            working = crop;
+        }
+
+        double scale = Math.min(1, Math.min((double) workingWidth / cols, (double) workingHeight / rows));
+        int targetWidth = Math.max(1, (int) Math.round(region.width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(region.height * scale));
+
+        // halve while it's still at least twice the target
+        while (working.cols() >= targetWidth * 2 && working.rows() >= targetHeight * 2) {
+            Mat half = pool.get((working.rows() + 1) / 2, (working.cols() + 1) / 2, frame.type());
+            Imgproc.pyrDown(working, half);
+            working = half;
+        }
+        if (working.cols() != targetWidth || working.rows() != targetHeight) {
+            Mat resized = pool.get(targetHeight, targetWidth, frame.type());
+            size.width = targetWidth;
+            size.height = targetHeight;
+            Imgproc.resize(working, resized, size, 0, 0, Imgproc.INTER_AREA);
+            working = resized;
+        }
+
+        scaleX = (double) region.width / working.cols();
+        scaleY = (double) region.height / working.rows();
+        return working;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Releases the crop of the last frame, if there was one. Called by the next prepare, or
+     * once the pipeline is done.
+     */
+    public void releaseCrop() {
+        if (crop != null) {
+            crop.release();
+            crop = null;
+        }
+    }
+
+    // region mapping
+
+    /**
+     * Maps an x in the working image to the full frame
+     * @param x the x in the working image
+     * @return the x in the full frame
+     */
+    public int toFrameX(double x) {
+        return region.x + (int) Math.round(x * scaleX);
+    }
+
+    /**
+     * Maps a y in the working image to the full frame
+     * @param y the y in the working image
+     * @return the y in the full frame
+     */
+    public int toFrameY(double y) {
+        return region.y + (int) Math.round(y * scaleY);
+    }
+
+    /**
+     * Maps a blob's bounding box in the working image to the full frame
+     * @param blobs the blobs found in the working image
+     * @param blob the index of the blob
+     * @param rectOut the rect to set to the box in the full frame
+     */
+    public void toFrameRect(@NonNull BlobExtractor blobs, int blob, @NonNull @ImageCoordinates Rect rectOut) {
+        rectOut.x = toFrameX(blobs.getLeft(blob));
+        rectOut.y = toFrameY(blobs.getTop(blob));
+        rectOut.width = toFrameX(blobs.getLeft(blob) + blobs.getWidth(blob)) - rectOut.x;
+        rectOut.height = toFrameY(blobs.getTop(blob) + blobs.getHeight(blob)) - rectOut.y;
+    }
+
+    // endregion mapping
+
+    /**
+     * Gets the region from the last frame
+     * @return the region, in full frame pixels. Reused by the next prepare.
+     */
+    @NonNull
+    @ImageCoordinates
+    public Rect getRegion() {
+        return region;
+    }
+
+    public double getScaleX() { return scaleX; }
+    public double getScaleY() { return scaleY; }
+}